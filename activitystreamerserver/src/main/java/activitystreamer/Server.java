@@ -5,6 +5,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import activitystreamer.server.SessionManager;
+import activitystreamer.server.WriteAheadLog;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -41,6 +42,18 @@ public class Server {
         options.addOption("lh", true, "local hostname");
         options.addOption("a", true, "activity interval in milliseconds");
         options.addOption("s", true, "secret for the server to use");
+        options.addOption("bd", true, "activity batching delay between servers in milliseconds");
+        options.addOption("phi", true, "suspicion level at which a silent server is treated as failed");
+        options.addOption("mc", true, "maximum number of child servers before joining servers are redirected (default no limit)");
+        options.addOption("oi", true, "interval between looks for a shallower tree position in milliseconds");
+        options.addOption("sb", false, "keep a warm standby connection to the grandparent for instant failover");
+        options.addOption("mj", true, "joining servers let through to the registry merge at a time, the rest queue");
+        options.addOption("tr", true, "activity messages per second allowed on each client connection");
+        options.addOption("wal", true, "file to log client registry changes to, so they survive a restart");
+        options.addOption("ws", true, "when logged registry changes are forced to disk: always (before replying), interval or never");
+        options.addOption("si", true, "interval between registry snapshots in milliseconds, 0 for none");
+        options.addOption("spool", true, "directory to spool pending messages to once the memory limit is reached (requires -wal)");
+        options.addOption("sml", true, "bytes of pending messages held in memory before spooling");
 
         // build the parser
         CommandLineParser parser = new DefaultParser();
@@ -90,6 +103,123 @@ public class Server {
             }
         }
 
+        if (cmd.hasOption("bd")) {
+            try {
+                int bd = Integer.parseInt(cmd.getOptionValue("bd"));
+                Settings.setActivityBatchDelay(bd);
+            }
+            catch (NumberFormatException e) {
+                log.error("-bd requires a number in milliseconds, parsed: " + cmd.getOptionValue("bd"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("phi")) {
+            try {
+                double phi = Double.parseDouble(cmd.getOptionValue("phi"));
+                Settings.setPhiThreshold(phi);
+            }
+            catch (NumberFormatException e) {
+                log.error("-phi requires a number, parsed: " + cmd.getOptionValue("phi"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("mc")) {
+            try {
+                int mc = Integer.parseInt(cmd.getOptionValue("mc"));
+                Settings.setMaxChildren(mc);
+            }
+            catch (NumberFormatException e) {
+                log.error("-mc requires a number of servers, parsed: " + cmd.getOptionValue("mc"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("oi")) {
+            try {
+                int oi = Integer.parseInt(cmd.getOptionValue("oi"));
+                Settings.setTreeOptimizeInterval(oi);
+            }
+            catch (NumberFormatException e) {
+                log.error("-oi requires a number in milliseconds, parsed: " + cmd.getOptionValue("oi"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("sb")) {
+            Settings.setStandbyEnabled(true);
+        }
+
+        if (cmd.hasOption("tr")) {
+            try {
+                double tr = Double.parseDouble(cmd.getOptionValue("tr"));
+                Settings.setThrottleRate(tr);
+            }
+            catch (NumberFormatException e) {
+                log.error("-tr requires a number of messages per second, parsed: " + cmd.getOptionValue("tr"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("mj")) {
+            try {
+                int mj = Integer.parseInt(cmd.getOptionValue("mj"));
+                Settings.setMaxConcurrentJoins(mj);
+            }
+            catch (NumberFormatException e) {
+                log.error("-mj requires a number of servers, parsed: " + cmd.getOptionValue("mj"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("wal")) {
+            Settings.setWalFile(cmd.getOptionValue("wal"));
+        }
+
+        if (cmd.hasOption("ws")) {
+            String ws = cmd.getOptionValue("ws").toUpperCase();
+            try {
+                WriteAheadLog.SyncPolicy.valueOf(ws);
+                Settings.setWalSyncPolicy(ws);
+            }
+            catch (IllegalArgumentException e) {
+                log.error("-ws requires always, interval or never, parsed: " + cmd.getOptionValue("ws"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("si")) {
+            try {
+                int si = Integer.parseInt(cmd.getOptionValue("si"));
+                Settings.setSnapshotInterval(si);
+            }
+            catch (NumberFormatException e) {
+                log.error("-si requires a number in milliseconds, parsed: " + cmd.getOptionValue("si"));
+                help(options);
+            }
+        }
+
+        if (cmd.hasOption("spool")) {
+            if (!cmd.hasOption("wal")) {
+                // Spooled messages are only recovered through the write-ahead log and snapshots
+                log.error("-spool requires -wal, so that pending messages survive a restart");
+                help(options);
+            }
+            Settings.setSpoolDir(cmd.getOptionValue("spool"));
+        }
+
+        if (cmd.hasOption("sml")) {
+            try {
+                long sml = Long.parseLong(cmd.getOptionValue("sml"));
+                Settings.setSpoolMemoryLimit(sml);
+            }
+            catch (NumberFormatException e) {
+                log.error("-sml requires a number of bytes, parsed: " + cmd.getOptionValue("sml"));
+                help(options);
+            }
+        }
+
         try {
             Settings.setLocalHostname(InetAddress.getLocalHost().getHostAddress());
         }
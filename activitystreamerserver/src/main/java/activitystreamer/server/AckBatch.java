@@ -0,0 +1,148 @@
+package activitystreamer.server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/** Collects message acknowledgements for many senders so they can be sent across the network in a single
+ * MSG_ACKS_BATCH frame. Acknowledged tokens are kept per (sender, recipient) pair and encoded as ranges of consecutive
+ * tokens, e.g. {"alice": {"bob": [[1, 40], 42]}} acknowledges tokens 1 to 40 and 42 from alice as received by bob. */
+public class AckBatch {
+
+    // sender -> recipient -> acknowledged tokens
+    private HashMap<String, HashMap<String, TreeSet<Integer>>> acks;
+    private int size;
+
+    /** Creates an empty batch of acknowledgements */
+    public AckBatch() {
+        this.acks = new HashMap<String, HashMap<String, TreeSet<Integer>>>();
+        this.size = 0;
+    }
+
+    /** Adds the acknowledgements generated by a delivery pass for a given sender
+     * @param sender The client who sent the delivered messages
+     * @param tokenAcks A map of message tokens to the recipients who received that message */
+    public synchronized void addAcks(String sender, HashMap<Integer, ArrayList<String>> tokenAcks) {
+        HashMap<String, TreeSet<Integer>> senderAcks = acks.get(sender);
+        if (senderAcks == null) {
+            senderAcks = new HashMap<String, TreeSet<Integer>>();
+            acks.put(sender, senderAcks);
+        }
+        for (HashMap.Entry<Integer, ArrayList<String>> tokenAck : tokenAcks.entrySet()) {
+            for (String recipient : tokenAck.getValue()) {
+                TreeSet<Integer> tokens = senderAcks.get(recipient);
+                if (tokens == null) {
+                    tokens = new TreeSet<Integer>();
+                    senderAcks.put(recipient, tokens);
+                }
+                if (tokens.add(tokenAck.getKey())) {
+                    size += 1;
+                }
+            }
+        }
+    }
+
+    /** Checks if the batch holds any acknowledgements
+     * @return true if there is nothing to send, false otherwise */
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Get the number of (sender, recipient, token) acknowledgements held in the batch
+     * @return The number of acknowledgements */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Encodes every acknowledgement held as ranges of tokens and empties the batch
+     * @return The range encoded acknowledgements -> {sender: {recipient: [[from, to] or token, ...]}} */
+    public synchronized JSONObject drainToJson() {
+        JSONObject acksJson = new JSONObject();
+        acks.forEach((sender, senderAcks) -> {
+            JSONObject senderJson = new JSONObject();
+            senderAcks.forEach((recipient, tokens) -> senderJson.put(recipient, tokensToRanges(tokens)));
+            acksJson.put(sender, senderJson);
+        });
+        acks.clear();
+        size = 0;
+        return acksJson;
+    }
+
+    /** Compresses a sorted set of tokens into ranges of consecutive tokens. Single tokens are encoded as a number,
+     * runs of tokens as a [from, to] pair.
+     * @param tokens The sorted tokens
+     * @return A JSONArray of ranges */
+    private static JSONArray tokensToRanges(TreeSet<Integer> tokens) {
+        JSONArray ranges = new JSONArray();
+        Integer from = null;
+        Integer to = null;
+        for (Integer token : tokens) {
+            if (from != null && token == to + 1) {
+                to = token;
+                continue;
+            }
+            if (from != null) {
+                ranges.add(rangeToJson(from, to));
+            }
+            from = token;
+            to = token;
+        }
+        if (from != null) {
+            ranges.add(rangeToJson(from, to));
+        }
+        return ranges;
+    }
+
+    /** Encodes a single range of tokens
+     * @param from The first token in the range
+     * @param to The last token in the range
+     * @return The token itself if the range holds one token, otherwise a [from, to] pair */
+    private static Object rangeToJson(Integer from, Integer to) {
+        if (from.equals(to)) {
+            return from;
+        }
+        JSONArray range = new JSONArray();
+        range.add(from);
+        range.add(to);
+        return range;
+    }
+
+    /** Decodes the range encoded acknowledgements of a received MSG_ACKS_BATCH
+     * @param acksJson The "acks" field of the message
+     * @return A map of each sender to a map of message tokens and the recipients who received that message */
+    public static HashMap<String, HashMap<Integer, ArrayList<String>>> fromJson(JSONObject acksJson) {
+        HashMap<String, HashMap<Integer, ArrayList<String>>> senderAcks =
+                new HashMap<String, HashMap<Integer, ArrayList<String>>>();
+        acksJson.forEach((senderObj, recipientsObj) -> {
+            HashMap<Integer, ArrayList<String>> tokenAcks = new HashMap<Integer, ArrayList<String>>();
+            ((JSONObject) recipientsObj).forEach((recipientObj, rangesObj) -> {
+                String recipient = recipientObj.toString();
+                ((JSONArray) rangesObj).forEach((rangeObj) -> {
+                    int from;
+                    int to;
+                    if (rangeObj instanceof JSONArray) {
+                        from = ((Long) ((JSONArray) rangeObj).get(0)).intValue();
+                        to = ((Long) ((JSONArray) rangeObj).get(1)).intValue();
+                    }
+                    else {
+                        from = ((Long) rangeObj).intValue();
+                        to = from;
+                    }
+                    for (int token = from; token <= to; token++) {
+                        ArrayList<String> recipients = tokenAcks.get(token);
+                        if (recipients == null) {
+                            recipients = new ArrayList<String>();
+                            tokenAcks.put(token, recipients);
+                        }
+                        recipients.add(recipient);
+                    }
+                });
+            });
+            senderAcks.put(senderObj.toString(), tokenAcks);
+        });
+        return senderAcks;
+    }
+}
@@ -0,0 +1,96 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Settings;
+
+import java.util.ArrayList;
+
+/** Holds the ACTIVITY_BROADCAST messages waiting to be sent on a single server link, so that a burst of activities can
+ * be sent as one ACTIVITY_BATCH frame. Activities are kept in the order they were queued, which preserves the token
+ * order of each sender within and across batches. */
+public class ActivityBatch {
+
+    private ArrayList<String> activities;
+    private int pendingBytes;
+    private long firstQueuedAt;
+    private long lastFlushAt;
+
+    /** Creates an empty batch for a link */
+    public ActivityBatch() {
+        this.activities = new ArrayList<String>();
+        this.pendingBytes = 0;
+        this.firstQueuedAt = 0;
+        // nanoTime has an arbitrary origin, so the link counts as having just been flushed rather than at time 0
+        this.lastFlushAt = System.nanoTime();
+    }
+
+    /** Checks if the link has been quiet for at least the batching delay, in which case a single activity is better
+     * sent straight away than held back waiting for others
+     * @return true if nothing is queued and nothing has been sent for the batching delay, false otherwise */
+    public boolean isIdle() {
+        return activities.isEmpty() && millisSince(lastFlushAt) >= Settings.getActivityBatchDelay();
+    }
+
+    /** Adds an activity to the batch
+     * @param activity The ACTIVITY_BROADCAST message, as a JSON string */
+    public void add(String activity) {
+        if (activities.isEmpty()) {
+            firstQueuedAt = System.nanoTime();
+        }
+        activities.add(activity);
+        pendingBytes += activity.length();
+    }
+
+    /** Checks if the batch has reached the size limit, and should be sent now
+     * @return true if the batch is full, false otherwise */
+    public boolean isFull() {
+        return activities.size() >= Settings.getActivityBatchSize() ||
+                pendingBytes >= Settings.getActivityBatchBytes();
+    }
+
+    /** Checks if the oldest activity in the batch has waited for the batching delay, and the batch should be sent
+     * @return true if the batch is due to be sent, false otherwise */
+    public boolean isDue() {
+        return !activities.isEmpty() && millisSince(firstQueuedAt) >= Settings.getActivityBatchDelay();
+    }
+
+    /** Checks if the batch holds any activities
+     * @return true if empty, false otherwise */
+    public boolean isEmpty() {
+        return activities.isEmpty();
+    }
+
+    /** Get the number of activities waiting in the batch
+     * @return The number of queued activities */
+    public int size() {
+        return activities.size();
+    }
+
+    /** Takes every activity out of the batch and builds the frame to send. A lone activity is sent as a plain
+     * ACTIVITY_BROADCAST, so a quiet link costs nothing extra.
+     * @return The message to be written to the link, or null if the batch is empty */
+    public String drain() {
+        String frame = null;
+        if (activities.size() == 1) {
+            frame = activities.get(0);
+        }
+        else if (!activities.isEmpty()) {
+            frame = MessageProcessor.getActivityBatchMsg(activities);
+        }
+        markSent();
+        return frame;
+    }
+
+    /** Empties the batch and records that the link has just been written to */
+    public void markSent() {
+        activities.clear();
+        pendingBytes = 0;
+        lastFlushAt = System.nanoTime();
+    }
+
+    /** Get the number of milliseconds since a System.nanoTime() timestamp
+     * @param timestamp The earlier timestamp
+     * @return The elapsed time, in milliseconds */
+    private static long millisSince(long timestamp) {
+        return (System.nanoTime() - timestamp) / 1000000;
+    }
+}
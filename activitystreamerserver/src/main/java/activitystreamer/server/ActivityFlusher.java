@@ -0,0 +1,49 @@
+package activitystreamer.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * A thread that sends the activities batched on each server link once they have waited for the batching delay, so an
+ * activity is never held back for long when no more activities arrive to fill its batch.
+ */
+public class ActivityFlusher extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private boolean term = false;
+    private ServerRegistry serverRegistry;
+
+    public ActivityFlusher(ServerRegistry serverRegistry) {
+        this.serverRegistry = serverRegistry;
+        setDaemon(true);
+        start();
+    }
+
+    /** Checks the batch of every server link each batching delay, sending those that are due. */
+    @Override
+    public void run() {
+        log.info("using activity batching delay of " + Settings.getActivityBatchDelay() + " milliseconds");
+        while (!term) {
+            try {
+                Thread.sleep(Math.max(1, Settings.getActivityBatchDelay()));
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping activity batching");
+                break;
+            }
+            for (Connection con : serverRegistry.getServerConnections().keySet()) {
+                con.flushActivitiesIfDue();
+            }
+        }
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
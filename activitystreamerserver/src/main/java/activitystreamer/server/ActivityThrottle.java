@@ -0,0 +1,125 @@
+package activitystreamer.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/** Limits how fast clients may send ACTIVITY_MESSAGEs, so a single noisy client cannot flood the network. Every client
+ * connection has a token bucket, and so does every registered user logged in here (a user may be logged in on several
+ * connections); a message needs a token from both. The user is the one the connection logged in as, not the one a
+ * message claims to be from, so no connection can spend another user's tokens; before login only the connection's
+ * bucket applies. A message over the limit is held back until a token is free, as long as that is within the maximum
+ * throttle delay, and dropped otherwise. Messages are held back on the connection's own thread
+ * before they are processed, so the server keeps serving everyone else in the meantime. */
+public class ActivityThrottle {
+    private static final Logger log = LogManager.getLogger();
+
+    private ConcurrentHashMap<Connection, TokenBucket> connectionBuckets;
+    private ConcurrentHashMap<String, TokenBucket> userBuckets;
+    private ConcurrentHashMap<Connection, String> connectionUsers; // the registered user each connection logged in as
+    private AtomicLong admitted;
+    private AtomicLong delayed;
+    private AtomicLong rejected;
+    private long reportedDelayed;
+    private long reportedRejected;
+
+    public ActivityThrottle() {
+        this.connectionBuckets = new ConcurrentHashMap<Connection, TokenBucket>();
+        this.userBuckets = new ConcurrentHashMap<String, TokenBucket>();
+        this.connectionUsers = new ConcurrentHashMap<Connection, String>();
+        this.admitted = new AtomicLong(0);
+        this.delayed = new AtomicLong(0);
+        this.rejected = new AtomicLong(0);
+        this.reportedDelayed = 0;
+        this.reportedRejected = 0;
+    }
+
+    /** Waits, if need be, until an ACTIVITY_MESSAGE may be processed
+     * @param con The connection the message arrived on
+     * @return true if the message may be processed, false if it is over the limit and should be dropped */
+    public boolean admit(Connection con) {
+        String username = connectionUsers.get(con);
+        TokenBucket conBucket = connectionBuckets.computeIfAbsent(con, (c) ->
+                new TokenBucket(Settings.getThrottleRate(), Settings.getThrottleBurst()));
+        TokenBucket userBucket = (username == null ? null : userBuckets.computeIfAbsent(username, (u) ->
+                new TokenBucket(Settings.getUserThrottleRate(), Settings.getUserThrottleBurst())));
+
+        // Reserve a token from each bucket in one step, so concurrent connections of a user cannot overdraw its bucket
+        long maxDelay = Settings.getThrottleMaxDelay();
+        long wait = conBucket.tryTake(maxDelay);
+        if (wait >= 0 && userBucket != null) {
+            long userWait = userBucket.tryTake(maxDelay);
+            if (userWait < 0) {
+                conBucket.giveBack();
+            }
+            wait = (userWait < 0 ? -1 : Math.max(wait, userWait));
+        }
+        if (wait < 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (wait > 0) {
+            delayed.incrementAndGet();
+            try {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /** A registered user has logged in on a connection, so its messages also take tokens from the user's bucket
+     * @param con The connection
+     * @param username The user */
+    public void loggedIn(Connection con, String username) {
+        connectionUsers.put(con, username);
+    }
+
+    /** Forgets a closed connection's bucket, and its user's once the user has no other connection here
+     * @param con The connection that closed */
+    public void connectionClosed(Connection con) {
+        connectionBuckets.remove(con);
+        String username = connectionUsers.remove(con);
+        if (username != null && !connectionUsers.containsValue(username)) {
+            userBuckets.remove(username);
+        }
+    }
+
+    /** Logs how many messages have been throttled since the last report, if any have */
+    public synchronized void report() {
+        long nowDelayed = delayed.get();
+        long nowRejected = rejected.get();
+        if (nowDelayed != reportedDelayed || nowRejected != reportedRejected) {
+            log.info("throttled activity messages: " + (nowDelayed - reportedDelayed) + " delayed, " +
+                     (nowRejected - reportedRejected) + " dropped since last report (totals: " + admitted.get() +
+                     " admitted, " + nowDelayed + " delayed, " + nowRejected + " dropped)");
+        }
+        reportedDelayed = nowDelayed;
+        reportedRejected = nowRejected;
+    }
+
+    /** Get the number of activity messages admitted, including those that were delayed
+     * @return The number of messages admitted */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /** Get the number of activity messages that were held back before being admitted
+     * @return The number of messages delayed */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    /** Get the number of activity messages dropped for being over the limit
+     * @return The number of messages dropped */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
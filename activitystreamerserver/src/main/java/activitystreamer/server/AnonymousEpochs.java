@@ -0,0 +1,86 @@
+package activitystreamer.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/** Keeps our view of other servers' anonymous users in step without replicating their records. Each server counts the
+ * changes to its own anonymous users, its epoch, and sends the new epoch with every anonymous login and logout it
+ * broadcasts, as well as in its SERVER_ANNOUNCE. A server that has applied every change in turn is in step with that
+ * server's epoch. If a change was missed, e.g. across a partition or before we joined, the announced epoch will differ
+ * from ours, and we ask that server directly for its current anonymous users instead. */
+public class AnonymousEpochs {
+
+    private long ownEpoch;
+    private HashMap<String, Long> known; // server id -> the epoch of its anonymous users we are in step with
+    private HashSet<String> syncing;
+
+    public AnonymousEpochs() {
+        this.ownEpoch = 0;
+        this.known = new HashMap<String, Long>();
+        this.syncing = new HashSet<String>();
+    }
+
+    /** Records a change to our own anonymous users
+     * @return Our new epoch */
+    public synchronized long advance() {
+        return ++ownEpoch;
+    }
+
+    /** Get our own epoch
+     * @return The number of changes to our own anonymous users */
+    public synchronized long current() {
+        return ownEpoch;
+    }
+
+    /** Records that a login or logout of one of a server's anonymous users has been applied. We only stay in step if
+     * it was the very next change; otherwise one was missed, which the server's next announce will show.
+     * @param id The server's id
+     * @param epoch The server's epoch after the change */
+    public synchronized void heard(String id, long epoch) {
+        Long epochKnown = known.get(id);
+        if (epochKnown != null && epoch == epochKnown + 1) {
+            known.put(id, epoch);
+        }
+    }
+
+    /** Checks a server's announced epoch against ours, and if we are out of step starts a sync with it, unless one is
+     * already under way
+     * @param id The server's id
+     * @param epoch The server's announced epoch
+     * @return true if the caller should fetch the server's anonymous users, false otherwise */
+    public synchronized boolean needsSync(String id, long epoch) {
+        Long epochKnown = known.get(id);
+        if (epochKnown == null && epoch == 0) {
+            // The server has never had an anonymous user
+            known.put(id, 0L);
+            return false;
+        }
+        // An announce can be overtaken by a later login or logout, so being ahead of it is fine
+        if ((epochKnown != null && epochKnown >= epoch) || syncing.contains(id)) {
+            return false;
+        }
+        syncing.add(id);
+        return true;
+    }
+
+    /** Records the end of a sync with a server
+     * @param id The server's id
+     * @param epoch The epoch of the anonymous users received, or -1 if the sync failed
+     * @return true if the users received should be applied, false if they are older than what we already have */
+    public synchronized boolean synced(String id, long epoch) {
+        syncing.remove(id);
+        Long epochKnown = known.get(id);
+        if (epoch < 0 || (epochKnown != null && epochKnown >= epoch)) {
+            return false;
+        }
+        known.put(id, epoch);
+        return true;
+    }
+
+    /** Forgets a server that has left the network
+     * @param id The server's id */
+    public synchronized void forget(String id) {
+        known.remove(id);
+        syncing.remove(id);
+    }
+}
@@ -1,18 +1,29 @@
 package activitystreamer.server;
 
-import com.google.gson.reflect.TypeToken;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /** This class represents a record of a Client on the network. It stores all required information about the client,
  * including its token number and messages waiting to be processed. */
 public class ClientRecord {
+    private static final Logger log = LogManager.getLogger();
 
     // Fields we want to keep track of
     private String username;
@@ -23,6 +34,14 @@ public class ClientRecord {
     private ArrayList<Message> messages;
     private ArrayList<Message> undeliverable_messages;
     private Boolean delete_after_delivering;
+    private transient long copiedForSnapshot; // generation of the last snapshot this record was copied into
+    // Tokens after received_up_to that will never be held here, as none of their recipients are; not kept across a
+    // restart, as the servers holding those messages announce them again
+    private transient TreeSet<Integer> skippedTokens;
+    // Ranges of tokens (first -> last) that delivery moved past without the message being held here, as it was routed
+    // elsewhere. A recipient may move here before it gets such a message, so it is still taken on if it turns up later.
+    // Not kept across a restart, except for the skips replayed from the write-ahead log.
+    private transient TreeMap<Integer, Integer> routedAway;
 
 
     /** Creates a new client record
@@ -39,6 +58,20 @@ public class ClientRecord {
         delete_after_delivering = false;
     }
 
+    /** Creates a copy of a record, to be written out while the original carries on changing. Each message is copied
+     * as its recipients may still change; the message contents never do.
+     * @param other The record to copy */
+    public ClientRecord(ClientRecord other) {
+        this.username = other.username;
+        this.logged_in = other.logged_in;
+        this.secret = other.secret;
+        this.next_token = other.next_token;
+        this.received_up_to = other.received_up_to;
+        this.messages = copyMessages(other.messages);
+        this.undeliverable_messages = copyMessages(other.undeliverable_messages);
+        this.delete_after_delivering = other.delete_after_delivering;
+    }
+
     /** Creates a new ClientRecord from a JSONOBject - this client is therefore connected to some other server in
      * the network, but we need to add it to local storage
      * @param clientRecordJson The JSONObject representing the client record */
@@ -49,38 +82,25 @@ public class ClientRecord {
         this.next_token = ((Long) clientRecordJson.get("next_token")).intValue();
         this.received_up_to = ((Long) clientRecordJson.get("received_up_to")).intValue();
 
-        Type collectionType = new TypeToken<ArrayList<Message>>(){}.getType();
-        this.messages = MessageProcessor.getGson().fromJson(
-                ((JSONArray) clientRecordJson.get("messages")).toJSONString(),
-                collectionType);
-        this.undeliverable_messages = MessageProcessor.getGson().fromJson(
-                ((JSONArray) clientRecordJson.get("undeliverable_messages")).toJSONString(),
-                collectionType);
+        // Decode the messages straight from the parsed registry, rather than re-serialising them for Gson
+        this.messages = messagesFromJson((JSONArray) clientRecordJson.get("messages"));
+        this.undeliverable_messages = messagesFromJson((JSONArray) clientRecordJson.get("undeliverable_messages"));
         delete_after_delivering = (boolean) clientRecordJson.get("delete_after_delivering");
     }
 
     /**
      * Synchronise this record, updating its values if the received record contains updated information.
      * @param receivedRecord The record received from some other server on the network
+     * @param recipientsHere Tells if any of a message's recipients may be served through this server, so it should
+     *                       hold the message
      */
-    public void updateRecord(JSONObject receivedRecord) {
+    public void updateRecord(JSONObject receivedRecord, Predicate<ArrayList<String>> recipientsHere) {
         updateLoggedIn(((Long) receivedRecord.get("logged_in")).intValue(), "Updating Record");
         updateNextToken(((Long) receivedRecord.get("next_token")).intValue());
 
-        // Update Messages
-        Type collectionType = new TypeToken<ArrayList<Message>>(){}.getType();
-        ArrayList<Message> receivedDeliverableMessages = MessageProcessor.getGson().fromJson(
-                ((JSONArray) receivedRecord.get("messages")).toJSONString(),
-                collectionType);
-        if (receivedDeliverableMessages != null) {
-            updateMessages(receivedDeliverableMessages);
-        }
-        ArrayList<Message> receivedUndeliverableMessages = MessageProcessor.getGson().fromJson(
-                ((JSONArray) receivedRecord.get("undeliverable_messages")).toJSONString(),
-                collectionType);
-        if (receivedUndeliverableMessages != null) {
-            updateMessages(receivedUndeliverableMessages);
-        }
+        // Update Messages, merging each received message as it is read from the parsed registry
+        updateMessages((JSONArray) receivedRecord.get("messages"), recipientsHere);
+        updateMessages((JSONArray) receivedRecord.get("undeliverable_messages"), recipientsHere);
 
         boolean new_delete = (boolean) receivedRecord.get("delete_after_delivering");
         if (!delete_after_delivering) {
@@ -88,38 +108,149 @@ public class ClientRecord {
         }
     }
 
-    /** Updates the messages that are to be delivered to clients
-     * @param receivedMessages An ArrayList of messages to be delivered*/
-    private void updateMessages(ArrayList<Message> receivedMessages) {
+    /** Copies a list of messages
+     * @param original The messages to copy
+     * @return The copied messages */
+    private static ArrayList<Message> copyMessages(ArrayList<Message> original) {
+        ArrayList<Message> copied = new ArrayList<Message>(original.size());
+        for (Message m : original) {
+            copied.add(m.copy());
+        }
+        return copied;
+    }
+
+    /** Writes the record in the compact binary form used by registry snapshots. Messages are rarely held for long,
+     * so they are written as JSON, and not at all if there are none. Spooled messages are read back one at a time as
+     * they are written.
+     * @param out The stream to write to
+     * @throws IOException If the stream cannot be written to */
+    public void writeSnapshot(RegistrySnapshot.SnapshotOutput out) throws IOException {
+        RegistrySnapshot.writeString(out, username);
+        RegistrySnapshot.writeString(out, secret);
+        out.writeInt(next_token);
+        out.writeInt(logged_in);
+        out.writeInt(received_up_to);
+        out.writeBoolean(delete_after_delivering);
+        writeMessagesSnapshot(out, messages);
+        writeMessagesSnapshot(out, undeliverable_messages);
+    }
+
+    /** Writes a list of messages for a snapshot, as JSON, or an empty string if there are none
+     * @param out The stream to write to
+     * @param messageList The messages
+     * @throws IOException If the stream cannot be written to */
+    private static void writeMessagesSnapshot(RegistrySnapshot.SnapshotOutput out, ArrayList<Message> messageList)
+            throws IOException {
+        if (messageList.isEmpty()) {
+            RegistrySnapshot.writeString(out, "");
+        }
+        else {
+            out.writeJsonString(messageList);
+        }
+    }
+
+    /** Reads a record written by writeSnapshot
+     * @param in The buffer to read from, positioned at the record
+     * @return The record */
+    public static ClientRecord readSnapshot(ByteBuffer in) {
+        ClientRecord record = new ClientRecord(RegistrySnapshot.readString(in), RegistrySnapshot.readString(in));
+        record.next_token = in.getInt();
+        record.logged_in = in.getInt();
+        record.received_up_to = in.getInt();
+        record.delete_after_delivering = (in.get() != 0);
+        record.messages = messagesFromSnapshot(RegistrySnapshot.readString(in));
+        record.undeliverable_messages = messagesFromSnapshot(RegistrySnapshot.readString(in));
+        return record;
+    }
+
+    /** Decodes the messages of a record read from a snapshot
+     * @param messagesJson The messages as a JSON array, or an empty string if there were none
+     * @return The decoded messages */
+    private static ArrayList<Message> messagesFromSnapshot(String messagesJson) {
+        if (messagesJson.isEmpty()) {
+            return new ArrayList<Message>();
+        }
+        return messagesFromJson((JSONArray) MessageProcessor.toJson(messagesJson, true, "messages").get("messages"));
+    }
+
+    /** Decodes a JSONArray of messages, as found in a received ClientRecord, into Message objects
+     * @param messagesJson The JSONArray of messages (may be null)
+     * @return An ArrayList of the decoded messages */
+    private static ArrayList<Message> messagesFromJson(JSONArray messagesJson) {
+        ArrayList<Message> decodedMessages = new ArrayList<Message>();
+        if (messagesJson != null) {
+            messagesJson.forEach((messageObj) -> {
+                Message message = Message.fromRecordJson((JSONObject) messageObj);
+                message.hold();
+                decodedMessages.add(message);
+            });
+        }
+        return decodedMessages;
+    }
+
+    /** Updates the messages that are to be delivered to clients. Messages we already hold only have their recipients
+     * read; a full Message is only decoded for messages we need to add.
+     * @param receivedMessages A JSONArray of messages, as found in a received ClientRecord (may be null)
+     * @param recipientsHere Tells if any of a message's recipients may be served through this server */
+    private void updateMessages(JSONArray receivedMessages, Predicate<ArrayList<String>> recipientsHere) {
         // 1. If we don't have a message and its token is > this.received_up_to, add it to our messages
         // 2. Update recipients lists
-
-        receivedMessages.forEach((msg) -> {
-            if (!undeliverable_messages.contains(msg) && msg.getToken() > this.received_up_to) {
-                addMessage(msg);
+        if (receivedMessages == null) {
+            return;
+        }
+        receivedMessages.forEach((messageObj) -> {
+            JSONObject messageJson = (JSONObject) messageObj;
+            Integer token = Message.tokenFromRecordJson(messageJson);
+            if (!hasUndeliverableMessage(token) && token > this.received_up_to) {
+                // Only take on messages with a recipient that may be served through this server, so servers with no
+                // recipients hold nothing for activities routed past them
+                if (recipientsHere.test(Message.recipientsFromRecordJson(messageJson))) {
+                    addMessage(Message.fromRecordJson(messageJson));
+                }
+                // Delivery must not wait for a message that will never be held here
+                else {
+                    skipToken(token);
+                }
             }
             // Otherwise, we have the message (unless we have already sent it to all recipients) and we can update its
             // recipients list (deleting recipients not included on the received message)
-            else {
-                updateMessage(msg);
+            else if (!updateMessage(token, Message.recipientsFromRecordJson(messageJson)) && isRoutedAway(token) &&
+                    recipientsHere.test(Message.recipientsFromRecordJson(messageJson))) {
+                // Delivery moved past it while it was routed elsewhere, and one of its recipients has since come here
+                addMessage(Message.fromRecordJson(messageJson));
             }
         });
     }
 
-    /** Update */
-    private boolean updateMessage(Message msg) {
+    /** Checks if a message with the given token is waiting in the undeliverable_messages queue
+     * @param token The token of the message
+     * @return true if an undeliverable message has that token, false otherwise */
+    private boolean hasUndeliverableMessage(Integer token) {
+        for (Message m : undeliverable_messages) {
+            if (m.getToken().equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Update the recipients of a message we hold, deleting the message if all recipients have received it
+     * @param token The token of the message
+     * @param receivedRecipients The recipients remaining on the received copy of the message
+     * @return true if we hold the message, false otherwise */
+    private boolean updateMessage(Integer token, ArrayList<String> receivedRecipients) {
         AtomicBoolean messageFound = new AtomicBoolean(false);
         ArrayList<Message> messagesToRemove = new ArrayList<Message>();
         this.messages.forEach((message) -> {
-            if (message.equals(msg)) {
+            if (message.getToken().equals(token)) {
                 messageFound.set(true);
-                boolean allDelivered = message.updateRecipients(msg.getRemainingRecipients());
+                boolean allDelivered = message.updateRecipients(receivedRecipients);
                 if (allDelivered) {
                     messagesToRemove.add(message);
                 }
             }
         });
-        this.messages.removeIf((m) -> messagesToRemove.contains(m));
+        this.messages.removeIf((m) -> messagesToRemove.contains(m) && release(m));
         return messageFound.get();
     }
 
@@ -247,9 +378,38 @@ public class ClientRecord {
     public void addMessage(Message msg) {
         Integer token = msg.getToken();
 
+        // We may already hold the message, e.g. if it was taken from another server's registry before it arrived
+        if (hasMessage(token) || hasUndeliverableMessage(token)) {
+            if (this.received_up_to + 1 == token) {
+                updateDeliverableMsgs(token);
+            }
+            return;
+        }
+        boolean wrapped = this.received_up_to.equals(Integer.MAX_VALUE) && token.equals(1);
+
+        // Message arrived after delivery moved past it. If it was never held here (its token was skipped as routed
+        // elsewhere), its recipients still waiting on it have not been sent it here, e.g. as they moved here from the
+        // server it was routed to, so it is delivered late rather than never. Otherwise it was already delivered here.
+        if (!wrapped && token <= this.received_up_to) {
+            if (!unmarkRoutedAway(token)) {
+                log.debug("ignoring message " + token + " from " + username + ", already delivered here");
+                return;
+            }
+            log.info("delivering message " + token + " from " + username + " late, after messages up to " +
+                     received_up_to + ", as it was routed elsewhere");
+            msg.hold();
+            messages.add(msg);
+            Collections.sort(this.messages);
+            return;
+        }
+        msg.hold();
+
         // Reset the token for the sender of the message as has reached the maximum integer
-        if (this.received_up_to.equals(Integer.MAX_VALUE) && token.equals(1)) {
+        if (wrapped) {
             this.received_up_to = 1;
+            if (routedAway != null) {
+                routedAway.clear();
+            }
             messages.add(msg);
         }
 
@@ -266,18 +426,123 @@ public class ClientRecord {
         }
     }
 
+    /** Skips the tokens that were never routed to this server. The server on the other end of a link sends the token
+     * of the last message it sent us from this client along with each message; if we have everything up to that token,
+     * the tokens between it and the new message went to other parts of the network and need not be waited for. They are
+     * remembered, so if one of them does arrive later (e.g. as a recipient moved here), it is still delivered.
+     * @param linkPrev The token of the previous message from this client sent on the link
+     * @param token The token of the message just received on the link */
+    public void skipUnroutedTokens(Integer linkPrev, Integer token) {
+        if (this.received_up_to >= linkPrev && this.received_up_to < token - 1) {
+            markRoutedAway(this.received_up_to + 1, token - 1);
+            updateDeliverableMsgs(token - 1);
+        }
+    }
+
+    /** Notes that a message will never be held here, so that delivery moves past its token once the messages before
+     * it have arrived
+     * @param token The token of the message */
+    private void skipToken(Integer token) {
+        if (this.received_up_to + 1 == token) {
+            markRoutedAway(token, token);
+            updateDeliverableMsgs(token);
+        }
+        else {
+            if (skippedTokens == null) {
+                skippedTokens = new TreeSet<Integer>();
+            }
+            skippedTokens.add(token);
+        }
+    }
+
+    /** Checks if a message with the given token is waiting to be delivered
+     * @param token The token of the message
+     * @return true if a deliverable message has that token, false otherwise */
+    private boolean hasMessage(Integer token) {
+        for (Message m : messages) {
+            if (m.getToken().equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Notes that delivery is moving past a range of tokens whose messages are not held here
+     * @param first The first token of the range
+     * @param last The last token of the range */
+    private void markRoutedAway(Integer first, Integer last) {
+        if (routedAway == null) {
+            routedAway = new TreeMap<Integer, Integer>();
+        }
+        // Join the range to the one just before it, as tokens are usually moved past in order
+        Map.Entry<Integer, Integer> before = routedAway.floorEntry(first);
+        if (before != null && before.getValue() >= first - 1) {
+            first = before.getKey();
+            last = Math.max(last, before.getValue());
+        }
+        routedAway.put(first, last);
+    }
+
+    /** Checks if delivery moved past a token without its message being held here
+     * @param token The token of the message
+     * @return true if the message was routed elsewhere, false otherwise */
+    private boolean isRoutedAway(Integer token) {
+        if (routedAway == null) {
+            return false;
+        }
+        Map.Entry<Integer, Integer> range = routedAway.floorEntry(token);
+        return range != null && range.getValue() >= token;
+    }
+
+    /** Notes that the message with a token that was routed elsewhere is now held here
+     * @param token The token of the message
+     * @return true if the token had been routed elsewhere, false otherwise */
+    private boolean unmarkRoutedAway(Integer token) {
+        if (!isRoutedAway(token)) {
+            return false;
+        }
+        Map.Entry<Integer, Integer> range = routedAway.floorEntry(token);
+        routedAway.remove(range.getKey());
+        if (range.getKey() < token) {
+            routedAway.put(range.getKey(), token - 1);
+        }
+        if (range.getValue() > token) {
+            routedAway.put(token + 1, range.getValue());
+        }
+        return true;
+    }
+
     /**
      * Check that we haven't already received messages with higher tokens -> update if we have
      * @param deliverableToken The token number of the message we can deliver next
      */
     private void updateDeliverableMsgs(Integer deliverableToken) {
         received_up_to = deliverableToken;
+        // Move on past the tokens that follow without a gap, whether waiting here or skipped
+        while (!received_up_to.equals(Integer.MAX_VALUE)) {
+            Integer next = received_up_to + 1;
+            if (skippedTokens != null && skippedTokens.remove(next)) {
+                markRoutedAway(next, next);
+                received_up_to = next;
+            }
+            else if (hasUndeliverableMessage(next)) {
+                received_up_to = next;
+            }
+            else {
+                break;
+            }
+        }
+        if (skippedTokens != null) {
+            skippedTokens.headSet(received_up_to, true).clear();
+        }
         ArrayList<Integer> tokensToMove = new ArrayList<Integer>();
         // Check if we can send previously undeliverable messages
         for (Message m : this.undeliverable_messages) {
             if (m.getToken() <= received_up_to) {
                 tokensToMove.add(m.getToken());
                 this.messages.add(m);
+                // Held here after all, e.g. as a range of tokens was skipped past it
+                unmarkRoutedAway(m.getToken());
             }
         }
         // Resort the message queue
@@ -319,19 +584,33 @@ public class ClientRecord {
     /** Deletes a given message from local storage
      * @param token The message token to be deleted */
     public void deleteMessage(Integer token) {
-        messages.removeIf(m -> m.getToken().equals(token));
+        messages.removeIf(m -> m.getToken().equals(token) && release(m));
     }
 
     /** Deletes a series of messages from local storage
      * @param tokens The tokens of the messages to be deleted */
     private void deleteMessages(ArrayList<Integer> tokens) {
-        messages.removeIf(m -> tokens.contains(m.getToken()));
+        messages.removeIf(m -> tokens.contains(m.getToken()) && release(m));
     }
 
     /** Deletes a series undeliverable messages from local storage
      * @param tokens The tokens of messages to be deleted */
     private void deleteUndeliverableMessages(ArrayList<Integer> tokens) {
-        undeliverable_messages.removeIf(m -> tokens.contains(m.getToken()));
+        undeliverable_messages.removeIf(m -> tokens.contains(m.getToken()) && release(m));
+    }
+
+    /** Releases a message that is being deleted from the spool's accounting
+     * @param m The message
+     * @return true, so it can be used in a removeIf condition */
+    private static boolean release(Message m) {
+        m.release();
+        return true;
+    }
+
+    /** Releases every message held, as the record is being dropped */
+    public void releaseMessages() {
+        messages.forEach(Message::release);
+        undeliverable_messages.forEach(Message::release);
     }
 
     /**
@@ -379,10 +658,67 @@ public class ClientRecord {
     }
 
 
+    /** Get the anonymous users still waiting on any of this client's messages
+     * @return The usernames of the anonymous recipients */
+    public HashSet<String> getAnonymousRecipients() {
+        HashSet<String> anonymous = new HashSet<String>();
+        for (ArrayList<Message> list : Arrays.asList(messages, undeliverable_messages)) {
+            for (Message m : list) {
+                for (String recipient : m.getRemainingRecipients()) {
+                    if (MessageProcessor.isAnonymous(recipient)) {
+                        anonymous.add(recipient);
+                    }
+                }
+            }
+        }
+        return anonymous;
+    }
+
+    /** Get the size of the messages held for this client until they have been delivered
+     * @return The number of characters in the held messages */
+    public long getPendingBytes() {
+        long bytes = 0;
+        for (Message m : messages) {
+            bytes += m.getSize();
+        }
+        for (Message m : undeliverable_messages) {
+            bytes += m.getSize();
+        }
+        return bytes;
+    }
+
     public boolean hasMessagesToDeliver() {
         return (messages.size() > 0 || undeliverable_messages.size() > 0);
     }
 
+    /** Summarises the parts of the record a merge can change, so a merge that changed nothing can be told apart
+     * without serialising the record
+     * @return A value that changes with the login token, message tokens, or number of recipients left to receive each
+     * message */
+    public long getMergeFingerprint() {
+        long fingerprint = Objects.hash(logged_in, next_token, received_up_to, delete_after_delivering);
+        for (Message m : messages) {
+            fingerprint = fingerprint * 31 + m.getToken() * 17L + m.getRemainingRecipients().size();
+        }
+        for (Message m : undeliverable_messages) {
+            fingerprint = fingerprint * 37 + m.getToken() * 17L + m.getRemainingRecipients().size();
+        }
+        return fingerprint;
+    }
+
+
+    /** Get the generation of the last snapshot this record was copied into, or carried over into undecoded
+     * @return The generation, or 0 if it has not been */
+    public long getCopiedForSnapshot() {
+        return copiedForSnapshot;
+    }
+
+    /** Notes that this record has been copied into a snapshot, so changes to it from now on are left to the
+     * write-ahead log
+     * @param generation The generation of the snapshot */
+    public void setCopiedForSnapshot(long generation) {
+        this.copiedForSnapshot = generation;
+    }
 
     // ------------------------------ COMPARING RECORDS ------------------------------
     @Override
@@ -3,125 +3,167 @@ package activitystreamer.server;
 import activitystreamer.util.LoginException;
 import activitystreamer.util.RecordAccessException;
 import org.json.simple.JSONArray;
+import com.google.gson.JsonIOException;
 import org.json.simple.JSONObject;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-/** This class stores and handles all ClientRecords a given server knows about. */
+
+/** This class stores and handles all ClientRecords a given server knows about. Registered users are replicated to
+ * every server through the registry carried in SERVER_ANNOUNCE and the authentication handshake. Anonymous users are
+ * kept in a separate table that is never sent anywhere: each server records the anonymous users it hears about, and
+ * the server an anonymous user is logged in to answers for them (see AnonymousEpochs). */
 public class ClientRegistry {
+    private static final Logger log = LogManager.getLogger();
 
     private static final Integer UPDATE_FAILED = -2;
 
     private ConcurrentHashMap<String, ClientRecord> clientRecords;
+    private ConcurrentHashMap<String, ClientRecord> anonRecords;
+    private ConcurrentHashMap<String, Set<String>> anonRecipients; // anonymous user -> senders with messages for them
+    private WriteAheadLog wal; // changes to registered users' records, or null if they are not logged
+    private RegistrySnapshot snapshot; // records loaded at startup that have not been decoded yet, or null if none
+    private RegistrySnapshot.Cut cut; // the snapshot being copied, or null if none
+    private Iterator<Map.Entry<String, ClientRecord>> uncopied; // the records the snapshot being copied has still to visit
+    private HashSet<String> changedBeforeCopy; // users whose records changed after the cut, before they were copied
 
     // Client Records can either start empty, or they can be provided
     public ClientRegistry() {
-        this.clientRecords = new ConcurrentHashMap<String, ClientRecord>();
+        this(new ConcurrentHashMap<String, ClientRecord>());
     }
 
     public ClientRegistry(ConcurrentHashMap<String, ClientRecord> providedClientRecords) {
         this.clientRecords = providedClientRecords;
+        this.anonRecords = new ConcurrentHashMap<String, ClientRecord>();
+        this.anonRecipients = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    /** Get the table a user's record belongs in
+     * @param user The username of the client
+     * @return The anonymous table for anonymous users, otherwise the replicated registry */
+    private ConcurrentHashMap<String, ClientRecord> recordsFor(String user) {
+        if (MessageProcessor.isAnonymous(user)) {
+            return anonRecords;
+        }
+        if (snapshot != null) {
+            materialize(user);
+        }
+        return clientRecords;
     }
 
 
     // Receive a JSONObject msg labeled "CLIENT_REGISTRY" and has a field "registry" & use it to update existing records
 
     /**
-     *
+     * Merges the registered users another server knows about into ours. Anonymous users in the given registry are
+     * ignored, as they are not replicated.
      *
      * Assume:
      *  - Has a "command" field labeled "CLIENT_REGISTRY"
      *  - Has a "registry" field with a valid JSONArray (this is ensured anyway)
      *  - TCP Ensures error-free data transfer, so we can assume all messages are well formed (as we created them)
      * @param registry Contains all client records another server has, which have been passed to us upon authentication
+     * @param recipientsHere Tells if any of a message's recipients may be served through this server, so it should
+     *                       hold the message rather than leave it to the servers it is routed to
      */
-    public void updateRecords(JSONArray registry) {
-
-        // For comparing registries later
-        ConcurrentHashMap<String, ClientRecord> givenRegistry = new ConcurrentHashMap<String, ClientRecord>();
+    public void updateRecords(JSONArray registry, Predicate<ArrayList<String>> recipientsHere) {
 
         // Iterate through Array
         registry.forEach((clientRecordObject) -> {
 
-            // Convert each record into a JSONObject
+            // Each record is merged straight from its parsed JSONObject; a ClientRecord is only built for new users
             JSONObject clientRecordJson = (JSONObject) clientRecordObject;
             String username = clientRecordJson.get("username").toString();
-            ClientRecord givenRecord = new ClientRecord(clientRecordJson);
-            givenRegistry.put(username, givenRecord);
+
+            // Anonymous users are never replicated, so ignore any that are sent to us
+            if (MessageProcessor.isAnonymous(username)) {
+                return;
+            }
 
             // Update existing record
             if (userExists(username)) {
                 ClientRecord oldClientRecord = clientRecords.get(username);
-                Integer loginToken = oldClientRecord.getLoggedInToken();
-                if (MessageProcessor.isAnonymous(username) && loginToken >= 3) {
-                    removeUser(username);
+                // Update if the record has the correct secret
+                if (oldClientRecord.sameSecret(clientRecordJson)) {
+                    // Most announces bring nothing new, so only a merge that changed the record is logged
+                    long before = (wal == null ? 0 : oldClientRecord.getMergeFingerprint());
+                    oldClientRecord.updateRecord(clientRecordJson, recipientsHere);
+                    indexAnonymousRecipients(username, oldClientRecord.getAnonymousRecipients());
+                    if (wal != null && oldClientRecord.getMergeFingerprint() != before) {
+                        logRecord(username, oldClientRecord);
+                    }
                 }
+                // Conflicting ClientRecord username & secret combination. Conflict created during network partition.
+                // We delete both.
                 else {
-                    // Update if the record has the correct secret
-                    if (oldClientRecord.sameSecret(clientRecordJson)) {
-                        oldClientRecord.updateRecord(clientRecordJson);
-                    }
-                    // Conflicting ClientRecord username & secret combination. Conflict created during network partition.
-                    // We delete both.
-                    else {
-                        clientRecords.remove(username);
-                    }
+                    clientRecords.remove(username).releaseMessages();
+                    log(logEntry("DROP", username));
                 }
             }
             // Or create a new record
             else {
-                if (!givenRecord.anonToDelete()) {
-                    addRecord(username, givenRecord);
+                if (!((boolean) clientRecordJson.get("delete_after_delivering"))) {
+                    ClientRecord record = new ClientRecord(clientRecordJson);
+                    addRecord(username, record);
+                    indexAnonymousRecipients(username, record.getAnonymousRecipients());
                 }
             }
         });
-        // If we have an anon record that the given registry does not have & the user isn't logged in locally, send an
-        // ANON_CHECK & delete the record
-        clientRecords.forEach((user, record) -> {
-            if (MessageProcessor.isAnonymous(user) && !givenRegistry.containsKey(user) && record.getLoggedInToken() > 1
-                    && !SessionManager.getInstance().clientLoggedInLocally(user, record.getSecret())) {
-
-                // Convert the record into a JSONObject
-                String recordJsonString = MessageProcessor.getGson().toJson(record);
-                JSONObject recordJson = MessageProcessor.toJson(recordJsonString, false, "");
-                String anonCheckMsg = MessageProcessor.getAnonCheck(recordJson);
-
-                // Bcast ANON_CHECK & delete user from the registry (added back if & when we get an ANON_SUCCESS msg)
-                SessionManager.getInstance().serverBroadcast(anonCheckMsg);
-                removeUser(user);
-            }
-        });
     }
 
     /** Adds a ClientRecord some other server in the network has, which we do not have in local storage yet
      * @param user The username of the client
      * @param clientRecord The ClientRecord to be added to storage */
     public void addRecord(String user, ClientRecord clientRecord) {
-        clientRecords.put(user, clientRecord);
+        ClientRecord replaced = recordsFor(user).put(user, clientRecord);
+        if (replaced != null && replaced != clientRecord) {
+            replaced.releaseMessages();
+        }
+        logRecord(user, clientRecord);
         System.out.println("            Added " + user + " to the registry: " + clientRecords);
     }
 
     /**
-     * Retrieve the server's Client Registry in the form of a JSONArray.
+     * Writes the server's Client Registry out as a JSON array. Only registered users are included. The records are
+     * converted one at a time, and the contents of spooled messages are read back one message at a time, so the
+     * registry is never held in memory as a whole.
      *
      * Use GSON to convert ClientRecords to JSON
      * https://github.com/google/gson/blob/master/UserGuide.md#TOC-Object-Examples
      *
-     * @return JSONObject - containing the converted Client Registry. Null if GSON library broken?
+     * @param out The writer to write the registry to
+     * @throws IOException If the writer cannot be written to
      */
-    public JSONObject getRecordsJson() {
-
-        // Place ClientRecords into an array
-        ArrayList<ClientRecord> recordArray = new ArrayList<ClientRecord>();
-        clientRecords.forEach((username, record) -> recordArray.add(record));
-
-        // Convert ArrayList into JSONArray String
-        String jsonArrayString = MessageProcessor.getGson().toJson(recordArray);
-
-        // Returns a JSONObject
-        return MessageProcessor.toJson(jsonArrayString, true, "registry");
+    public void writeRecordsJson(Writer out) throws IOException {
+        materializeAll();
+        out.write('[');
+        boolean first = true;
+        for (ClientRecord record : clientRecords.values()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            try {
+                MessageProcessor.getGson().toJson(record, ClientRecord.class, out);
+            }
+            catch (JsonIOException e) {
+                throw new IOException(e);
+            }
+        }
+        out.write(']');
     }
 
     /** A new client has initiated a direct connection with this server --> create a new record and add to registry
@@ -207,7 +249,13 @@ public class ClientRegistry {
         }
         ClientRecord userRecord = getClientRecord(user);
         if (userRecord != null) {
-            return userRecord.updateLoggedIn(tokenUsed, loginContext);
+            Integer token = userRecord.updateLoggedIn(tokenUsed, loginContext);
+            JSONObject entry = logEntry("LOGIN", user);
+            if (entry != null && token != Integer.MIN_VALUE) {
+                entry.put("token", token);
+                log(entry);
+            }
+            return token;
         }
         return Integer.MIN_VALUE;
     }
@@ -247,20 +295,32 @@ public class ClientRegistry {
      */
     public ArrayList<String> getLoggedInUsers() {
         ArrayList<String> loggedInUsers = new ArrayList<String>();
+        materializeAll();
         this.clientRecords.forEach((username, clientRecord) -> {
             if (clientRecord.loggedIn()) {
                 loggedInUsers.add(username);
             }
         });
+        this.anonRecords.forEach((username, clientRecord) -> {
+            if (clientRecord.loggedIn()) {
+                loggedInUsers.add(username);
+            }
+        });
 
         return loggedInUsers;
     }
 
+    /** Get the number of registered users we hold records for
+     * @return The number of registered users */
+    public synchronized int getRegisteredUserCount() {
+        return clientRecords.size() + (snapshot == null ? 0 : snapshot.size());
+    }
+
     /** Check a user exists in local storage
      * @param user The username of the client we are searching for
      * @return true if client exists in storage, false otherwise */
     public boolean userExists(String user) {
-        return clientRecords.containsKey(user);
+        return recordsFor(user).containsKey(user);
     }
 
 
@@ -271,14 +331,16 @@ public class ClientRegistry {
      * @return true if client removed from records, false otherwise (client record did not exist)
      */
     public boolean removeUser(String username) {
-        if (clientRecords.containsKey(username)) {
-            if (!clientRecords.get(username).hasMessagesToDeliver()) {
+        log(logEntry("REMOVE", username));
+        ConcurrentHashMap<String, ClientRecord> records = recordsFor(username);
+        if (records.containsKey(username)) {
+            if (!records.get(username).hasMessagesToDeliver()) {
                 System.out.println("REMOVING ANON CLIENTRECORD ->" + username);
-                clientRecords.remove(username);
+                records.remove(username);
                 return true;
             }
             else {
-                clientRecords.get(username).deleteAfterMsgsDelivered();
+                records.get(username).deleteAfterMsgsDelivered();
             }
         }
         return false;
@@ -308,6 +370,15 @@ public class ClientRegistry {
      * @param loggedInUsers The current list of all user's logged into the system at the time the message was sent
      * @return The token number of the message */
     public Integer addMsgToRegistry(String sender, JSONObject activityMsg, ArrayList<String> loggedInUsers) {
+        JSONObject entry = logEntry("ACTIVITY", sender);
+        if (entry != null) {
+            JSONArray recipients = new JSONArray();
+            recipients.addAll(loggedInUsers);
+            entry.put("activity", activityMsg);
+            entry.put("recipients", recipients);
+            log(entry);
+        }
+        indexAnonymousRecipients(sender, loggedInUsers);
         return getClientRecord(sender).createAndAddMessage(activityMsg, loggedInUsers);
     }
 
@@ -315,56 +386,76 @@ public class ClientRegistry {
      * @param msg The message to be added/stored
      * @param user The client to have the message stored against */
     public void addMessageToRegistry(Message msg, String user) {
+        JSONObject entry = logEntry("MESSAGE", user);
+        if (entry != null) {
+            entry.put("message", msg.getServerMessage());
+            log(entry);
+        }
+        indexAnonymousRecipients(user, msg.getRemainingRecipients());
         getClientRecord(user).addMessage(msg);
     }
 
+    /** Skips the tokens of a sender's messages that were never routed to this server (see
+     * ClientRecord.skipUnroutedTokens)
+     * @param sender The client who sent the messages
+     * @param linkPrev The token of the previous message from the sender sent on the link
+     * @param token The token of the message just received on the link */
+    public void skipUnroutedTokens(String sender, Integer linkPrev, Integer token) {
+        JSONObject entry = logEntry("SKIP", sender);
+        if (entry != null) {
+            entry.put("link_prev", linkPrev);
+            entry.put("token", token);
+            log(entry);
+        }
+        getClientRecord(sender).skipUnroutedTokens(linkPrev, token);
+    }
+
     /** Sends any messages queued for a given client
      * @param con The connection to send the messages on
      * @param recipient The client who the messages are to be sent to
-     * @return An ArrayList of message acknowledgements to be broadcast across the network, indicating the messages
-     * have been delivered. */
-    public ArrayList<JSONObject> messageFlush(Connection con, String recipient) {
-
-        ArrayList<JSONObject> ackMessages = new ArrayList<JSONObject>();
-
-        // Send any messages available for delivery to the client, and generate an acknowledgement message
-        // if delivered
-        clientRecords.forEach((sender, senderRecord) -> {
-            JSONObject ackMessage = sendWaitingMessages(con, recipient, sender);
-            if (ackMessage != null) {
-                // Add the acknowledgement messages to the array list
-                ackMessages.add(ackMessage);
-            }
-        });
-        return ackMessages;
+     * @return A map of each sender to the acknowledgements generated for their messages, to be batched and broadcast
+     * across the network, indicating the messages have been delivered. */
+    public HashMap<String, HashMap<Integer, ArrayList<String>>> messageFlush(Connection con, String recipient) {
+
+        HashMap<String, HashMap<Integer, ArrayList<String>>> senderAcks =
+                new HashMap<String, HashMap<Integer, ArrayList<String>>>();
+
+        // Send any messages available for delivery to the client, and generate acknowledgements if delivered
+        for (ConcurrentHashMap<String, ClientRecord> records : allRecords()) {
+            records.forEach((sender, senderRecord) -> {
+                HashMap<Integer, ArrayList<String>> acks = sendWaitingMessages(con, recipient, sender);
+                if (!acks.isEmpty()) {
+                    senderAcks.put(sender, acks);
+                }
+            });
+        }
+        return senderAcks;
     }
 
     /** Get the token number of a particular client
      * @param client The client we want the token number of
      * @return The token number */
     public Integer getClientToken(ConnectedClient client) {
-        ClientRecord tmp = clientRecords.get(client.getUsername());
+        ClientRecord tmp = getClientRecord(client.getUsername());
         return tmp.getToken();
     }
 
     /** Send any messages queue to a client
      * @param con The connection to send the messages on
      * @param recipient The username of the client to recieve the messages
-     * @param sender The username of the client who sent the messages */
-    public JSONObject sendWaitingMessages(Connection con, String recipient, String sender) {
+     * @param sender The username of the client who sent the messages
+     * @return A map of message tokens to the recipient, for each message delivered (empty if none were delivered) */
+    public HashMap<Integer, ArrayList<String>> sendWaitingMessages(Connection con, String recipient, String sender) {
         ClientRecord senderRecord = getClientRecord(sender);
 
         // Store any acknowlegement messages generated, to be broadcast across the network
         HashMap<Integer, ArrayList<String>> acks = sendWaitingMessages(con, recipient, sender, senderRecord);
 
-        // Register Sent Message and add ACK messages, if any
+        // Register Sent Message, if any
         if (!acks.isEmpty()) {
             registerAcks(acks, sender);
-            JSONObject ackMessage = MessageProcessor.getStartAckMsg(sender);
-            ackMessage.put("messages", acks);
-            return ackMessage;
         }
-        return null;
+        return acks;
     }
 
     /** Send any waiting messages queued for a client
@@ -416,9 +507,11 @@ public class ClientRegistry {
      * checked. Thus, we do not need to check if senderRecord is null, we can assume its existence.
      * @param clientConnections The connections to send the messages to
      * @param sender The username of the client who sent the message
-     * @return A JSONObject containing all acknowlegement messages created by this process
+     * @return A map of message tokens to the recipients who received that message, for every message delivered by
+     * this process (empty if none were delivered)
      */
-    public JSONObject messageFlush(HashMap<String, Connection> clientConnections, String sender) {
+    public HashMap<Integer, ArrayList<String>> messageFlush(HashMap<String, Connection> clientConnections,
+                                                           String sender) {
 
         // To collect tokens and clients who received messages of that token number from the sender
         HashMap<Integer, ArrayList<String>> acks = new HashMap<Integer, ArrayList<String>>();
@@ -466,25 +559,20 @@ public class ClientRegistry {
             }
         });
 
-        // Return null if no messages sent
-        if (acks.isEmpty()) {
-            return null;
-        }
-
         // Report the messages as having been sent
-        registerAcks(acks, sender);
-
-        // Return the ACKs, to send to servers!
-        JSONObject ackMessage = MessageProcessor.getStartAckMsg(sender);
-        ackMessage.put("messages", acks);
+        if (!acks.isEmpty()) {
+            registerAcks(acks, sender);
+        }
 
-        return ackMessage;
+        // Return the ACKs, to be batched and sent to servers!
+        return acks;
     }
 
     /**
      * Called by messageFlush directly above (sender exists), by sendWaitingMessages used by the first messageFlush
-     * (sender exists prior to call), and by Responder's MSG_ACKS, which MAY include a sender that isn't yet in our
-     * registry. In this case we must ignore MSG_ACKS and allow SERVER_ANNOUNCE to update the Message's recipient list.
+     * (sender exists prior to call), and by Responder's MSG_ACKS and MSG_ACKS_BATCH, which MAY include a sender that
+     * isn't yet in our registry. In this case we must ignore the ACKs and allow SERVER_ANNOUNCE to update the Message's
+     * recipient list.
      * @param acks The HashMap of all acknowlegement messages to be sent
      * @param sender The username of the client who sent all the messages that were delivered
      */
@@ -494,6 +582,17 @@ public class ClientRegistry {
 
         // Report the messages as having been sent
         if (userExists(sender)) {
+            JSONObject entry = logEntry("ACKS", sender);
+            if (entry != null) {
+                JSONObject acksJson = new JSONObject();
+                acks.forEach((token, recipients) -> {
+                    JSONArray recipientsJson = new JSONArray();
+                    recipientsJson.addAll(recipients);
+                    acksJson.put(token.toString(), recipientsJson);
+                });
+                entry.put("acks", acksJson);
+                log(entry);
+            }
             System.out.println(sender + " exists!");
             ClientRecord senderRecord = getClientRecord(sender);
             acks.forEach((token, recipients) -> senderRecord.receivedMessage(recipients, token));
@@ -505,29 +604,398 @@ public class ClientRegistry {
         }
     }
 
-    /** Remove a given client from any messages that have marked them as a recipient
+    /** Remove a given client from any messages that have marked them as a recipient. For an anonymous client only the
+     * senders known to have messages for them are visited.
      * @param user The username of the client to be removed */
     public void clearRecipientFromAllMsgs(String user) {
-        clientRecords.forEach((sender, senderRecord) -> {
-           senderRecord.clearRecipientFromAllMsgs(user);
+        // Logged even for an anonymous user, as the messages being changed may be registered users'
+        if (wal != null) {
+            JSONObject entry = new JSONObject();
+            entry.put("op", "CLEAR");
+            entry.put("username", user);
+            log(entry);
+        }
+        if (MessageProcessor.isAnonymous(user)) {
+            Set<String> senders = anonRecipients.remove(user);
+            if (senders != null) {
+                for (String sender : senders) {
+                    ClientRecord senderRecord = getClientRecord(sender);
+                    if (senderRecord != null) {
+                        senderRecord.clearRecipientFromAllMsgs(user);
+                    }
+                }
+            }
+            return;
+        }
+        for (ConcurrentHashMap<String, ClientRecord> records : allRecords()) {
+            records.forEach((sender, senderRecord) -> senderRecord.clearRecipientFromAllMsgs(user));
+        }
+    }
+
+    /** Records that a sender has messages waiting for some recipients, so they can be cleared quickly if an anonymous
+     * recipient leaves
+     * @param sender The username of the client who sent the messages
+     * @param recipients The recipients of the messages; only anonymous ones are recorded */
+    private void indexAnonymousRecipients(String sender, Collection<String> recipients) {
+        for (String recipient : recipients) {
+            if (MessageProcessor.isAnonymous(recipient)) {
+                anonRecipients.computeIfAbsent(recipient, (r) -> ConcurrentHashMap.newKeySet()).add(sender);
+            }
+        }
+    }
+
+    // ------------------------------ ANONYMOUS USERS ------------------------------
+
+    /** Get the anonymous users logged in to a given server
+     * @param ownerId The id of the server
+     * @return The usernames and secrets of the server's anonymous users */
+    public HashMap<String, String> getAnonymousUsers(String ownerId) {
+        HashMap<String, String> users = new HashMap<String, String>();
+        anonRecords.forEach((username, record) -> {
+            if (ownerId.equals(MessageProcessor.getAnonymousOwner(username)) && record.loggedIn() &&
+                    !record.anonToDelete()) {
+                users.put(username, record.getSecret());
+            }
+        });
+        return users;
+    }
+
+    /** Replaces what we know of a server's anonymous users with the list it has given us. Users missing from our table
+     * are added and logged in, and users it no longer has are removed, along with any deliveries waiting for them.
+     * @param ownerId The id of the server
+     * @param users The usernames and secrets of the server's anonymous users */
+    public void syncAnonymousUsers(String ownerId, HashMap<String, String> users) {
+        users.forEach((username, secret) -> {
+            if (!userExists(username)) {
+                addFreshClient(username, secret);
+                logUser(true, username, secret, "Context: syncing anonymous users of " + ownerId, Integer.MIN_VALUE);
+            }
+        });
+        getAnonymousUsers(ownerId).forEach((username, secret) -> {
+            if (!users.containsKey(username)) {
+                forgetAnonymousUser(username);
+            }
+        });
+    }
+
+    /** Removes the anonymous users of servers that are no longer part of the network. Their connections went with
+     * their server, so they will never log out themselves.
+     * @param liveServers The ids of every server still on the network, including our own
+     * @return The ids of the servers whose users were removed */
+    public HashSet<String> forgetAnonymousUsersExcept(Collection<String> liveServers) {
+        HashSet<String> goneServers = new HashSet<String>();
+        anonRecords.forEach((username, record) -> {
+            String ownerId = MessageProcessor.getAnonymousOwner(username);
+            if (ownerId != null && !liveServers.contains(ownerId) && !record.anonToDelete()) {
+                goneServers.add(ownerId);
+                forgetAnonymousUser(username);
+            }
         });
+        return goneServers;
+    }
+
+    /** Removes an anonymous user, and any deliveries waiting for them
+     * @param username The username of the anonymous user */
+    private void forgetAnonymousUser(String username) {
+        removeUser(username);
+        clearRecipientFromAllMsgs(username);
     }
 
     // ------------------------------ GENERAL GETTERS & SETTERS ------------------------------
 
+    /** Get both tables of records, registered users first
+     * @return The replicated registry and the anonymous table */
+    private ArrayList<ConcurrentHashMap<String, ClientRecord>> allRecords() {
+        ArrayList<ConcurrentHashMap<String, ClientRecord>> all = new ArrayList<>();
+        materializeAll();
+        all.add(clientRecords);
+        all.add(anonRecords);
+        return all;
+    }
+
+    /** Get the size of the messages held in all records until they have been delivered
+     * @return The number of characters in the held messages */
+    public long getPendingBytes() {
+        long bytes = 0;
+        for (ConcurrentHashMap<String, ClientRecord> records : allRecords()) {
+            for (ClientRecord record : records.values()) {
+                bytes += record.getPendingBytes();
+            }
+        }
+        return bytes;
+    }
+
+    // ------------------------------ WRITE-AHEAD LOG ------------------------------
+
+    /** Starts logging changes to registered users' records
+     * @param wal The log to append the changes to */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /** Creates an entry for a change to a user's record, if changes to it are logged. Anonymous users are not logged:
+     * their records are local to a server, and their sessions do not outlive it.
+     * @param op The kind of change
+     * @param user The username of the client whose record is changing
+     * @return The entry, to add the details of the change to, or null if the change is not logged */
+    private JSONObject logEntry(String op, String user) {
+        if (wal == null || MessageProcessor.isAnonymous(user)) {
+            return null;
+        }
+        JSONObject entry = new JSONObject();
+        entry.put("op", op);
+        entry.put("username", user);
+        return entry;
+    }
+
+    /** Appends an entry to the write-ahead log
+     * @param entry The entry, or null if the change is not logged */
+    private void log(JSONObject entry) {
+        log(entry, null);
+    }
+
+    /** Appends an entry to the write-ahead log, with a whole record added to it as it is written
+     * @param entry The entry, or null if the change is not logged
+     * @param record The record to add to the entry, or null for none */
+    private void log(JSONObject entry, ClientRecord record) {
+        if (entry != null) {
+            if (!"SESSION".equals(entry.get("op"))) {
+                changedDuringCut(entry.get("username").toString());
+            }
+            if (record == null) {
+                wal.append(entry);
+            }
+            else {
+                wal.append(entry, "record", record);
+            }
+        }
+    }
+
+    /** Logs the whole of a user's record, replacing whatever was logged for it before. The record is written straight
+     * into the log, reading spooled messages back one at a time.
+     * @param user The username of the client
+     * @param record The client's record */
+    private void logRecord(String user, ClientRecord record) {
+        log(logEntry("RECORD", user), record);
+    }
+
+    /** Starts from the records of a snapshot. They are decoded as they are first asked for, or all at once the first
+     * time every record is needed, e.g. to announce the registry.
+     * @param snapshot The snapshot, mapped into memory */
+    public synchronized void loadSnapshot(RegistrySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /** Decodes a user's record from the snapshot, if it is still held there
+     * @param user The username of the client */
+    private synchronized void materialize(String user) {
+        if (snapshot == null) {
+            return;
+        }
+        ClientRecord record = snapshot.load(user);
+        if (record != null) {
+            if (cut != null) {
+                // The snapshot being copied carries this record over undecoded
+                record.setCopiedForSnapshot(cut.getGeneration());
+            }
+            clientRecords.putIfAbsent(user, record);
+            indexAnonymousRecipients(user, record.getAnonymousRecipients());
+        }
+        if (snapshot.size() == 0) {
+            snapshot = null;
+        }
+    }
+
+    /** Decodes every record still held by the snapshot */
+    private synchronized void materializeAll() {
+        if (snapshot == null) {
+            return;
+        }
+        for (String user : new ArrayList<String>(snapshot.getUsernames())) {
+            materialize(user);
+        }
+    }
+
+    /** Starts a snapshot of the registry as it stands, at the point the write-ahead log was rotated. Records still
+     * undecoded in the snapshot we started from are carried over as they are. The rest are not copied here but shard
+     * by shard by copySnapshotShard, while changes carry on in between: a record that changes before its turn is left
+     * out of the snapshot, and its whole record is logged instead by closeCut. Changes must be held off while this
+     * runs, and while each shard is copied.
+     * @param generation The write-ahead log generation that follows the snapshot
+     * @return The cut to write once every shard has been copied */
+    public synchronized RegistrySnapshot.Cut openCut(long generation) {
+        cut = new RegistrySnapshot.Cut(generation, snapshot);
+        uncopied = clientRecords.entrySet().iterator();
+        changedBeforeCopy = new HashSet<String>();
+        return cut;
+    }
+
+    /** Copies the next shard of records into the snapshot being taken, skipping those that have changed since the
+     * cut. Changes must be held off while this runs.
+     * @param shardSize The number of records to visit
+     * @return true if there are records left to copy, false once they have all been visited */
+    public synchronized boolean copySnapshotShard(int shardSize) {
+        for (int i = 0; i < shardSize && uncopied.hasNext(); i++) {
+            Map.Entry<String, ClientRecord> entry = uncopied.next();
+            ClientRecord record = entry.getValue();
+            if (changedBeforeCopy.contains(entry.getKey()) || record.getCopiedForSnapshot() == cut.getGeneration()) {
+                continue;
+            }
+            cut.add(new ClientRecord(record));
+            record.setCopiedForSnapshot(cut.getGeneration());
+        }
+        return uncopied.hasNext();
+    }
+
+    /** Ends the snapshot being taken. The records left out of it because they changed before they were copied are
+     * logged whole, so that replaying the log after the snapshot rebuilds them; the log must be on disk before the
+     * snapshot is. Changes must be held off while this runs. */
+    public synchronized void closeCut() {
+        if (cut == null) {
+            return;
+        }
+        HashSet<String> changed = changedBeforeCopy;
+        cut = null;
+        uncopied = null;
+        changedBeforeCopy = null;
+        for (String user : changed) {
+            ClientRecord record = clientRecords.get(user);
+            if (record != null) {
+                logRecord(user, record);
+            }
+        }
+    }
+
+    /** Notes a logged change to a user's record, if a snapshot is being copied and has not copied the record yet
+     * @param user The username of the client */
+    private void changedDuringCut(String user) {
+        if (cut == null || MessageProcessor.isAnonymous(user)) {
+            return;
+        }
+        ClientRecord record = clientRecords.get(user);
+        if (record == null || record.getCopiedForSnapshot() != cut.getGeneration()) {
+            changedBeforeCopy.add(user);
+        }
+    }
+
+    /** Records that a registered user has logged in to this server. If we restart while they are still logged in,
+     * their connection went with us and they are logged out on recovery.
+     * @param user The username of the client
+     * @param token The client's login token */
+    public void localSessionOpened(String user, Integer token) {
+        JSONObject entry = logEntry("SESSION", user);
+        if (entry != null) {
+            entry.put("token", token);
+            log(entry);
+        }
+    }
+
+    /** Rebuilds the registry from the entries of a write-ahead log, by making each logged change again. This must be
+     * done before the log is attached, so the changes are not logged a second time.
+     * @param entries The entries of the log, in the order they were appended
+     * @return The users who were logged in to this server when the log was written, mapped to their login token */
+    public HashMap<String, Integer> replay(ArrayList<JSONObject> entries) {
+        HashMap<String, Integer> sessions = new HashMap<String, Integer>();
+        String replayContext = "Context: replaying the write-ahead log (in ClientRegistry)";
+        for (JSONObject entry : entries) {
+            String user = entry.get("username").toString();
+            ClientRecord record = getClientRecord(user);
+            switch (entry.get("op").toString()) {
+                case "RECORD":
+                    ClientRecord logged = new ClientRecord((JSONObject) entry.get("record"));
+                    if (record != null) {
+                        record.releaseMessages();
+                    }
+                    clientRecords.put(user, logged);
+                    indexAnonymousRecipients(user, logged.getAnonymousRecipients());
+                    break;
+                case "DROP":
+                    if (record != null) {
+                        clientRecords.remove(user).releaseMessages();
+                    }
+                    break;
+                case "LOGIN":
+                    if (record != null) {
+                        record.updateLoggedIn(((Number) entry.get("token")).intValue(), replayContext);
+                    }
+                    break;
+                case "SESSION":
+                    sessions.put(user, ((Number) entry.get("token")).intValue());
+                    break;
+                case "ACTIVITY":
+                    if (record != null) {
+                        ArrayList<String> recipients = new ArrayList<String>();
+                        ((JSONArray) entry.get("recipients")).forEach((r) -> recipients.add(r.toString()));
+                        addMsgToRegistry(user, (JSONObject) entry.get("activity"), recipients);
+                    }
+                    break;
+                case "MESSAGE":
+                    if (record != null) {
+                        addMessageToRegistry(new Message((JSONObject) entry.get("message")), user);
+                    }
+                    break;
+                case "SKIP":
+                    if (record != null) {
+                        record.skipUnroutedTokens(((Number) entry.get("link_prev")).intValue(),
+                                                  ((Number) entry.get("token")).intValue());
+                    }
+                    break;
+                case "ACKS":
+                    HashMap<Integer, ArrayList<String>> acks = new HashMap<Integer, ArrayList<String>>();
+                    ((JSONObject) entry.get("acks")).forEach((token, recipientsJson) -> {
+                        ArrayList<String> recipients = new ArrayList<String>();
+                        ((JSONArray) recipientsJson).forEach((r) -> recipients.add(r.toString()));
+                        acks.put(Integer.parseInt(token.toString()), recipients);
+                    });
+                    registerAcks(acks, user);
+                    break;
+                case "REMOVE":
+                    removeUser(user);
+                    break;
+                case "CLEAR":
+                    clearRecipientFromAllMsgs(user);
+                    break;
+                default:
+                    log.warn("unknown write-ahead log entry, skipping: " + entry);
+            }
+        }
+        return sessions;
+    }
+
+    /** Logs out the users who were logged in to this server when it stopped, as their connections are gone. A user is
+     * left alone if their login token has moved on since, e.g. they logged in again elsewhere.
+     * @param sessions The users who were logged in to this server, mapped to their login token
+     * @return The number of users logged out */
+    public int endRecoveredSessions(HashMap<String, Integer> sessions) {
+        int ended = 0;
+        for (String user : sessions.keySet()) {
+            ClientRecord record = getClientRecord(user);
+            if (record != null && record.loggedIn() && record.getLoggedInToken().equals(sessions.get(user))) {
+                String logoutContext = "Context: session ended by a restart (in endRecoveredSessions)";
+                logUser(false, user, record.getSecret(), logoutContext, Integer.MIN_VALUE);
+                ended++;
+            }
+        }
+        return ended;
+    }
+
     /** Gets a specific ClientRecord
      * @param user The username of the client who's record we want to retrieve
      * @return The ClientRecord, if exists, otherwise null */
     public synchronized ClientRecord getClientRecord(String user) {
-        if (!clientRecords.containsKey(user)) {
-            return null;
-        }
-        return clientRecords.get(user);
+        return recordsFor(user).get(user);
     }
 
     @Override
-    /** Converts a JSONObject to a string */
+    /** Converts the registry to a JSON string */
     public String toString() {
-        return getRecordsJson().toString();
+        StringWriter out = new StringWriter();
+        try {
+            writeRecordsJson(out);
+        }
+        catch (IOException e) {
+            // A StringWriter cannot fail
+        }
+        return out.toString();
     }
 }
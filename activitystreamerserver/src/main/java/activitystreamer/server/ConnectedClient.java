@@ -7,6 +7,8 @@ public class ConnectedClient {
     private String secret;
     private int lockRequestServerCount;
     private boolean registered;
+    private long connected_at;
+    private long last_active;
 
     /** Stores basic information about a particular client
      * @param username The client's username
@@ -15,6 +17,8 @@ public class ConnectedClient {
         this.username = username;
         this.secret = password;
         this.registered = true;
+        this.connected_at = System.nanoTime();
+        this.last_active = this.connected_at;
     }
 
     /** Stores basic information about a particular client
@@ -31,6 +35,8 @@ public class ConnectedClient {
         else {
             this.registered = false;
         }
+        this.connected_at = System.nanoTime();
+        this.last_active = this.connected_at;
     }
 
     /** Increments the number of LOCK_ALLOWED messages received */
@@ -75,6 +81,23 @@ public class ConnectedClient {
         return this.username.equals(username) && this.secret.equals(secret);
     }
 
+    /** Records that the client has just sent us a message */
+    public void markActive() {
+        this.last_active = System.nanoTime();
+    }
+
+    /** Get how long it has been since the client last sent us a message
+     * @return The idle time in milliseconds */
+    public long getIdleTime() {
+        return (System.nanoTime() - last_active) / 1000000;
+    }
+
+    /** Get how long the client has been connected to this server
+     * @return The connected time in milliseconds */
+    public long getConnectedTime() {
+        return (System.nanoTime() - connected_at) / 1000000;
+    }
+
     /** Sets a client to registered */
     public void register() {
         this.registered = true;
@@ -4,7 +4,8 @@ package activitystreamer.server;
 import activitystreamer.util.Settings;
 import org.json.simple.JSONObject;
 
-import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Objects;
 
 /** Represents a server that a given server knows about, but may not have a direct connection to */
@@ -15,7 +16,12 @@ public class ConnectedServer implements Comparable<ConnectedServer> {
     private Integer load;
     private String hostname;
     private int port;
-    private LocalDateTime last_announce;
+    private transient PhiAccrualDetector detector;
+    private transient ArrayList<String> ancestors;
+    private transient int child_count;
+    private transient long load_updated;
+    private transient LoadVector load_vector;
+    private transient ArrayDeque<Long> redirects;
     private boolean is_child;
     private boolean is_parent;
     private boolean is_sibling;
@@ -31,7 +37,7 @@ public class ConnectedServer implements Comparable<ConnectedServer> {
         this.id = id;
         this.hostname = hostname;
         this.port = port;
-        this.last_announce = LocalDateTime.now();
+        this.detector = new PhiAccrualDetector();
         this.is_child = isChild;
         this.is_parent = isParent;
         this.is_sibling = false;
@@ -43,21 +49,50 @@ public class ConnectedServer implements Comparable<ConnectedServer> {
      * @param isChild True if server is a child of ours, false otherwise */
     public void updateServer(int load, boolean isChild) {
         setLoad(load);
-        this.last_announce = LocalDateTime.now();
+        getDetector().heartbeat();
         this.is_child = isChild;
     }
 
-    /** Checks if a server connection has timed out
+    /** Update where the server is in the tree, as given in its SERVER_ANNOUNCE
+     * @param ancestors The ids of the server's ancestors, starting at the root
+     * @param childCount The number of children the server has */
+    public void setTreePosition(ArrayList<String> ancestors, int childCount) {
+        this.ancestors = ancestors;
+        this.child_count = childCount;
+    }
+
+    /** Get the ids of the server's ancestors, starting at the root. The size of the list is the server's depth.
+     * @return The server's ancestors, or null if the server has not announced its position */
+    public ArrayList<String> getAncestors() {
+        return ancestors;
+    }
+
+    /** Get the number of children the server has
+     * @return The server's number of children, as of its last SERVER_ANNOUNCE */
+    public int getChildCount() {
+        return child_count;
+    }
+
+    /** Checks if a server connection has timed out, i.e. its suspicion level has passed the configured threshold
      * @return  true if server connection has timed out, false otherwise */
     public boolean isTimedOut() {
-        if (last_announce != null) {
-            LocalDateTime timeNow = LocalDateTime.now();
-            LocalDateTime timeoutTime = last_announce.plusSeconds(6);
-            // Check if time between last announce and now is greater than timeout boundary
-            return (timeNow.isAfter(timeoutTime));
+        return getDetector().isSuspected();
+    }
+
+    /** Get how strongly we suspect the server has failed, based on how overdue its next SERVER_ANNOUNCE is
+     * @return The suspicion level, phi */
+    public double getSuspicion() {
+        return getDetector().phi();
+    }
+
+    /** Get the failure detector for this server. Records received from other servers are not sent with one, so it is
+     * created when first needed.
+     * @return The server's failure detector */
+    private synchronized PhiAccrualDetector getDetector() {
+        if (detector == null) {
+            detector = new PhiAccrualDetector();
         }
-        last_announce = LocalDateTime.now();
-        return false;
+        return detector;
     }
 
     /** Update the status of a connection to a server
@@ -72,15 +107,67 @@ public class ConnectedServer implements Comparable<ConnectedServer> {
         return this.is_connected;
     }
 
-    /** Server sent a SERVER_ANNOUNCE, so update last_announce to current time */
+    /** The server's own SERVER_ANNOUNCE arrived, so record a heartbeat */
     public void resetTimeout() {
-        last_announce = LocalDateTime.now();
+        getDetector().heartbeat();
     }
 
     /** Update the load of the server
      * @param load New server load*/
     public void setLoad(Integer load) {
         this.load = load;
+        this.load_updated = System.nanoTime();
+    }
+
+    /** Update the detailed load of the server
+     * @param loadVector The load carried in the server's last SERVER_ANNOUNCE */
+    public void setLoadVector(LoadVector loadVector) {
+        this.load_vector = loadVector;
+    }
+
+    /** Get the detailed load of the server
+     * @return The load carried in the server's last SERVER_ANNOUNCE, or null if it did not carry one */
+    public LoadVector getLoadVector() {
+        return load_vector;
+    }
+
+    /** Get how busy the server is, as a single number measured in clients. This is the score of its load vector, or
+     * its number of clients if we have no load vector for it.
+     * @return The server's load score */
+    public double getLoadScore() {
+        if (load_vector != null) {
+            return load_vector.getScore();
+        }
+        return (load == null ? 0 : load);
+    }
+
+    /** Get how long ago the server's load was last updated
+     * @return The age of the load in milliseconds, or -1 if it has never been updated since we learnt of the server */
+    public long getLoadAge() {
+        return (load_updated == 0 ? -1 : (System.nanoTime() - load_updated) / 1000000);
+    }
+
+    /** Records that we have just redirected a client to this server */
+    public synchronized void recordRedirect() {
+        if (redirects == null) {
+            redirects = new ArrayDeque<Long>();
+        }
+        redirects.addLast(System.nanoTime());
+    }
+
+    /** Get the number of clients we have redirected to this server recently, which its announced load may not yet
+     * include
+     * @param window How far back to count, in milliseconds
+     * @return The number of redirects within the window */
+    public synchronized int getRecentRedirects(long window) {
+        if (redirects == null) {
+            return 0;
+        }
+        long cutoff = System.nanoTime() - window * 1000000;
+        while (!redirects.isEmpty() && redirects.peekFirst() - cutoff < 0) {
+            redirects.removeFirst();
+        }
+        return redirects.size();
     }
 
     /** Get a server's id
@@ -193,8 +280,8 @@ public class ConnectedServer implements Comparable<ConnectedServer> {
         String parent_status = (this.is_parent ? "is parent, " : "not parent, ");
         String sibling_status = (this.is_sibling ? "is sibling, " : "not sibling, ");
         String connected_status = (this.is_connected ? "is connected, " : "not connected, ");
-        return "{" + hostname + ":" + Integer.toString(port) + " (id=" + id + "), load: " + load + ", last_announce: " +
-                last_announce.toLocalTime() + ", " + child_status + parent_status + sibling_status + connected_status +
+        return "{" + hostname + ":" + Integer.toString(port) + " (id=" + id + "), load: " + load + ", suspicion: " +
+                String.format("%.2f", getSuspicion()) + ", " + child_status + parent_status + sibling_status + connected_status +
                 "}";
     }
 }
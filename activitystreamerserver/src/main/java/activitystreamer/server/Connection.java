@@ -7,8 +7,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,9 +30,24 @@ public class Connection extends Thread {
     private Socket socket;
     private boolean term = false;
     private boolean hasLoggedOut;
+    private ActivityBatch activityBatch;
+    private ConcurrentLinkedQueue<String> controlLane;
+    private ConcurrentLinkedQueue<Object> dataLane; // messages, and SpooledMessages to be copied from the spool
+    private AtomicBoolean draining;
+    private AtomicBoolean closing; // a close has been started for this connection on another thread
+    private boolean holding; // queued messages wait for the changes they report to be logged before being written
+    private int otherHolds;  // holds of the same kind taken by other threads answering for this connection
+    private volatile boolean sendFragments; // the other end has accepted us as a server, so reassembles fragments
+    private volatile boolean readFragments; // the other end is a server, which may send large messages in fragments
+    private StringBuilder fragments; // the fragments of a message received so far
 
     private static final boolean DEBUG = true;
     private static final boolean PRINT_SERVER_STATUS = false;
+    private static final int CLOSE_DRAIN_TIMEOUT = 1000; // milliseconds to wait for queued messages to go when closing
+    private static final String ACTIVITY_BATCH_PREFIX = "{\"command\":\"ACTIVITY_BATCH\"";
+    private static final int FRAGMENT_SIZE = 8192; // characters of a large message written between control messages
+    private static final String FRAGMENT_MORE = "~+"; // starts a line holding a fragment of a message, more to follow
+    private static final String FRAGMENT_LAST = "~."; // starts a line holding the last fragment of a message
 
     Connection(Socket socket) throws IOException {
 
@@ -40,24 +58,344 @@ public class Connection extends Thread {
         this.socket = socket;
         open = true;
         hasLoggedOut = false;
+        activityBatch = new ActivityBatch();
+        controlLane = new ConcurrentLinkedQueue<String>();
+        dataLane = new ConcurrentLinkedQueue<Object>();
+        draining = new AtomicBoolean(false);
+        closing = new AtomicBoolean(false);
+        holding = false;
+        otherHolds = 0;
+        sendFragments = false;
+        readFragments = false;
+        fragments = null;
         start();
     }
 
     /**
-     * Returns true if the message was written, otherwise false
+     * Queues a message to be written to the connection, and writes it unless another thread is already writing (or
+     * writes are held). The message goes in the data lane, in order behind any batched activities: activities,
+     * acknowledgements, announces, client logins and logouts and anything else that changes what a server knows about
+     * clients must not arrive before the activities sent ahead of it.
+     * Returns true if the message was queued, otherwise false
      * @param msg The message to be written
-     * @return true if message successfully written, otherwise false
+     * @return true if message successfully queued, otherwise false
      */
     public boolean writeMsg(String msg) {
-        StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-        if (open) {
-            outwriter.println(msg);
-            printDebugMessages(msg, true);
+        synchronized (this) {
+            if (!open) {
+                return false;
+            }
+            // Anything batched was queued before this message, so must be sent first to keep the data in order
+            batchToLane();
+            dataLane.add(msg);
+        }
+        drainLanes();
+        return true;
+    }
+
+    /**
+     * Queues a control message, such as a heartbeat, lock, tree or route update, shutdown or standby message, to be
+     * written to the connection. The control lane is always written first, and a large data message is sent to a
+     * server in fragments with queued control messages written between them, so a control message never waits behind
+     * a backlog of data, only behind the fragment being written when it was queued.
+     * @param msg The message to be written
+     * @return true if message successfully queued, otherwise false
+     */
+    public boolean writeControlMsg(String msg) {
+        if (!open) {
+            return false;
+        }
+        controlLane.add(msg);
+        drainLanes();
+        return true;
+    }
+
+    /** We opened the connection to a server, which may send large messages in fragments as soon as it accepts us.
+     * Ours are sent whole until it has (see markServerLink), as until then it reads us as any other connection. */
+    public void expectServer() {
+        readFragments = true;
+    }
+
+    /** The two ends of the connection have accepted each other as servers, so both reassemble messages sent in
+     * fragments, and send them */
+    public void markServerLink() {
+        readFragments = true;
+        sendFragments = true;
+    }
+
+    /** Queues a message that was written to the spool, such as a SERVER_ANNOUNCE carrying the registry, to be copied
+     * to the connection from there. It goes in the data lane, like any other announce.
+     * @param msg The message to be written
+     * @return true if message successfully queued, otherwise false */
+    public boolean writeMsg(SpooledMessage msg) {
+        synchronized (this) {
+            if (!open) {
+                return false;
+            }
+            msg.retain();
+            batchToLane();
+            dataLane.add(msg);
+        }
+        drainLanes();
+        return true;
+    }
+
+    /** Queues an ACTIVITY_BROADCAST to be sent to the server on the other end of this connection. If the link has
+     * been idle the activity is sent straight away; during a burst activities are held and sent together as one
+     * ACTIVITY_BATCH frame once the batch is full or its oldest activity has waited for the batching delay.
+     * @param activity The ACTIVITY_BROADCAST message to be sent */
+    public void queueActivity(String activity) {
+        if (batchActivity(activity)) {
+            drainLanes();
+        }
+    }
+
+    /** Adds an activity to the batch, or straight to the data lane if the link has been idle
+     * @param activity The ACTIVITY_BROADCAST message to be sent
+     * @return true if anything was added to the data lane, false otherwise */
+    private synchronized boolean batchActivity(String activity) {
+        if (!open) {
+            return false;
+        }
+        if (activityBatch.isIdle()) {
+            dataLane.add(activity);
+            activityBatch.markSent();
             return true;
         }
+        activityBatch.add(activity);
+        if (activityBatch.isFull()) {
+            return batchToLane();
+        }
         return false;
     }
 
+    /** Sends the queued activities if the oldest one has waited for the batching delay */
+    public void flushActivitiesIfDue() {
+        boolean flushed;
+        synchronized (this) {
+            flushed = activityBatch.isDue() && batchToLane();
+        }
+        if (flushed) {
+            drainLanes();
+        }
+    }
+
+    /** Sends every queued activity on this connection, in the order they were queued */
+    public void flushActivities() {
+        if (batchToLane()) {
+            drainLanes();
+        }
+    }
+
+    /** Moves the batched activities into the data lane as a single frame
+     * @return true if there were activities to move, false otherwise */
+    private synchronized boolean batchToLane() {
+        if (activityBatch.isEmpty()) {
+            return false;
+        }
+        int batchSize = activityBatch.size();
+        String frame = activityBatch.drain();
+        if (open) {
+            dataLane.add(frame);
+            if (DEBUG) {
+                log.info("Sending batch of " + batchSize + " activities");
+            }
+        }
+        return true;
+    }
+
+    /** Writes the queued messages to the socket, control lane first. Only one thread writes at a time; a thread that
+     * finds another already writing leaves its message for that thread and returns straight away, so it is never
+     * held up by a slow link. */
+    private void drainLanes() {
+        while (!isHolding() && !(controlLane.isEmpty() && dataLane.isEmpty()) && draining.compareAndSet(false, true)) {
+            try {
+                Object next;
+                while ((next = pollLanes()) != null) {
+                    if (!open) {
+                        if (next instanceof SpooledMessage) {
+                            ((SpooledMessage) next).release();
+                        }
+                        discardLanes();
+                        break;
+                    }
+                    if (next instanceof SpooledMessage) {
+                        writeSpooled((SpooledMessage) next);
+                        continue;
+                    }
+                    String msg = (String) next;
+                    if (sendFragments && msg.length() > FRAGMENT_SIZE) {
+                        writeFragments(msg);
+                    }
+                    else {
+                        outwriter.println(msg);
+                    }
+                    if (!msg.startsWith(ACTIVITY_BATCH_PREFIX)) {
+                        printDebugMessages(msg, true);
+                    }
+                }
+            }
+            finally {
+                draining.set(false);
+            }
+            // Loop round in case a message was queued just as we finished
+        }
+    }
+
+    /** Takes the next message to write, from the control lane if there is one there
+     * @return The next message, or null if both lanes are empty or writes are being held */
+    private synchronized Object pollLanes() {
+        if (isHolding()) {
+            return null;
+        }
+        String next = controlLane.poll();
+        return (next != null ? next : dataLane.poll());
+    }
+
+    /** Writes a large message to a server a fragment at a time, writing any control messages queued meanwhile
+     * between the fragments. Only the writing thread calls this.
+     * @param msg The message */
+    private void writeFragments(String msg) {
+        int start = 0;
+        while (msg.length() - start > FRAGMENT_SIZE) {
+            int end = start + FRAGMENT_SIZE;
+            if (Character.isHighSurrogate(msg.charAt(end - 1))) {
+                // Keep a surrogate pair in one fragment, as each line is encoded on its own
+                end--;
+            }
+            outwriter.println(FRAGMENT_MORE + msg.substring(start, end));
+            writeQueuedControl();
+            start = end;
+        }
+        outwriter.println(FRAGMENT_LAST + msg.substring(start));
+    }
+
+    /** Writes the control messages queued while a large message is being written, unless writes are being held */
+    private void writeQueuedControl() {
+        String control;
+        while (!isHolding() && (control = controlLane.poll()) != null) {
+            outwriter.println(control);
+        }
+    }
+
+    /** Copies a spooled message to the socket, in fragments if the other end has accepted us as a server
+     * @param spooled The message */
+    private void writeSpooled(SpooledMessage spooled) {
+        boolean fragmented = sendFragments;
+        char[] chunk = new char[FRAGMENT_SIZE];
+        int carried = 0; // a high surrogate held over from the last chunk, so a surrogate pair stays in one line
+        try (Reader in = spooled.open()) {
+            int read;
+            while ((read = in.read(chunk, carried, chunk.length - carried)) > 0) {
+                int length = carried + read;
+                carried = (Character.isHighSurrogate(chunk[length - 1]) ? 1 : 0);
+                if (fragmented) {
+                    outwriter.println(FRAGMENT_MORE + new String(chunk, 0, length - carried));
+                    writeQueuedControl();
+                }
+                else {
+                    outwriter.write(chunk, 0, length - carried);
+                }
+                if (carried == 1) {
+                    chunk[0] = chunk[length - 1];
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("failed to read back spooled " + spooled + " for " + Settings.socketAddress(socket) + ": " + e);
+        }
+        finally {
+            spooled.release();
+        }
+        // Ends the message even if it was cut short, so what follows it still arrives intact
+        outwriter.println(fragmented ? FRAGMENT_LAST + new String(chunk, 0, carried) : new String(chunk, 0, carried));
+        printDebugMessages(spooled.toString(), true);
+    }
+
+    /** Reassembles a message sent by a server in fragments
+     * @param line A line read from the connection
+     * @return The whole message, or null if more fragments are to follow */
+    String reassemble(String line) {
+        if (!readFragments || !(line.startsWith(FRAGMENT_MORE) || line.startsWith(FRAGMENT_LAST))) {
+            // A whole message, possibly a control message sent between the fragments of another
+            return line;
+        }
+        if (fragments == null) {
+            fragments = new StringBuilder();
+        }
+        fragments.append(line, FRAGMENT_MORE.length(), line.length());
+        if (line.startsWith(FRAGMENT_MORE)) {
+            return null;
+        }
+        String msg = fragments.toString();
+        fragments = null;
+        return msg;
+    }
+
+    /** Drops every queued message, once the connection is closed */
+    private synchronized void discardLanes() {
+        controlLane.clear();
+        Object next;
+        while ((next = dataLane.poll()) != null) {
+            if (next instanceof SpooledMessage) {
+                ((SpooledMessage) next).release();
+            }
+        }
+    }
+
+    /** Holds back writing queued messages, e.g. a LOGIN_SUCCESS, until the registry changes made while processing the
+     * message that caused them are on disk. Messages are still queued in order meanwhile. The connection's own thread
+     * and other threads answering for it, e.g. once a username claim is answered, hold writes independently; each
+     * other thread must release its hold exactly once. */
+    public synchronized void holdWrites() {
+        if (Thread.currentThread() == this) {
+            holding = true;
+        }
+        else {
+            otherHolds++;
+        }
+    }
+
+    /** Releases the current thread's hold on writes, and writes the messages queued meanwhile once no holds are left */
+    public void releaseWrites() {
+        synchronized (this) {
+            if (Thread.currentThread() == this) {
+                holding = false;
+            }
+            else if (otherHolds > 0) {
+                otherHolds--;
+            }
+        }
+        drainLanes();
+    }
+
+    /** Checks if any thread is holding back writes
+     * @return true if writes are held */
+    private synchronized boolean isHolding() {
+        return holding || otherHolds > 0;
+    }
+
+    /** Checks if the connection's own thread is holding back writes, i.e. it is processing one of its messages
+     * @return true if writes are held and this is the connection's thread */
+    private synchronized boolean holdingOwnWrites() {
+        return holding && Thread.currentThread() == this;
+    }
+
+    /** Waits for every queued message to be written, for at most the close timeout */
+    private void awaitLanesDrained() {
+        long deadline = System.nanoTime() + CLOSE_DRAIN_TIMEOUT * 1000000L;
+        while ((!controlLane.isEmpty() || !dataLane.isEmpty() || draining.get()) && System.nanoTime() < deadline) {
+            drainLanes();
+            Thread.yield();
+        }
+    }
+
+    /** Get the number of activities and messages queued on this connection, waiting to be written
+     * @return The number of queued activities and messages */
+    public synchronized int getQueuedActivities() {
+        return activityBatch.size() + dataLane.size() + controlLane.size();
+    }
+
     /** Prints a message to assist in debugging
      * @param msg The message to be printed
      * @param sending If the message is in the process of being sent */
@@ -90,6 +428,13 @@ public class Connection extends Thread {
      */
     public void closeCon() {
         if (open) {
+            if (holdingOwnWrites()) {
+                // Closing while processing one of our own messages; its replies must still go out, once logged
+                SessionManager.getInstance().releaseReplies(this);
+            }
+            // Let everything already queued go out first, e.g. a REDIRECT or SERVER_DETACH sent just before closing
+            flushActivities();
+            awaitLanesDrained();
             log.info("closing connection " + Settings.socketAddress(socket));
             try {
                 term = true;
@@ -102,6 +447,7 @@ public class Connection extends Thread {
                 open = false;
             }
         }
+        discardLanes();
     }
 
     /**
@@ -113,7 +459,28 @@ public class Connection extends Thread {
         try {
             String data;
             while (!term && (data = inreader.readLine()) != null) {
-                term = SessionManager.getInstance().process(this, data);
+                data = reassemble(data);
+                if (data == null) {
+                    continue;
+                }
+                SessionManager sessionManager = SessionManager.getInstance();
+                if (sessionManager.answerProbe(this, data)) {
+                    continue;
+                }
+                JSONObject parsed = sessionManager.parseClientActivity(this, data);
+                if (!sessionManager.admitMessage(this, parsed)) {
+                    continue;
+                }
+                boolean joining = sessionManager.admitJoin(this, data);
+                try {
+                    term = sessionManager.process(this, data, parsed);
+                }
+                finally {
+                    if (joining) {
+                        sessionManager.finishJoin();
+                    }
+                    sessionManager.releaseReplies(this);
+                }
                 // System.out.println("Processing: " + data);
                 printDebugMessages(data, false);
             }
@@ -133,15 +500,22 @@ public class Connection extends Thread {
         finally {
             boolean isParent = SessionManager.getInstance().getServerRegistry().isParentConnection(this);
             System.out.println("Is this parent connection? Answer: " + isParent);
-            if (isParent && !SessionManager.getInstance().isReconnecting()) {
-                SessionManager.getInstance().reconnectParentIfDisconnected();
-            }
             open = false;
             SessionManager.getInstance().deleteClosedConnection(this);
             this.closeCon();
+            // Failing over waits on connection attempts, so it is left to a thread of its own once we are gone
+            if (isParent) {
+                SessionManager.getInstance().reconnectParentInBackground();
+            }
         }
     }
 
+    /** Marks the connection as being closed on another thread, so the close is only started once
+     * @return true if the caller should close the connection, false if a close is already under way */
+    public boolean startClosing() {
+        return closing.compareAndSet(false, true);
+    }
+
     /** Checks if a connection is open
      * @return returns true if connection open, false otherwise */
     public boolean isOpen() {
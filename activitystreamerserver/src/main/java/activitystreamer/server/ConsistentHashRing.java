@@ -0,0 +1,59 @@
+package activitystreamer.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Maps keys, such as usernames, onto the servers of the network by consistent hashing. Each server is placed on a
+ * ring at a number of points hashed from its id, and a key belongs to the first server found going round the ring from
+ * the key's own hash. Every server that knows the same set of server ids therefore picks the same owner for a key, and
+ * a server joining or leaving only moves the keys next to its own points. */
+public class ConsistentHashRing {
+    private static final int POINTS_PER_SERVER = 32; // places on the ring for each server, to even out the share
+
+    private TreeMap<Long, String> ring;
+
+    /** Creates a ring from the ids of the servers on the network
+     * @param serverIds The ids of every server, including our own */
+    public ConsistentHashRing(Collection<String> serverIds) {
+        this.ring = new TreeMap<Long, String>();
+        for (String id : serverIds) {
+            for (int i = 0; i < POINTS_PER_SERVER; i++) {
+                ring.put(hash(id + "#" + i), id);
+            }
+        }
+    }
+
+    /** Get the server that owns a key
+     * @param key The key, e.g. a username
+     * @return The id of the owning server, or null if the ring is empty */
+    public String getOwner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    /** Hashes a string to a point on the ring. MD5 is used for its even spread rather than for security, and unlike
+     * String.hashCode it is the same on every JVM.
+     * @param key The string to hash
+     * @return The point on the ring */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long point = 0;
+            for (int i = 0; i < 8; i++) {
+                point = (point << 8) | (digest[i] & 0xff);
+            }
+            return point;
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package activitystreamer.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Sends a single message to a server on a short-lived connection and waits for a single line in reply. Used for
+ * messages that must reach a server we have no link to, such as membership probes. */
+public class DirectRequest {
+
+    /** Sends a message to a server and waits for its reply
+     * @param hostname The server's hostname
+     * @param port The server's port number
+     * @param msg The message to be sent
+     * @param timeout The longest to wait for the connection and the reply together, in milliseconds
+     * @return The reply, or null if the server could not be reached or did not reply in time */
+    public static String request(String hostname, int port, String msg, int timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostname, port), timeout);
+            int remaining = (int) (deadline - System.currentTimeMillis());
+            if (remaining <= 0) {
+                return null;
+            }
+            socket.setSoTimeout(remaining);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(msg);
+            return in.readLine();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
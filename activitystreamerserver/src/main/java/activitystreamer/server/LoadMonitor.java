@@ -0,0 +1,57 @@
+package activitystreamer.server;
+
+/** Measures how much work this server is doing, for the load vector in its SERVER_ANNOUNCE. Every message processed
+ * is counted along with the time the processing lock was held for it; each announce takes a sample, turning the counts
+ * since the previous sample into a message rate and a lock utilisation. Both are smoothed over recent samples, so a
+ * single busy moment does not make the server look overloaded and send its clients elsewhere. */
+public class LoadMonitor {
+    private static final double SMOOTHING = 0.3; // weight of the newest sample in the smoothed rates
+
+    private long messages;
+    private long busyNanos;
+    private long sampleStart;
+    private double messageRate;
+    private double utilisation;
+    private long pendingBytes;
+
+    public LoadMonitor() {
+        this.messages = 0;
+        this.busyNanos = 0;
+        this.sampleStart = System.nanoTime();
+        this.messageRate = 0;
+        this.utilisation = 0;
+        this.pendingBytes = 0;
+    }
+
+    /** Records that a message has been processed
+     * @param nanos The time the processing lock was held for the message, in nanoseconds */
+    public synchronized void messageProcessed(long nanos) {
+        messages++;
+        busyNanos += nanos;
+    }
+
+    /** Takes a sample of the load, starting a new measuring period
+     * @param connections The number of client connections
+     * @param queueDepth The number of activities queued to be sent to other servers
+     * @param pendingBytes The size, in characters, of the messages held until they are delivered
+     * @return The load */
+    public synchronized LoadVector sample(int connections, int queueDepth, long pendingBytes) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - sampleStart);
+        messageRate = SMOOTHING * (messages * 1e9 / elapsed) + (1 - SMOOTHING) * messageRate;
+        utilisation = SMOOTHING * Math.min(1.0, (double) busyNanos / elapsed) + (1 - SMOOTHING) * utilisation;
+        this.pendingBytes = pendingBytes;
+        messages = 0;
+        busyNanos = 0;
+        sampleStart = now;
+        return new LoadVector(connections, messageRate, queueDepth, pendingBytes, utilisation);
+    }
+
+    /** Get the current load, using the rates and pending bytes of the last sample
+     * @param connections The number of client connections
+     * @param queueDepth The number of activities queued to be sent to other servers
+     * @return The load */
+    public synchronized LoadVector current(int connections, int queueDepth) {
+        return new LoadVector(connections, messageRate, queueDepth, pendingBytes, utilisation);
+    }
+}
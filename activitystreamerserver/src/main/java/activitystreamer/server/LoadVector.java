@@ -0,0 +1,100 @@
+package activitystreamer.server;
+
+import org.json.simple.JSONObject;
+
+/** How busy a server is, as carried in its SERVER_ANNOUNCE. A count of client connections alone says little about the
+ * work a server is doing, so the vector also holds the rate messages arrive at, the activities queued to be sent to
+ * other servers, the size of the messages held until they are delivered, and the fraction of the time the server's
+ * message processing lock is held. The score folds these into a single number measured in clients, so it can be
+ * compared against connection counts. */
+public class LoadVector {
+
+    // How much of each measure counts as one client's worth of load
+    private static final double MESSAGES_PER_CLIENT = 10.0; // inbound messages per second
+    private static final double QUEUED_PER_CLIENT = 20.0; // activities queued on server links
+    private static final double BYTES_PER_CLIENT = 16384.0; // characters of messages awaiting delivery
+    private static final double UTILISATION_PER_CLIENT = 0.2; // fraction of time the processing lock is held
+
+    private int connections;
+    private double messageRate;
+    private int queueDepth;
+    private long pendingBytes;
+    private double utilisation;
+
+    /** Creates a load vector
+     * @param connections The number of client connections
+     * @param messageRate The number of messages received per second
+     * @param queueDepth The number of activities queued to be sent to other servers
+     * @param pendingBytes The size, in characters, of the messages held until they are delivered
+     * @param utilisation The fraction of the time the message processing lock is held */
+    public LoadVector(int connections, double messageRate, int queueDepth, long pendingBytes, double utilisation) {
+        this.connections = connections;
+        this.messageRate = messageRate;
+        this.queueDepth = queueDepth;
+        this.pendingBytes = pendingBytes;
+        this.utilisation = utilisation;
+    }
+
+    /** Reads a load vector from a SERVER_ANNOUNCE. Missing measures are taken as zero.
+     * @param json The "load_vector" object of the announce
+     * @return The load vector */
+    public static LoadVector fromJson(JSONObject json) {
+        return new LoadVector(getNumber(json, "connections").intValue(), getNumber(json, "msg_rate").doubleValue(),
+                              getNumber(json, "queue_depth").intValue(), getNumber(json, "pending_bytes").longValue(),
+                              getNumber(json, "utilisation").doubleValue());
+    }
+
+    /** Get a numeric field from a JSON object
+     * @param json The JSON object
+     * @param key The field's key
+     * @return The field's value, or 0 if it is missing or not a number */
+    private static Number getNumber(JSONObject json, String key) {
+        Object value = json.get(key);
+        return (value instanceof Number ? (Number) value : 0);
+    }
+
+    /** Converts the load vector for sending in a SERVER_ANNOUNCE
+     * @return The load vector as a JSON object */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("connections", connections);
+        json.put("msg_rate", Math.round(messageRate * 100) / 100.0);
+        json.put("queue_depth", queueDepth);
+        json.put("pending_bytes", pendingBytes);
+        json.put("utilisation", Math.round(utilisation * 1000) / 1000.0);
+        return json;
+    }
+
+    /** Get the load as a single number, in clients' worth of work
+     * @return The load score */
+    public double getScore() {
+        return connections + messageRate / MESSAGES_PER_CLIENT + queueDepth / QUEUED_PER_CLIENT +
+               pendingBytes / BYTES_PER_CLIENT + utilisation / UTILISATION_PER_CLIENT;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public double getUtilisation() {
+        return utilisation;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.2f (connections: %d, msg/s: %.2f, queued: %d, pending bytes: %d, utilisation: %.3f)",
+                             getScore(), connections, messageRate, queueDepth, pendingBytes, utilisation);
+    }
+}
@@ -2,6 +2,7 @@ package activitystreamer.server;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /** This class represents a Message that has been received/sent across the network.
@@ -11,6 +12,12 @@ public class Message implements Comparable<Message> {
     private JSONObject clientMessage;
     private JSONObject serverMessage;
     private Integer token;
+    private transient int size;
+    private transient boolean reserved;           // counted against the spool's memory limit
+    private transient long spoolPosition = -1;    // where the contents are in the spool, or -1 if held in memory
+    private transient int spoolLength;
+    // The contents and their spool position only change with both the spool and the message locked, in that order, as
+    // the spool moves contents between segments while the message may be read from another thread
 
 
     // ------------------------------ OBJECT CREATION ------------------------------
@@ -45,6 +52,56 @@ public class Message implements Comparable<Message> {
         this.clientMessage = MessageProcessor.cleanClientMessage(MessageProcessor.serverToClientJson(serverMessage));
     }
 
+    /** Creates a message from fields that have already been decoded
+     * @param token The message's token number
+     * @param clientMessage The client version of the message
+     * @param serverMessage The server version of the message
+     * @param recipients The clients who are yet to receive the message */
+    private Message(Integer token, JSONObject clientMessage, JSONObject serverMessage, ArrayList<String> recipients) {
+        this.token = token;
+        this.clientMessage = clientMessage;
+        this.serverMessage = serverMessage;
+        this.recipients = recipients;
+    }
+
+    /** Copies the message, so that the copy's recipients can be read while the original's change
+     * @return The copy */
+    public synchronized Message copy() {
+        Message copy = new Message(token, clientMessage, serverMessage, new ArrayList<String>(recipients));
+        copy.size = size;
+        copy.spoolPosition = spoolPosition;
+        copy.spoolLength = spoolLength;
+        return copy;
+    }
+
+    /** Decodes a message held within a received ClientRecord (the form produced by serialising a Message), reading
+     * the fields straight out of the parsed JSONObject.
+     * @param messageJson The JSONObject representation of the message, from a ClientRecord's messages
+     * @return The decoded message */
+    public static Message fromRecordJson(JSONObject messageJson) {
+        return new Message(tokenFromRecordJson(messageJson), (JSONObject) messageJson.get("clientMessage"),
+                           (JSONObject) messageJson.get("serverMessage"), recipientsFromRecordJson(messageJson));
+    }
+
+    /** Reads the token of a message held within a received ClientRecord, without decoding the rest of the message
+     * @param messageJson The JSONObject representation of the message, from a ClientRecord's messages
+     * @return The message token */
+    public static Integer tokenFromRecordJson(JSONObject messageJson) {
+        return ((Long) messageJson.get("token")).intValue();
+    }
+
+    /** Reads the remaining recipients of a message held within a received ClientRecord
+     * @param messageJson The JSONObject representation of the message, from a ClientRecord's messages
+     * @return the arraylist of all clients yet to receive the message */
+    public static ArrayList<String> recipientsFromRecordJson(JSONObject messageJson) {
+        ArrayList<String> recipientsList = new ArrayList<String>();
+        JSONArray recipientsJSONArray = (JSONArray) messageJson.get("recipients");
+        if (recipientsJSONArray != null) {
+            recipientsJSONArray.forEach((recipientObj) -> recipientsList.add(recipientObj.toString()));
+        }
+        return recipientsList;
+    }
+
     /** Converts the list of recipients from object form into an array list
      * @param recipientsObj The object containing all of a message's recipients
      * @return the arraylist of all clients to receive a message */
@@ -94,7 +151,7 @@ public class Message implements Comparable<Message> {
     /** Gets a client message
      * @return the JSONObject representation of the client message */
     public JSONObject getClientMessage() {
-        return this.clientMessage;
+        return readContents(true);
     }
 
     /** Checks if a message should be delivered to a given user
@@ -120,11 +177,11 @@ public class Message implements Comparable<Message> {
     }
 
     @Override
-    /** Compares to messages to see if the same
+    /** Orders messages by token, lowest first, so a sender's messages are delivered in the order they were sent
      * @param anotherMessage the message to be compared to
-     * @return if the messages match or not */
+     * @return a negative number if this message comes first, a positive number if it comes after */
     public int compareTo(Message anotherMessage) {
-        return anotherMessage.getToken().compareTo(this.token);
+        return this.token.compareTo(anotherMessage.getToken());
     }
 
     @Override
@@ -163,7 +220,7 @@ public class Message implements Comparable<Message> {
     /** Retrieves a server message
      * @return the server message */
     public JSONObject getServerMessage() {
-        return this.serverMessage;
+        return readContents(false);
     }
 
     /** Converts the message to a string
@@ -172,4 +229,105 @@ public class Message implements Comparable<Message> {
         return MessageProcessor.getGson().toJson(this);
     }
 
+
+    /** Get the size of the message as sent between servers. It is worked out when first asked for, then remembered.
+     * @return The number of characters in the message */
+    public int getSize() {
+        if (size == 0) {
+            size = getServerMessage().toJSONString().length();
+        }
+        return size;
+    }
+
+
+    // ------------------------------ SPOOLING ------------------------------
+
+    /** The message is being held until it is delivered. If the spool's memory limit is used up, its contents are
+     * moved to the spool. */
+    public void hold() {
+        MessageSpool spool = MessageSpool.getInstance();
+        if (spool == null) {
+            return;
+        }
+        synchronized (spool) {
+            synchronized (this) {
+                if (reserved || spoolPosition >= 0) {
+                    return;
+                }
+                if (spool.reserve(getSize())) {
+                    reserved = true;
+                    return;
+                }
+                JSONObject contents = new JSONObject();
+                contents.put("clientMessage", clientMessage);
+                contents.put("serverMessage", serverMessage);
+                byte[] bytes = contents.toJSONString().getBytes(StandardCharsets.UTF_8);
+                long position = spool.append(this, bytes);
+                if (position >= 0) {
+                    spoolPosition = position;
+                    spoolLength = bytes.length;
+                    clientMessage = null;
+                    serverMessage = null;
+                }
+            }
+        }
+    }
+
+    /** The message is no longer held, having been delivered to all its recipients or dropped */
+    public void release() {
+        MessageSpool spool = MessageSpool.getInstance();
+        if (spool == null) {
+            return;
+        }
+        synchronized (spool) {
+            synchronized (this) {
+                if (spoolPosition >= 0) {
+                    spool.free(this, spoolPosition, spoolLength);
+                }
+                else if (reserved) {
+                    spool.unreserve(getSize());
+                    reserved = false;
+                }
+            }
+        }
+    }
+
+    /** Moves the message's contents to the spool's current segment, so the segment they are in can be deleted. Called
+     * with the spool locked.
+     * @param spool The spool */
+    synchronized void respool(MessageSpool spool) {
+        String contents = spool.read(spoolPosition, spoolLength);
+        long position = spool.append(this, contents.getBytes(StandardCharsets.UTF_8));
+        if (position >= 0) {
+            spoolPosition = position;
+        }
+        else {
+            JSONObject json = MessageProcessor.toJson(contents, false, "");
+            clientMessage = (JSONObject) json.get("clientMessage");
+            serverMessage = (JSONObject) json.get("serverMessage");
+            spoolPosition = -1;
+        }
+    }
+
+    /** Gets the client or server version of the message, reading it back from the spool if it is there. The spool is
+     * locked while it is read, so the contents cannot be moved to another segment part way through.
+     * @param client true for the client version of the message, false for the server version
+     * @return The client or server message */
+    private JSONObject readContents(boolean client) {
+        MessageSpool spool = MessageSpool.getInstance();
+        String contents;
+        if (spool == null) {
+            return (client ? clientMessage : serverMessage);
+        }
+        synchronized (spool) {
+            synchronized (this) {
+                if (spoolPosition < 0) {
+                    return (client ? clientMessage : serverMessage);
+                }
+                contents = spool.read(spoolPosition, spoolLength);
+            }
+        }
+        JSONObject json = MessageProcessor.toJson(contents, false, "");
+        return (JSONObject) json.get(client ? "clientMessage" : "serverMessage");
+    }
 }
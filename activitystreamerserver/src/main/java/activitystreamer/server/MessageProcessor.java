@@ -2,13 +2,19 @@ package activitystreamer.server;
 
 import activitystreamer.util.Settings;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializer;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** This class is responsible for generating all of the messages to be sent by the server across the network.
  * It also checks that each message is valid/non-corrupt, and came from an authenticated server or a client that
@@ -18,6 +24,7 @@ public class MessageProcessor {
 
     private static Gson gson = null;
     private static JSONParser jsonParser = null;
+    private static final Pattern COMMAND_PATTERN = Pattern.compile("\"command\":\"([A-Z_]+)\"");
 
     /**
      * Validates incoming messages (ensures they have the correct fields)
@@ -58,11 +65,12 @@ public class MessageProcessor {
         String missingFieldMsg = "the received " + command + " was missing fields";
 
         switch (command) {
-            case "ANON_CONFIRM":
-            case "ANON_CHECK":
-                return (json.containsKey("anon_record") ? null : missingFieldMsg);
+            case "ANON_SESSIONS_REQUEST":
+                return (json.containsKey("id") ? null : missingFieldMsg);
             case "MSG_ACKS":
                 return (json.containsKey("sender") && json.containsKey("messages") ? null : missingFieldMsg);
+            case "MSG_ACKS_BATCH":
+                return (json.get("acks") instanceof JSONObject ? null : missingFieldMsg);
             case "GRANDPARENT_UPDATE":
                 return (json.containsKey("new_grandparent") ? null : missingFieldMsg);
             case "SIBLING_UPDATE":
@@ -72,6 +80,23 @@ public class MessageProcessor {
                         json.containsKey("port") ? null : missingFieldMsg);
             case "AUTHENTICATE":
                 return (containsSecret && isValidServerAuthMsg ? null : missingFieldMsg);
+            case "SERVER_DETACH":
+                return (json.containsKey("id") ? null : missingFieldMsg);
+            case "STANDBY_AUTH":
+                return (containsSecret && json.containsKey("id") && json.containsKey("hostname") &&
+                        json.containsKey("port") ? null : missingFieldMsg);
+            case "STANDBY_PROMOTE":
+                return (json.containsKey("id") && json.containsKey("hostname") && json.containsKey("port") ? null :
+                        missingFieldMsg);
+            case "STANDBY_READY":
+            case "STANDBY_PING":
+            case "STANDBY_PONG":
+                return null;
+            case "ROUTE_UPDATE":
+                return (json.get("users") instanceof JSONArray ? null : missingFieldMsg);
+            case "AUTHENTICATE_REDIRECT":
+                return (json.containsKey("id") && json.containsKey("hostname") && json.containsKey("port") ? null :
+                        missingFieldMsg);
             case "SERVER_ANNOUNCE":
                 return ((json.containsKey("id") && json.containsKey("load") && json.containsKey("hostname") &&
                         json.containsKey("port") && isValidServerAuthMsg) ? null : missingFieldMsg);
@@ -82,14 +107,26 @@ public class MessageProcessor {
             case "LOCK_REQUEST":
             case "LOCK_DENIED":
             case "LOCK_ALLOWED":
+            case "USER_REGISTERED":
                 return (containsLoginInfo ? null : missingFieldMsg);
+            case "USERNAME_CLAIM":
+                return (containsLoginInfo && json.containsKey("id") ? null : missingFieldMsg);
             case "LOGIN_BROADCAST":
             case "LOGOUT_BROADCAST":
                 return (containsLoginInfo && json.containsKey("token") ? null : missingFieldMsg);
             case "ACTIVITY_MESSAGE":
                 return (containsLoginInfo && containsActivity ? null : missingFieldMsg);
+            case "ACTIVITY_BATCH":
+                return (json.get("activities") instanceof JSONArray ? null : missingFieldMsg);
             case "ACTIVITY_BROADCAST":
                 return (containsActivity && containsLoginInfo && containsAMBroadcastInfo? null : missingFieldMsg);
+            case "SWIM_PING":
+                return (json.containsKey("id") && json.containsKey("hostname") && json.containsKey("port") &&
+                        json.get("updates") instanceof JSONArray ? null : missingFieldMsg);
+            case "SWIM_PING_REQ":
+                return (json.containsKey("id") && json.containsKey("hostname") && json.containsKey("port") &&
+                        json.get("updates") instanceof JSONArray && json.get("target") instanceof JSONObject ?
+                        null : missingFieldMsg);
             case "AUTHENTICATION_FAIL":
             case "INVALID_MESSAGE":
                 return (json.containsKey("info") ? null : missingFieldMsg);
@@ -219,15 +256,21 @@ public class MessageProcessor {
             // Server messages whereby sending server must be authenticated
             case "GRANDPARENT_UPDATE":
             case "SIBLING_UPDATE":
-            case "ANON_CONFIRM":
-            case "ANON_CHECK":
             case "MSG_ACKS":
+            case "MSG_ACKS_BATCH":
             case "AUTHENTICATION_SUCCESS":
+            case "AUTHENTICATE_REDIRECT":
+            case "STANDBY_READY":
+            case "STANDBY_PONG":
+            case "SERVER_DETACH":
+            case "ROUTE_UPDATE":
             case "SERVER_ANNOUNCE":
             case "ACTIVITY_BROADCAST":
+            case "ACTIVITY_BATCH":
             case "LOCK_REQUEST":
             case "LOCK_DENIED":
             case "LOCK_ALLOWED":
+            case "USER_REGISTERED":
             case "SIBLING_CRASHED":
             case "LOGIN_BROADCAST":
             case "LOGOUT_BROADCAST":
@@ -245,8 +288,39 @@ public class MessageProcessor {
             case "SERVER_SHUTDOWN":
                 return null;
 
+            // Membership probes arrive on short-lived connections, so are checked against the server secret instead
+            case "SWIM_PING":
+            case "SWIM_PING_REQ":
+                if (json.get("server_secret") == null || !json.get("server_secret").equals(Settings.getSecret())) {
+                    return "Membership probe received with an incorrect server secret";
+                }
+                return null;
+
+            // Username claims also arrive on short-lived connections, from the server the client is registering on
+            case "USERNAME_CLAIM":
+                if (json.get("server_secret") == null || !json.get("server_secret").equals(Settings.getSecret())) {
+                    return "Username claim received with an incorrect server secret";
+                }
+                return null;
+
+            // Requests for our anonymous users also arrive on short-lived connections
+            case "ANON_SESSIONS_REQUEST":
+                if (json.get("server_secret") == null || !json.get("server_secret").equals(Settings.getSecret())) {
+                    return "Anonymous sessions request received with an incorrect server secret";
+                }
+                return null;
+
+            // Messages from a grandchild on the standby connection we hold for it
+            case "STANDBY_PING":
+            case "STANDBY_PROMOTE":
+                if (!sessionManager.getServerRegistry().isStandbyCon(con)) {
+                    return "Standby message received on a connection that is not a standby connection";
+                }
+                return null;
+
             // Server messages whereby sending server must be unauthenticated
             case "AUTHENTICATE_SUCCESS":
+            case "STANDBY_AUTH":
             case "AUTHENTICATE":
                 if (serverAuthenticated) {
                     return "Server already authenticated, thus message is invalid. Now disconnecting.";
@@ -258,10 +332,19 @@ public class MessageProcessor {
         }
     }
 
-    /** Creates and returns a Gson, if not initialised already */
+    /** Creates and returns a Gson, if not initialised already. Messages are written through their getters, so the
+     * contents of spooled messages are read back from the spool. */
     public static Gson getGson() {
         if (gson == null) {
-            gson = new Gson();
+            JsonSerializer<Message> messageSerializer = (message, type, context) -> {
+                JsonObject json = new JsonObject();
+                json.add("recipients", context.serialize(message.getRemainingRecipients()));
+                json.add("clientMessage", context.serialize(message.getClientMessage()));
+                json.add("serverMessage", context.serialize(message.getServerMessage()));
+                json.addProperty("token", message.getToken());
+                return json;
+            };
+            gson = new GsonBuilder().registerTypeAdapter(Message.class, messageSerializer).create();
         }
         return gson;
     }
@@ -397,23 +480,156 @@ public class MessageProcessor {
         return msg.toString();
     }
 
-    /** Creates an AUTHENTICATE message to be sent by a server to its parent server.
+    /** Creates a USERNAME_CLAIM message, asking the server that owns a username whether a client may register it
+     * @param serverSecret The server secret
+     * @param id The id of the server the client is registering on
+     * @param username The username a client is attempting to register with
+     * @param secret The secret a client is attempting to register with
+     * @return Msg the message to be sent to the username's owner */
+    public static String getUsernameClaimMsg(String serverSecret, String id, String username, String secret) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "USERNAME_CLAIM");
+        msg.put("server_secret", serverSecret);
+        msg.put("id", id);
+        msg.put("username", username);
+        msg.put("secret", secret);
+        return msg.toString();
+    }
+
+    /** Creates a USERNAME_CLAIM_REPLY message, the owner's answer to a USERNAME_CLAIM
+     * @param username The username that was claimed
+     * @param granted true if the username was free and is now registered, false if it was already taken
+     * @return Msg the message to be sent back to the claiming server */
+    public static String getUsernameClaimReplyMsg(String username, boolean granted) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "USERNAME_CLAIM_REPLY");
+        msg.put("username", username);
+        msg.put("granted", granted);
+        return msg.toString();
+    }
+
+    /** Creates a USER_REGISTERED message, telling every server that a username has been registered
+     * @param username The registered username
+     * @param secret The registered secret
+     * @return Msg the message to be sent to all servers on the network */
+    public static String getUserRegisteredMsg(String username, String secret) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "USER_REGISTERED");
+        msg.put("username", username);
+        msg.put("secret", secret);
+        return msg.toString();
+    }
+
+    /** Creates an AUTHENTICATE message to be sent by a server to its parent server. The registry is added as the
+     * message is sent (see SessionManager.sendWithRegistry).
      * @param secret The secret a server is trying to authenticate with
-     * @param clientRecordsJson The ClientRegistry as a JSONArray in a JSON object -> {"registry" : JSONArray[...]}
      * @param id The sending server's id
      * @param hostname The sending server's hostname
      * @param port The sending server's port number
      * @return msg the message to be sent to the parent server */
-    public static String getAuthenticateMsg(String secret, JSONObject clientRecordsJson, String id, String hostname,
-                                            Integer port) {
+    public static String getAuthenticateMsg(String secret, String id, String hostname, Integer port) {
         JSONObject msg = new JSONObject();
         msg.put("command", "AUTHENTICATE");
         msg.put("secret", secret);
         msg.put("id", id);
         msg.put("hostname", hostname);
         msg.put("port", port);
-        // Adds all mappings in clientRecordsJson to msg (only "registry" is mapped to a value)
-        msg.putAll(clientRecordsJson);
+        return msg.toString();
+    }
+
+    /** Creates an AUTHENTICATE_REDIRECT message to be sent back to a server that tried to become our child when we
+     * already have as many children as we accept.
+     * @param id The id of the child server the joining server should authenticate with instead
+     * @param hostname The child server's hostname
+     * @param port The child server's port number
+     * @return msg the message to be sent back to the joining server */
+    public static String getAuthenticateRedirectMsg(String id, String hostname, int port) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "AUTHENTICATE_REDIRECT");
+        msg.put("id", id);
+        msg.put("hostname", hostname);
+        msg.put("port", port);
+        return msg.toString();
+    }
+
+    /** Creates a STANDBY_AUTH message, asking our grandparent to hold a standby connection for us
+     * @param secret The secret the server is authenticating with
+     * @param id The sending server's id
+     * @param hostname The sending server's hostname
+     * @param port The sending server's port number
+     * @return msg the message to be sent to the grandparent */
+    public static String getStandbyAuthMsg(String secret, String id, String hostname, int port) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "STANDBY_AUTH");
+        msg.put("secret", secret);
+        msg.put("id", id);
+        msg.put("hostname", hostname);
+        msg.put("port", port);
+        return msg.toString();
+    }
+
+    /** Creates a STANDBY_READY message, confirming a standby connection is being held
+     * @return msg the message to be sent to the grandchild */
+    public static String getStandbyReadyMsg() {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "STANDBY_READY");
+        return msg.toString();
+    }
+
+    /** Creates a STANDBY_PING message, keeping a standby connection alive
+     * @return msg the message to be sent to the grandparent */
+    public static String getStandbyPingMsg() {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "STANDBY_PING");
+        return msg.toString();
+    }
+
+    /** Creates a STANDBY_PONG message, answering a STANDBY_PING
+     * @return msg the message to be sent to the grandchild */
+    public static String getStandbyPongMsg() {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "STANDBY_PONG");
+        return msg.toString();
+    }
+
+    /** Creates a STANDBY_PROMOTE message, telling our grandparent our parent has failed and it is now our parent
+     * @param id The sending server's id
+     * @param hostname The sending server's hostname
+     * @param port The sending server's port number
+     * @param failedParentId The id of our parent that failed, or null if not known
+     * @return msg the message to be sent to the grandparent */
+    public static String getStandbyPromoteMsg(String id, String hostname, int port, String failedParentId) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "STANDBY_PROMOTE");
+        msg.put("id", id);
+        msg.put("hostname", hostname);
+        msg.put("port", port);
+        if (failedParentId != null) {
+            msg.put("parent", failedParentId);
+        }
+        return msg.toString();
+    }
+
+    /** Creates a SERVER_DETACH message, sent by a server to its old parent once it has moved to a new parent
+     * @param id The detaching server's id
+     * @return msg the message to be sent to the old parent */
+    public static String getServerDetachMsg(String id) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "SERVER_DETACH");
+        msg.put("id", id);
+        return msg.toString();
+    }
+
+    /** Creates a ROUTE_UPDATE message, telling every server that the given clients are now reached through the
+     * sending server's new position in the tree
+     * @param users The usernames of the clients that have moved
+     * @return msg the message to be sent to all servers on the network */
+    public static String getRouteUpdateMsg(Collection<String> users) {
+        JSONObject msg = new JSONObject();
+        JSONArray usersJson = new JSONArray();
+        usersJson.addAll(users);
+        msg.put("command", "ROUTE_UPDATE");
+        msg.put("users", usersJson);
         return msg.toString();
     }
 
@@ -458,8 +674,7 @@ public class MessageProcessor {
     }
 
     /** Creates an AUTHENTICATE_SUCCESS message to be sent by a server to its child server, after successfull
-     * authentication.
-     * @param clientRecordsJson The ClientRegistry as a JSONArray in a JSON object -> {"registry" : JSONArray[...]}
+     * authentication. The registry is added as the message is sent (see SessionManager.sendWithRegistry).
      * @param serverRegistryJson A copy of the sending server's ServerRegistry
      * @param id The sending server's id
      * @param hostname The sending server's hostname
@@ -467,14 +682,9 @@ public class MessageProcessor {
      * @param grandparent A JSONObject representing the child server's grandparent server
      * @param siblingList A list of the child server's siblings
      * @return msg the message to be sent to the child server */
-    public static String getAuthenticationSuccessMsg(JSONObject clientRecordsJson, JSONObject serverRegistryJson,
-                                                     String hostname, int port, String id, JSONObject grandparent,
-                                                     JSONObject siblingList) {
+    public static String getAuthenticationSuccessMsg(JSONObject serverRegistryJson, String hostname, int port,
+                                                     String id, JSONObject grandparent, JSONObject siblingList) {
         JSONObject msg = new JSONObject();
-        msg.put("command", "AUTHENTICATION_SUCCESS");
-        msg.put("hostname", hostname);
-        msg.put("port", port);
-        msg.put("id", id);
 
         // Add the ServerRegistry, grandparent and sibling list, if they exists
         if (serverRegistryJson != null)
@@ -488,28 +698,42 @@ public class MessageProcessor {
             msg.putAll(siblingList);
         }
 
-        // Adds all mappings in clientRecordsJson to msg (only "registry" is mapped to a value)
-        msg.putAll(clientRecordsJson);
+        // Added last, so the fields of the grandparent record above cannot overwrite the sending server's own
+        msg.put("command", "AUTHENTICATION_SUCCESS");
+        msg.put("hostname", hostname);
+        msg.put("port", port);
+        msg.put("id", id);
         return msg.toString();
     }
 
 
-    /** Creates a SERVER_ANNOUNCE message to be sent to all servers in the network.
+    /** Creates a SERVER_ANNOUNCE message to be sent to all servers in the network. The registry is added as the
+     * message is sent (see SessionManager.sendWithRegistry).
      * @param id The sending server's id
      * @param load The number of client connections a server currently has
      * @param hostName The sending server's host name
      * @param portNum The sending server's port number
-     * @param clientRecordsJson The ClientRegistry as a JSONArray in a JSON object -> {"registry" : JSONArray[...]}
+     * @param ancestors The ids of the sending server's ancestors starting at the root, or null if not yet known
+     * @param children The number of children the sending server has
+     * @param loadVector How busy the sending server is
+     * @param anonEpoch The number of times the sending server's anonymous users have changed
      * @return Msg the message to be sent to all servers on the network */
     public static String getServerAnnounceMsg(String id, int load, String hostName, int portNum,
-                                              JSONObject clientRecordsJson) {
+                                              ArrayList<String> ancestors, int children, LoadVector loadVector, long anonEpoch) {
         JSONObject msg = new JSONObject();
         msg.put("command", "SERVER_ANNOUNCE");
         msg.put("id", id);
         msg.put("load", load);
         msg.put("hostname", hostName);
         msg.put("port", portNum);
-        msg.putAll(clientRecordsJson);
+        if (ancestors != null) {
+            JSONArray ancestorsJson = new JSONArray();
+            ancestorsJson.addAll(ancestors);
+            msg.put("ancestors", ancestorsJson);
+        }
+        msg.put("children", children);
+        msg.put("load_vector", loadVector.toJson());
+        msg.put("anon_epoch", anonEpoch);
         return msg.toString();
     }
 
@@ -541,35 +765,57 @@ public class MessageProcessor {
         return msg.toString();
     }
 
-    /** Creates a ANON_LOGOUT_BROADCAST message to be sent to all servers in the network.
+    /** Creates a LOGIN_BROADCAST message for an anonymous client, to be sent to all servers in the network.
+     * @param user The username of the client that has logged in
+     * @param secret The secret of the client that has logged in
+     * @param token The token of the client that has logged in
+     * @param anonEpoch The sending server's anonymous epoch, counting this login
+     * @return Msg the message to be sent to all servers on the network */
+    public static String getAnonLoginBroadcast(String user, String secret, Integer token, long anonEpoch) {
+        JSONObject msg = toJson(getLoginBroadcast(user, secret, token), false, "");
+        msg.put("anon_epoch", anonEpoch);
+        return msg.toString();
+    }
+
+    /** Creates an ANON_LOGOUT_BROADCAST message to be sent to all servers in the network.
      * @param user The username of the client that has logged out
      * @param secret The secret of the client that has logged out
+     * @param anonEpoch The sending server's anonymous epoch, counting this logout
      * @return Msg the message to be sent to all servers on the network */
-    public static String getAnonLogoutBroadcast(String user, String secret) {
+    public static String getAnonLogoutBroadcast(String user, String secret, long anonEpoch) {
         JSONObject msg = new JSONObject();
         msg.put("command", "ANON_LOGOUT_BROADCAST");
         msg.put("username", user);
         msg.put("secret", secret);
+        msg.put("anon_epoch", anonEpoch);
         return msg.toString();
     }
 
-    /** Creates an ANON_CONFIRM message to be sent to all servers in the network.
-     * @param anonClientRecord The ClientRecord we can confirm exists
-     * @return Msg the message to be sent to all servers on the network */
-    public static String getAnonConfirm(JSONObject anonClientRecord) {
+    /** Creates an ANON_SESSIONS_REQUEST message, asking a server for its anonymous users
+     * @param serverSecret The server secret
+     * @param id The requesting server's id
+     * @return Msg the message to be sent to the server */
+    public static String getAnonSessionsRequestMsg(String serverSecret, String id) {
         JSONObject msg = new JSONObject();
-        msg.put("command", "ANON_CONFIRM");
-        msg.put("anon_record", anonClientRecord);
+        msg.put("command", "ANON_SESSIONS_REQUEST");
+        msg.put("server_secret", serverSecret);
+        msg.put("id", id);
         return msg.toString();
     }
 
-    /** Creates an ANON_CHECK message to be sent to all servers in the network.
-     * @param anonClientRecord The client record we want each server to check for
-     * @return Msg the message to be sent to all servers on the network */
-    public static String getAnonCheck(JSONObject anonClientRecord) {
+    /** Creates an ANON_SESSIONS message, answering an ANON_SESSIONS_REQUEST
+     * @param id The answering server's id
+     * @param anonEpoch The answering server's anonymous epoch
+     * @param users The usernames and secrets of the answering server's anonymous users
+     * @return Msg the message to be sent back to the requesting server */
+    public static String getAnonSessionsMsg(String id, long anonEpoch, HashMap<String, String> users) {
         JSONObject msg = new JSONObject();
-        msg.put("command", "ANON_CHECK");
-        msg.put("anon_record", anonClientRecord);
+        msg.put("command", "ANON_SESSIONS");
+        msg.put("id", id);
+        msg.put("anon_epoch", anonEpoch);
+        JSONObject usersJson = new JSONObject();
+        usersJson.putAll(users);
+        msg.put("users", usersJson);
         return msg.toString();
     }
 
@@ -577,8 +823,9 @@ public class MessageProcessor {
      * @param json The activity message
      * @param loggedInUsers All of the users currently logged into the network
      * @param msgToken The message token
-     * @return Msg the message to be sent across the network */
-    public static String getActivityBroadcastMsg(JSONObject json, ArrayList<String> loggedInUsers, Integer msgToken) {
+     * @return Msg the JSONObject representation of the message to be sent across the network */
+    public static JSONObject getActivityBroadcastJson(JSONObject json, ArrayList<String> loggedInUsers,
+                                                      Integer msgToken) {
 
         // Add all the Activity_Message fields and values (command, username, secret, activity)
         JSONObject msg = new JSONObject();
@@ -592,7 +839,7 @@ public class MessageProcessor {
         JSONObject recipientsJson = toJson(getGson().toJson(loggedInUsers), true, "recipients");
         msg.putAll(recipientsJson);
         System.out.println("MADE ACTIVITY_BROADCAST message: " + msg.toString());
-        return msg.toString();
+        return msg;
     }
 
     /** Creates an ACTIVITY_MESSAGE message to be sent across the network.
@@ -641,14 +888,105 @@ public class MessageProcessor {
         return null;
     }
 
-    /** Creates a MSG_ACKS message to be sent across the network.
-     * @param sender The client who send the message that has been delivered
+    /** Creates a MSG_ACKS_BATCH message to be sent across the network.
+     * @param acks The range encoded acknowledgements for every sender in the batch (see AckBatch)
      * @return Msg the message to be sent across the network */
-    public static JSONObject getStartAckMsg(String sender) {
+    public static String getAckBatchMsg(JSONObject acks) {
         JSONObject ackMessage = new JSONObject();
-        ackMessage.put("command", "MSG_ACKS");
-        ackMessage.put("sender", sender);
-        return ackMessage;
+        ackMessage.put("command", "MSG_ACKS_BATCH");
+        ackMessage.put("acks", acks);
+        return ackMessage.toString();
+    }
+
+    /** Creates a SWIM_PING message, probing whether a server is alive
+     * @param secret The server secret
+     * @param id The probing server's id
+     * @param hostname The probing server's hostname
+     * @param port The probing server's port number
+     * @param updates The membership updates piggybacked on the probe
+     * @return Msg the message to be sent to the probed server */
+    public static String getSwimPingMsg(String secret, String id, String hostname, Integer port, JSONArray updates) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "SWIM_PING");
+        msg.put("server_secret", secret);
+        msg.put("id", id);
+        msg.put("hostname", hostname);
+        msg.put("port", port);
+        msg.put("updates", updates);
+        return msg.toString();
+    }
+
+    /** Creates a SWIM_PING_REQ message, asking a server to probe another server on our behalf
+     * @param secret The server secret
+     * @param id The probing server's id
+     * @param hostname The probing server's hostname
+     * @param port The probing server's port number
+     * @param updates The membership updates piggybacked on the request
+     * @param target The server to be probed, as a membership update
+     * @return Msg the message to be sent to the server probing on our behalf */
+    public static String getSwimPingReqMsg(String secret, String id, String hostname, Integer port, JSONArray updates,
+                                           JSONObject target) {
+        JSONObject msg = toJson(getSwimPingMsg(secret, id, hostname, port, updates), false, "");
+        msg.put("command", "SWIM_PING_REQ");
+        msg.put("target", target);
+        return msg.toString();
+    }
+
+    /** Creates a SWIM_ACK message, answering a probe
+     * @param id The answering server's id
+     * @param updates The membership updates piggybacked on the answer
+     * @return Msg the message to be sent back to the probing server */
+    public static String getSwimAckMsg(String id, JSONArray updates) {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "SWIM_ACK");
+        msg.put("id", id);
+        msg.put("updates", updates);
+        return msg.toString();
+    }
+
+    /** Checks if a message is a server asking to join us (AUTHENTICATE), from the serialised text, so it does not
+     * have to be parsed before it is admitted. A client message whose activity mentions the command is also counted,
+     * which at worst delays it behind a join.
+     * @param msg The received message
+     * @return true if the message is an AUTHENTICATE, false otherwise */
+    public static boolean isJoinMsg(String msg) {
+        return hasCommand(msg, "AUTHENTICATE");
+    }
+
+    /** Checks if a message is a membership probe (SWIM_PING or SWIM_PING_REQ), from the serialised text, so it can
+     * be answered without waiting for the processing lock
+     * @param msg The received message
+     * @return true if the message may be a membership probe, false otherwise */
+    public static boolean isProbeMsg(String msg) {
+        return hasCommand(msg, "SWIM_PING") || hasCommand(msg, "SWIM_PING_REQ");
+    }
+
+    /** Checks if a serialised message carries a command, without parsing it
+     * @param msg The received message
+     * @param command The command to look for
+     * @return true if the command appears as the value of a command field, false otherwise */
+    private static boolean hasCommand(String msg, String command) {
+        if (!msg.contains("\"" + command + "\"")) {
+            return false;
+        }
+        Matcher matcher = COMMAND_PATTERN.matcher(msg);
+        while (matcher.find()) {
+            if (command.equals(matcher.group(1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Creates an ACTIVITY_BATCH message carrying many ACTIVITY_BROADCAST messages, from any number of senders. The
+     * activities have already been serialised, so the frame is assembled directly rather than re-parsing each one.
+     * @param activities The ACTIVITY_BROADCAST messages, in the order they are to be processed
+     * @return Msg the message to be sent across the network */
+    public static String getActivityBatchMsg(ArrayList<String> activities) {
+        StringBuilder msg = new StringBuilder("{\"command\":\"ACTIVITY_BATCH\",\"activities\":[");
+        msg.append(String.join(",", activities));
+        msg.append("]}");
+        return msg.toString();
     }
 
     /** Converts a server message to a message that can be sent to, and processed by, the clients.
@@ -700,4 +1038,21 @@ public class MessageProcessor {
         return (username.length() >= 9 && username.substring(0, 9).equals("anonymous"));
     }
 
+    /** Get the anonymous epoch carried by a LOGIN_BROADCAST, ANON_LOGOUT_BROADCAST or SERVER_ANNOUNCE
+     * @param json The message
+     * @return The epoch, or -1 if the message does not carry one */
+    public static long getAnonEpoch(JSONObject json) {
+        Object epoch = json.get("anon_epoch");
+        return (epoch instanceof Number ? ((Number) epoch).longValue() : -1);
+    }
+
+    /** Get the server an anonymous client is logged in to, from its username of the form anonymous-serverId-n
+     * @param username The username of the anonymous client
+     * @return The id of the server, or null if the username is not of that form */
+    public static String getAnonymousOwner(String username) {
+        int start = "anonymous-".length();
+        int end = username.lastIndexOf('-');
+        return (isAnonymous(username) && end > start ? username.substring(start, end) : null);
+    }
+
 }
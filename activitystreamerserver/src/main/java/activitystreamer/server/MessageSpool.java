@@ -0,0 +1,244 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Keeps the contents of pending messages on local disk once those held in memory pass the spool memory limit, so a
+ * burst of activity for slow or offline users cannot exhaust the heap. Messages keep their token and recipients in
+ * memory, and their position in the spool in place of their contents, which are read back when the message is
+ * delivered or sent to another server.
+ *
+ * The spool is a series of append-only segment files. A segment is deleted once every message in it has been delivered
+ * to all its recipients, and one that is mostly delivered has its remaining messages moved to the current segment so
+ * it can be deleted. The spool is not a record of its own: pending messages survive a restart through the write-ahead
+ * log and registry snapshots, which read spooled contents back as they are written, so old segments are cleared on
+ * startup. It is therefore only used together with a write-ahead log.
+ *
+ * Contents are only moved between segments, and segments deleted, with the spool locked; messages read their contents
+ * back with it locked too, so a reader on another thread, e.g. writing a snapshot, never follows a stale position.
+ *
+ * Messages carrying the registry, such as SERVER_ANNOUNCE, are also written out to files in the spool directory rather
+ * than built in memory, as they hold the contents of every pending message (see SpooledMessage).
+ */
+public class MessageSpool {
+    private static final Logger log = LogManager.getLogger();
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String OUTGOING_SUFFIX = ".outgoing";
+
+    private static MessageSpool messageSpool = null;
+
+    /** A segment file and the messages whose contents are in it */
+    private static class Segment {
+        private int id;
+        private File file;
+        private FileChannel channel;
+        private int size;
+        private int liveBytes;
+        private Set<Message> messages = Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>());
+    }
+
+    private File dir;
+    private TreeMap<Integer, Segment> segments;
+    private Segment current;
+    private long heldBytes; // contents of pending messages held in memory
+    private int pins;       // snapshots being written, which may still read contents of messages since delivered
+
+    /** Get the spool, if pending messages are spooled
+     * @return The spool, or null if all pending messages are held in memory */
+    public static MessageSpool getInstance() {
+        return messageSpool;
+    }
+
+    /** Starts spooling pending messages to a directory
+     * @param dirPath The directory to keep the segment files in
+     * @throws IOException If the directory cannot be used */
+    public static void open(String dirPath) throws IOException {
+        messageSpool = new MessageSpool(dirPath);
+    }
+
+    private MessageSpool(String dirPath) throws IOException {
+        this.dir = new File(dirPath);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create spool directory " + dirPath);
+        }
+        File[] old = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX) || name.endsWith(OUTGOING_SUFFIX));
+        if (old != null) {
+            for (File f : old) {
+                f.delete();
+            }
+        }
+        this.segments = new TreeMap<Integer, Segment>();
+        this.heldBytes = 0;
+        this.pins = 0;
+        startSegment(0);
+        log.info("spooling pending messages to " + dirPath + " beyond " + Settings.getSpoolMemoryLimit() +
+                 " bytes held in memory");
+    }
+
+    /** Creates a file to write an outgoing message to
+     * @return The file
+     * @throws IOException If the file cannot be created */
+    public File createOutgoingFile() throws IOException {
+        return File.createTempFile("msg", OUTGOING_SUFFIX, dir);
+    }
+
+    /** Opens a new segment to append to
+     * @param id The id of the segment */
+    private void startSegment(int id) throws IOException {
+        Segment segment = new Segment();
+        segment.id = id;
+        segment.file = new File(dir, String.format("%08d", id) + SEGMENT_SUFFIX);
+        segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+        segments.put(id, segment);
+        current = segment;
+    }
+
+    /** Counts a message's contents against the memory limit, if there is room for them
+     * @param bytes The size of the message's contents
+     * @return true if the message may be kept in memory, false if it should be spooled */
+    public synchronized boolean reserve(int bytes) {
+        if (heldBytes + bytes > Settings.getSpoolMemoryLimit()) {
+            return false;
+        }
+        heldBytes += bytes;
+        return true;
+    }
+
+    /** A message held in memory has been delivered, or moved to the spool
+     * @param bytes The size of the message's contents */
+    public synchronized void unreserve(int bytes) {
+        heldBytes -= bytes;
+    }
+
+    /** Appends a message's contents to the current segment, starting a new one if it is full
+     * @param message The message
+     * @param contents The message's contents
+     * @return The position of the contents in the spool, or -1 if they could not be written */
+    public synchronized long append(Message message, byte[] contents) {
+        try {
+            if (current.size > 0 && current.size + contents.length > Settings.getSpoolSegmentBytes()) {
+                startSegment(current.id + 1);
+            }
+            int offset = current.size;
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                current.channel.write(buffer, offset + buffer.position());
+            }
+            current.size += contents.length;
+            current.liveBytes += contents.length;
+            current.messages.add(message);
+            return ((long) current.id << 32) | offset;
+        }
+        catch (IOException e) {
+            log.error("failed to spool message, keeping it in memory: " + e);
+            return -1;
+        }
+    }
+
+    /** Reads a message's contents back from the spool
+     * @param position The position of the contents
+     * @param length The size of the contents
+     * @return The contents */
+    public synchronized String read(long position, int length) {
+        Segment segment = segments.get((int) (position >>> 32));
+        if (segment == null) {
+            throw new IllegalStateException("spooled message is in segment " + (position >>> 32) +
+                                            ", which has been deleted");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, (position & 0xffffffffL) + buffer.position()) < 0) {
+                    throw new IOException("spool segment " + segment.id + " is shorter than expected");
+                }
+            }
+        }
+        catch (IOException e) {
+            // The contents were written by us moments ago; losing them means the disk has failed under us
+            throw new IllegalStateException("failed to read spooled message: " + e, e);
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    /** A spooled message has been delivered to all its recipients, or dropped
+     * @param message The message
+     * @param position The position of its contents
+     * @param length The size of its contents */
+    public synchronized void free(Message message, long position, int length) {
+        Segment segment = segments.get((int) (position >>> 32));
+        if (segment == null || !segment.messages.remove(message)) {
+            return;
+        }
+        segment.liveBytes -= length;
+        if (pins == 0) {
+            reclaim(segment);
+        }
+    }
+
+    /** Deletes a segment once nothing in it is pending, or moves what is left out of a mostly delivered one so it
+     * can be deleted. The current segment is still being appended to, so it is only emptied, once nothing in it is
+     * pending.
+     * @param segment The segment */
+    private void reclaim(Segment segment) {
+        if (segment == current) {
+            if (segment.messages.isEmpty() && segment.size > 0) {
+                try {
+                    segment.channel.truncate(0);
+                    segment.size = 0;
+                    segment.liveBytes = 0;
+                }
+                catch (IOException e) {
+                    log.warn("failed to empty spool segment " + segment.id + ": " + e);
+                }
+            }
+            return;
+        }
+        if (!segment.messages.isEmpty() && segment.liveBytes * 4 > segment.size) {
+            return;
+        }
+        for (Message message : new ArrayList<Message>(segment.messages)) {
+            message.respool(this);
+        }
+        try {
+            segment.channel.close();
+        }
+        catch (IOException e) {
+            log.warn("failed to close spool segment " + segment.id + ": " + e);
+        }
+        segment.file.delete();
+        segments.remove(segment.id);
+    }
+
+    /** Holds off deleting segments while a snapshot is written, as it may read the contents of messages delivered
+     * after it was started */
+    public synchronized void pin() {
+        pins++;
+    }
+
+    /** A snapshot has been written; segments emptied meanwhile can now be deleted */
+    public synchronized void unpin() {
+        pins--;
+        if (pins == 0) {
+            for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                reclaim(segment);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Connects to the first of several servers that answers. Attempts are started one after another a short stagger
+ * apart, most preferred first, and run at the same time, each bounded by a connect timeout. The first connection to
+ * succeed wins, and every attempt still in progress is cancelled by closing its socket. A server that does not answer
+ * therefore delays the connection by at most the stagger, not the operating system's connect timeout. Attempts run on
+ * a bounded pool shared with the server's other short-lived requests. */
+public class ParallelConnector {
+
+    private ArrayList<ConnectedServer> candidates;
+    private Executor pool;
+    private ArrayList<Socket> attempts;
+    private ArrayList<ConnectedServer> failed;
+    private ConnectedServer winner;
+    private Socket socket;
+    private boolean finished;
+
+    /** Creates a connector for the given servers
+     * @param candidates The servers to try, most preferred first
+     * @param pool The pool to make the attempts on */
+    public ParallelConnector(ArrayList<ConnectedServer> candidates, Executor pool) {
+        this.candidates = candidates;
+        this.pool = pool;
+        this.attempts = new ArrayList<Socket>();
+        this.failed = new ArrayList<ConnectedServer>();
+        this.winner = null;
+        this.socket = null;
+        this.finished = false;
+    }
+
+    /** Tries to connect to the servers, waiting until one connects or all have failed
+     * @param timeout The longest a single attempt may take, in milliseconds
+     * @param stagger The time between starting one attempt and the next, in milliseconds
+     * @return The server that was connected to, or null if none could be reached */
+    public ConnectedServer connect(int timeout, int stagger) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger remaining = new AtomicInteger(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            ConnectedServer candidate = candidates.get(i);
+            int delay = i * stagger;
+            pool.execute(() -> attempt(candidate, delay, timeout, done, remaining));
+        }
+        try {
+            done.await(timeout + (long) stagger * candidates.size(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            // Give up on the attempts still in progress
+        }
+        synchronized (this) {
+            finished = true;
+            for (Socket attempt : attempts) {
+                if (attempt != socket) {
+                    closeQuietly(attempt);
+                }
+            }
+            return winner;
+        }
+    }
+
+    /** Get the socket connected to the winning server
+     * @return The connected socket, or null if no server could be reached */
+    public synchronized Socket getSocket() {
+        return socket;
+    }
+
+    /** Get the servers that could not be reached. Attempts cancelled because another server answered first are not
+     * counted as failures.
+     * @return The servers whose connection attempts failed */
+    public synchronized ArrayList<ConnectedServer> getFailed() {
+        return new ArrayList<ConnectedServer>(failed);
+    }
+
+    /** Makes a single connection attempt, after waiting for its turn
+     * @param candidate The server to connect to
+     * @param delay The time to wait before starting, in milliseconds
+     * @param timeout The longest the attempt may take, in milliseconds
+     * @param done Counted down once a connection has been made, or every attempt has failed
+     * @param remaining The number of attempts yet to finish */
+    private void attempt(ConnectedServer candidate, int delay, int timeout, CountDownLatch done,
+                         AtomicInteger remaining) {
+        try {
+            if (delay > 0 && done.await(delay, TimeUnit.MILLISECONDS)) {
+                // Another attempt has already connected, so this one need not start
+                return;
+            }
+            Socket attempt = new Socket();
+            synchronized (this) {
+                if (finished || winner != null) {
+                    return;
+                }
+                attempts.add(attempt);
+            }
+            attempt.connect(new InetSocketAddress(candidate.getHostname(), candidate.getPort()), timeout);
+            synchronized (this) {
+                if (!finished && winner == null) {
+                    winner = candidate;
+                    socket = attempt;
+                    done.countDown();
+                    return;
+                }
+            }
+            closeQuietly(attempt);
+        }
+        catch (IOException e) {
+            // This candidate could not be reached (unless the attempt was cancelled), so leave it to the others
+            synchronized (this) {
+                if (!finished && winner == null) {
+                    failed.add(candidate);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // The attempt was cancelled before it started
+        }
+        finally {
+            if (remaining.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+
+    /** Closes a socket, ignoring any error
+     * @param attempt The socket to close */
+    private void closeQuietly(Socket attempt) {
+        try {
+            attempt.close();
+        }
+        catch (IOException e) {
+            // Nothing more to do, the attempt is abandoned either way
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package activitystreamer.server;
+
+import activitystreamer.util.Settings;
+
+import java.util.ArrayDeque;
+
+/** A phi-accrual failure detector for the heartbeats (SERVER_ANNOUNCE messages) received from a server. Instead of
+ * declaring a server dead after a fixed time, it keeps a window of recent heartbeat inter-arrival times and reports
+ * phi: how unlikely it is, given the history, that the next heartbeat is merely late. A server whose announces are
+ * usually irregular is given more slack than one whose announces are like clockwork.
+ * All times are taken from System.nanoTime, so they are unaffected by changes to the wall clock. */
+public class PhiAccrualDetector {
+
+    private ArrayDeque<Long> intervals;
+    private double intervalSum;
+    private double intervalSquaredSum;
+    private long lastHeartbeat;
+
+    /** Creates a detector, treating its creation as the first heartbeat. The history is seeded with the expected
+     * announce interval, so a server that never announces is still suspected in good time. */
+    public PhiAccrualDetector() {
+        this.intervals = new ArrayDeque<Long>();
+        this.intervalSum = 0;
+        this.intervalSquaredSum = 0;
+        this.lastHeartbeat = System.nanoTime();
+
+        long expected = Settings.getActivityInterval();
+        addInterval(expected - expected / 4);
+        addInterval(expected + expected / 4);
+    }
+
+    /** Records that a heartbeat has arrived */
+    public synchronized void heartbeat() {
+        long now = System.nanoTime();
+        addInterval((now - lastHeartbeat) / 1000000);
+        lastHeartbeat = now;
+    }
+
+    /** Get the current suspicion level. Phi of 1 means there is about a 10% chance the server is merely late, phi of 2
+     * about 1%, phi of 3 about 0.1%, and so on.
+     * @return The suspicion level, phi */
+    public synchronized double phi() {
+        double elapsed = (System.nanoTime() - lastHeartbeat) / 1000000.0;
+        double mean = intervalSum / intervals.size() + Settings.getPhiAcceptablePause();
+        double variance = intervalSquaredSum / intervals.size() - Math.pow(intervalSum / intervals.size(), 2);
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), Settings.getPhiMinStdDev());
+
+        // Logistic approximation of the cumulative normal distribution
+        double y = (elapsed - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double pLater = (elapsed > mean ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e));
+        return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+    }
+
+    /** Checks if the suspicion level has passed the configured threshold
+     * @return true if the server should be treated as failed, false otherwise */
+    public boolean isSuspected() {
+        return phi() > Settings.getPhiThreshold();
+    }
+
+    /** Adds an inter-arrival time to the window, dropping the oldest if the window is full
+     * @param interval The time between two heartbeats, in milliseconds */
+    private void addInterval(long interval) {
+        if (intervals.size() >= Settings.getPhiWindowSize()) {
+            long oldest = intervals.removeFirst();
+            intervalSum -= oldest;
+            intervalSquaredSum -= (double) oldest * oldest;
+        }
+        intervals.addLast(interval);
+        intervalSum += interval;
+        intervalSquaredSum += (double) interval * interval;
+    }
+}
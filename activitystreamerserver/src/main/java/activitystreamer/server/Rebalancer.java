@@ -0,0 +1,104 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Moves clients from this server to less loaded ones. Once every rebalance interval the server's load score is
+ * compared with the average of the live servers it knows of; if it is at least two clients above the average, a small
+ * batch of clients is redirected, each to a server chosen by getLowLoadServer. Idle clients are moved before active
+ * ones, and a client is never moved until it has been connected for the rebalance cooldown, so clients do not bounce
+ * between two servers.
+ *
+ * The whole batch is logged out first, then the thread waits once for the LOGOUT_BROADCASTs to spread before sending
+ * the REDIRECTs. The wait happens on this thread, so message delivery is never held up by a rebalance.
+ */
+public class Rebalancer extends Thread {
+    private static final Logger log = LogManager.getLogger();
+
+    private boolean term = false;
+
+    public Rebalancer() {
+        setDaemon(true);
+        start();
+    }
+
+    /** Rebalances once every rebalance interval */
+    @Override
+    public void run() {
+        log.info("using rebalance interval of " + Settings.getRebalanceInterval() + " milliseconds");
+        while (!term) {
+            try {
+                Thread.sleep(Settings.getRebalanceInterval());
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping rebalancing");
+                break;
+            }
+            if (!term && !SessionManager.isReconnecting()) {
+                rebalance();
+            }
+        }
+    }
+
+    /** Moves a batch of clients to other servers, if we are carrying more than our share of the load */
+    private void rebalance() {
+        SessionManager sessionManager = SessionManager.getInstance();
+        double load = sessionManager.getOwnLoadScore();
+        double average = sessionManager.getAverageLoadScore();
+        int excess = (int) Math.floor(load - average);
+        if (excess < 2) {
+            // Within two clients of the average counts as balanced, so small differences do not cause moves
+            return;
+        }
+
+        // Log out every client in the batch, choosing a destination for each in turn
+        HashMap<Connection, ConnectedServer> moves = new HashMap<Connection, ConnectedServer>();
+        ArrayList<Connection> clients = sessionManager.getClientsToMove(Math.min(excess, Settings.getRebalanceBatch()));
+        for (Connection con : clients) {
+            ConnectedServer destServer = sessionManager.getLowLoadServer(load);
+            ConnectedClient client = sessionManager.getConnectedClient(con);
+            if (destServer == null) {
+                break;
+            }
+            if (client == null) {
+                continue;
+            }
+            boolean anonClient = MessageProcessor.isAnonymous(client.getUsername());
+            if (sessionManager.beginRedirect(con, destServer, anonClient)) {
+                moves.put(con, destServer);
+                load -= 1;
+            }
+        }
+        if (moves.isEmpty()) {
+            return;
+        }
+        log.info("load " + String.format("%.2f", load + moves.size()) + " is above the average of " +
+                 String.format("%.2f", average) + ", moving " + moves.size() + " clients to other servers");
+
+        // Give the LOGOUT_BROADCASTs time to spread, then send the clients on. If we are told to stop while waiting the
+        // clients are already logged out, so they are sent on straight away.
+        try {
+            Thread.sleep(SessionManager.getRedirectDelay());
+        }
+        catch (InterruptedException e) {
+            log.info("received an interrupt, sending the batch on and stopping rebalancing");
+            term = true;
+        }
+        moves.forEach((con, destServer) -> sessionManager.completeRedirect(con, destServer));
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
@@ -0,0 +1,64 @@
+package activitystreamer.server;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import activitystreamer.util.Settings;
+
+/** Tracks, for each server we have failed to connect to while repairing the tree, how long to leave it before trying
+ * it again. Each failure in a row doubles the wait, up to a limit, and every wait is jittered, so servers that lost
+ * the same parent do not keep retrying the same candidate in lockstep. A successful connection clears the record. */
+public class ReconnectBackoff {
+
+    private HashMap<String, Integer> failures;
+    private HashMap<String, Long> retryAt;
+    private Random random;
+
+    public ReconnectBackoff() {
+        this.failures = new HashMap<String, Integer>();
+        this.retryAt = new HashMap<String, Long>();
+        this.random = new Random();
+    }
+
+    /** Records that a connection attempt to a server has failed, and works out when it may next be tried
+     * @param id The id of the server */
+    public synchronized void recordFailure(String id) {
+        int count = failures.getOrDefault(id, 0) + 1;
+        failures.put(id, count);
+        long wait = Math.min((long) Settings.getReconnectBackoffBase() << Math.min(count - 1, 20),
+                             Settings.getReconnectBackoffMax());
+        // Wait somewhere between half and the whole of the backoff
+        long jittered = wait / 2 + (long) (random.nextDouble() * (wait / 2 + 1));
+        retryAt.put(id, System.currentTimeMillis() + jittered);
+    }
+
+    /** Records that a connection to a server has succeeded
+     * @param id The id of the server */
+    public synchronized void recordSuccess(String id) {
+        failures.remove(id);
+        retryAt.remove(id);
+    }
+
+    /** Checks if a server is still being left alone after failing
+     * @param id The id of the server
+     * @return true if the server should not be tried yet, false otherwise */
+    public synchronized boolean isBackedOff(String id) {
+        Long at = retryAt.get(id);
+        return at != null && at > System.currentTimeMillis();
+    }
+
+    /** Get the time until a server may be tried again
+     * @param id The id of the server
+     * @return The time to wait in milliseconds, 0 if it may be tried now */
+    public synchronized long getRemainingBackoff(String id) {
+        Long at = retryAt.get(id);
+        return (at == null ? 0 : Math.max(0, at - System.currentTimeMillis()));
+    }
+
+    /** Get a random delay before starting to reconnect, so the children of a failed server spread out their attempts
+     * @return The delay in milliseconds */
+    public int getJitter() {
+        int jitter = Settings.getReconnectJitter();
+        return (jitter <= 0 ? 0 : random.nextInt(jitter));
+    }
+}
@@ -0,0 +1,323 @@
+package activitystreamer.server;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+import com.google.gson.JsonIOException;
+
+/** A compact binary copy of the registered users' records, written periodically so that a restart only has to replay
+ * the write-ahead log written since. The file is memory-mapped when read back, and only the usernames are read at
+ * startup: each record is decoded the first time it is asked for.
+ *
+ * Layout: magic, version, generation (the write-ahead log generation that follows the snapshot), record count, then
+ * for each record its length in bytes followed by the record as written by ClientRecord.writeSnapshot. */
+public class RegistrySnapshot {
+    public static final String SNAPSHOT_SUFFIX = ".snapshot"; // added to the write-ahead log's path
+    public static final String ROTATED_SUFFIX = ".rotated"; // the log being replaced by a snapshot in progress
+    private static final int MAGIC = 0x41535253; // "ASRS"
+    private static final int VERSION = 1;
+
+    /** The registry as it stood when a snapshot was started: copies of the decoded records that had not changed by the
+     * time they were copied, and the records still held undecoded by the previous snapshot, which cannot have changed
+     * and are written out as they are */
+    public static class Cut {
+        private long generation;
+        private ArrayList<ClientRecord> records;
+        private RegistrySnapshot previous;
+        private int[] previousOffsets;
+
+        /** Must be created while changes are held off, at the point the write-ahead log is rotated, so the undecoded
+         * records are noted there. Copies of the decoded records are added afterwards.
+         * @param generation The write-ahead log generation that follows the snapshot
+         * @param previous The previous snapshot, or null if all its records have been decoded */
+        public Cut(long generation, RegistrySnapshot previous) {
+            this.generation = generation;
+            this.records = new ArrayList<ClientRecord>();
+            this.previous = previous;
+            this.previousOffsets = new int[0];
+            if (previous != null) {
+                this.previousOffsets = previous.index.values().stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /** Adds a copy of a decoded record
+         * @param record The copy */
+        public void add(ClientRecord record) {
+            records.add(record);
+        }
+
+        /** Get the number of records in the cut
+         * @return The number of records */
+        public int size() {
+            return records.size() + previousOffsets.length;
+        }
+    }
+
+    /** The stream a snapshot is written through. Lengths are written ahead of what they measure, so space is left
+     * for each and filled in once it is known, rather than everything being built in memory first to measure it. */
+    public static class SnapshotOutput extends DataOutputStream {
+        private ChannelOutput channelOutput;
+
+        private SnapshotOutput(FileChannel channel) {
+            this(new ChannelOutput(channel));
+        }
+
+        private SnapshotOutput(ChannelOutput channelOutput) {
+            super(channelOutput);
+            this.channelOutput = channelOutput;
+        }
+
+        /** Get the position in the file that the next byte will be written at
+         * @return The position */
+        public long position() {
+            return channelOutput.position();
+        }
+
+        /** Fills in an int written earlier as a placeholder
+         * @param at The position the placeholder was written at
+         * @param value The value to fill in
+         * @throws IOException If the file cannot be written to */
+        public void fillInt(long at, int value) throws IOException {
+            channelOutput.fillInt(at, value);
+        }
+
+        /** Writes an object converted to JSON as a string, in the form written by writeString. It is converted
+         * straight into the file.
+         * @param value The object to write
+         * @throws IOException If the file cannot be written to */
+        public void writeJsonString(Object value) throws IOException {
+            long lengthAt = position();
+            writeInt(0);
+            Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+            try {
+                MessageProcessor.getGson().toJson(value, writer);
+            }
+            catch (JsonIOException e) {
+                throw new IOException(e);
+            }
+            // Not closed, as that would close the snapshot
+            writer.flush();
+            fillInt(lengthAt, (int) (position() - lengthAt - 4));
+        }
+    }
+
+    /** Buffers writes to a file, keeping track of the position in it, so that what is still in the buffer can be
+     * changed in place and what has already gone to the file written over */
+    private static class ChannelOutput extends OutputStream {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long flushed; // bytes already written to the file
+
+        private ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(65536);
+            this.flushed = 0;
+        }
+
+        private long position() {
+            return flushed + buffer.position();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining()) {
+                flush();
+            }
+            if (len > buffer.capacity()) {
+                writeAt(ByteBuffer.wrap(b, off, len), flushed);
+                flushed += len;
+                return;
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            writeAt(buffer, flushed);
+            flushed += buffer.limit();
+            buffer.clear();
+        }
+
+        private void fillInt(long at, int value) throws IOException {
+            if (at >= flushed) {
+                buffer.putInt((int) (at - flushed), value);
+                return;
+            }
+            flush();
+            ByteBuffer bytes = ByteBuffer.allocate(4);
+            bytes.putInt(value);
+            bytes.flip();
+            writeAt(bytes, at);
+        }
+
+        private void writeAt(ByteBuffer bytes, long at) throws IOException {
+            long start = at - bytes.position();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, start + bytes.position());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private long generation;
+    private MappedByteBuffer buffer;
+    private HashMap<String, Integer> index; // username -> offset of the record, for records not yet decoded
+
+    private RegistrySnapshot(long generation, MappedByteBuffer buffer, HashMap<String, Integer> index) {
+        this.generation = generation;
+        this.buffer = buffer;
+        this.index = index;
+    }
+
+    /** Writes a snapshot. It is written to a temporary file and moved into place once it is on disk, so a crash part
+     * way through leaves the previous snapshot as it was. The previous snapshot stays mapped, and readable, after it is
+     * replaced. Records are written straight to the file, so a record with a large backlog of messages is never held
+     * in memory as a whole.
+     * @param path The file to write the snapshot to
+     * @param cut The records to write
+     * @throws IOException If the snapshot cannot be written */
+    public static void write(String path, Cut cut) throws IOException {
+        File tmp = new File(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             SnapshotOutput out = new SnapshotOutput(channel)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(cut.generation);
+            out.writeInt(cut.size());
+            for (ClientRecord record : cut.records) {
+                long lengthAt = out.position();
+                out.writeInt(0);
+                record.writeSnapshot(out);
+                out.fillInt(lengthAt, (int) (out.position() - lengthAt - 4));
+            }
+            byte[] raw = new byte[256];
+            for (int offset : cut.previousOffsets) {
+                ByteBuffer view = cut.previous.buffer.duplicate();
+                int length = view.getInt(offset - 4);
+                if (raw.length < length) {
+                    raw = new byte[length];
+                }
+                view.position(offset);
+                view.get(raw, 0, length);
+                out.writeInt(length);
+                out.write(raw, 0, length);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Maps a snapshot into memory and indexes its records by username, without decoding them
+     * @param path The file the snapshot was written to
+     * @return The snapshot, or null if there is none
+     * @throws IOException If the file cannot be read, or is not a snapshot */
+    public static RegistrySnapshot open(String path) throws IOException {
+        if (!new File(path).exists()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            // The mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 20 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException(path + " is not a registry snapshot");
+        }
+        long generation = buffer.getLong();
+        int count = buffer.getInt();
+        HashMap<String, Integer> index = new HashMap<String, Integer>(count * 2);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            int offset = buffer.position();
+            index.put(readString(buffer), offset);
+            buffer.position(offset + length);
+        }
+        return new RegistrySnapshot(generation, buffer, index);
+    }
+
+    /** Get the write-ahead log generation that follows the snapshot. Logs of earlier generations are already part of
+     * it.
+     * @return The generation */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** Get the usernames of the records not yet decoded
+     * @return The usernames */
+    public Set<String> getUsernames() {
+        return index.keySet();
+    }
+
+    /** Get the number of records not yet decoded
+     * @return The number of records */
+    public int size() {
+        return index.size();
+    }
+
+    /** Decodes a record, which is then no longer held by the snapshot
+     * @param username The username of the client
+     * @return The client's record, or null if the snapshot has no record for them or it was already decoded */
+    public ClientRecord load(String username) {
+        Integer offset = index.remove(username);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return ClientRecord.readSnapshot(view);
+    }
+
+    /** Writes a string as its length in bytes followed by its UTF-8 encoding
+     * @param out The stream to write to
+     * @param s The string to write
+     * @throws IOException If the stream cannot be written to */
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString
+     * @param in The buffer to read from, positioned at the string
+     * @return The string */
+    public static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
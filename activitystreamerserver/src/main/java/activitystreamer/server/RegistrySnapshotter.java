@@ -0,0 +1,82 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * A thread that writes a snapshot of the client registry each snapshot interval, so the write-ahead log replayed on a
+ * restart only holds the changes since. The log is rotated and the registry cut while messages are held off; the
+ * records are then copied a shard at a time, holding messages off only for each shard, and encoding and writing the
+ * snapshot is done on this thread while traffic carries on.
+ */
+public class RegistrySnapshotter extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private static final int SHARD_SIZE = 1000; // records copied each time the processing lock is taken
+    private boolean term = false;
+    private WriteAheadLog writeAheadLog;
+
+    public RegistrySnapshotter(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        setDaemon(true);
+        start();
+    }
+
+    /** Takes a snapshot each snapshot interval, unless nothing has been logged since the last one. */
+    @Override
+    public void run() {
+        log.info("using registry snapshot interval of " + Settings.getSnapshotInterval() + " milliseconds");
+        while (!term) {
+            try {
+                Thread.sleep(Math.max(1, Settings.getSnapshotInterval()));
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping registry snapshots");
+                break;
+            }
+            if (writeAheadLog.hasEntriesSinceRotation()) {
+                snapshot();
+            }
+        }
+    }
+
+    /** Writes a snapshot, then deletes the log it replaces. If writing fails the rotated log is kept, and the next
+     * snapshot picks it up. */
+    private void snapshot() {
+        String path = Settings.getWalFile();
+        try {
+            long copyStart = System.currentTimeMillis();
+            RegistrySnapshot.Cut cut = SessionManager.getInstance().beginSnapshot();
+            while (SessionManager.getInstance().copySnapshotShard(SHARD_SIZE)) {
+                // Let the connections waiting on the lock in before the next shard
+                Thread.yield();
+            }
+            SessionManager.getInstance().finishSnapshotCopy();
+            long writeStart = System.currentTimeMillis();
+            RegistrySnapshot.write(path + RegistrySnapshot.SNAPSHOT_SUFFIX, cut);
+            new File(path + RegistrySnapshot.ROTATED_SUFFIX).delete();
+            log.info("wrote registry snapshot of " + cut.size() + " records, generation " + cut.getGeneration() +
+                     " (copy " + (writeStart - copyStart) + " ms, write " +
+                     (System.currentTimeMillis() - writeStart) + " ms)");
+        }
+        catch (IOException e) {
+            log.error("failed to write registry snapshot: " + e);
+        }
+        finally {
+            SessionManager.getInstance().endSnapshot();
+        }
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
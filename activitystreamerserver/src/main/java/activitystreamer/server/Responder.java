@@ -53,7 +53,7 @@ public class Responder {
 
                     if (user.equals("anonymous")) {
                         // Do not need to check secret against username as is anonymous - login client
-                        username += "-" + Settings.nextSecret();
+                        username = sessionManager.nextAnonymousUsername();
                         secret = Settings.nextSecret();
 
                         // Check if there is another server client should connect to, send getRedirectMsg message if so
@@ -66,8 +66,8 @@ public class Responder {
 
                             // If login succeeded, broadcast LOGIN_BROADCAST message
                             if (!token.equals(Integer.MIN_VALUE)) {
-                                sessionManager.serverBroadcast(MessageProcessor.getLoginBroadcast(username, secret,
-                                        token));
+                                sessionManager.serverBroadcast(MessageProcessor.getAnonLoginBroadcast(username, secret,
+                                        token, sessionManager.getAnonEpoch()));
                             }
                         }
                     }
@@ -87,16 +87,11 @@ public class Responder {
 
                         // If not redirected, send the user all of the messages that are waiting for them
                         if (!redirected) {
-                            ArrayList<JSONObject> ackMsgs = sessionManager.getClientRegistry().messageFlush(con, user);
-
-                            // Send the ACKs to all servers!
-                            if (!ackMsgs.isEmpty()) {
-                                ackMsgs.forEach((ackMessage) -> {
-                                    if (ackMessage != null) {
-                                        sessionManager.serverBroadcast(ackMessage.toString());
-                                    }
-                                });
-                            }
+                            HashMap<String, HashMap<Integer, ArrayList<String>>> senderAcks =
+                                    sessionManager.getClientRegistry().messageFlush(con, user);
+
+                            // Queue the ACKs, to be sent to all servers in the next batch!
+                            senderAcks.forEach(sessionManager::queueAcks);
                         }
                     }
                 }
@@ -160,10 +155,10 @@ public class Responder {
                     }
 
                     // Add message token & recipients to ACTIVITY_BROADCAST message
-                    String activityBroadcastMsg = MessageProcessor.getActivityBroadcastMsg(clientMessage, loggedInUsers,
-                                                                                           msgToken);
-                    // Send ACTIVITY_BROADCAST to other servers
-                    sessionManager.serverBroadcast(activityBroadcastMsg);
+                    JSONObject activityBroadcast = MessageProcessor.getActivityBroadcastJson(clientMessage, loggedInUsers,
+                                                                                             msgToken);
+                    // Send ACTIVITY_BROADCAST to the servers leading to its recipients
+                    sessionManager.activityBroadcast(null, activityBroadcast);
 
                     // Retrieve client connections matching the usernames & passwords of loggedInUsers
                     sessionManager.scheduleDelivery(user);
@@ -173,8 +168,8 @@ public class Responder {
                 }
             });
             /* Register message received by server from a client. Client wants to register username and password with
-             * the server. Check if username already stored on this server, request locks, and determine if registration
-             * has failed or succeeded depending on responses. **/
+             * the server. Check if username already stored or being registered on this server, then ask the server that
+             * owns the username whether it is free. **/
             responses.put("REGISTER", new ServerCommand() {
                 @Override
                 public void execute(JSONObject json, Connection con) {
@@ -184,13 +179,13 @@ public class Responder {
 
                     // If server already knows of username then the registration fails
                     SessionManager sessionManager = SessionManager.getInstance();
-                    if (sessionManager.getClientRegistry().userExists(username)) {
+                    if (sessionManager.getClientRegistry().userExists(username) ||
+                            sessionManager.registrationPending(username)) {
                         sessionManager.registrationFailed(username, secret, con);
                     }
-                    // Username not known to this server - send out a lock request to all servers connected to
-                    // and add username and secret to it's database
+                    // Username not known to this server - claim the username from its owner, which adds it to our
+                    // database once granted
                     else {
-                        sessionManager.getClientRegistry().addFreshClient(username, secret);
                         sessionManager.registerNewClient(con, username, secret);
                     }
                 }
@@ -244,7 +239,7 @@ public class Responder {
                     // If the server was our parent, remove from our local storage
                     if (serverRegistry.isParentConnection(con)) {
                         serverRegistry.removeCrashedParent();
-                        sessionManager.reconnectParentIfDisconnected();
+                        sessionManager.reconnectParentInBackground();
                     }
                     else {
                         // Connection was a child connection
@@ -282,7 +277,19 @@ public class Responder {
 
                     // Accept the registry and use it to update ours (as part of the handshake)
                     JSONArray registry = (JSONArray) json.get("registry");
-                    sessionManager.getClientRegistry().updateRecords(registry);
+                    sessionManager.getClientRegistry().updateRecords(registry, sessionManager::hasRecipientsHere);
+                }
+            });
+            /* The server we tried to authenticate with already has as many children as it accepts, and has sent us to
+             * one of its children instead. Authenticate with that server. **/
+            responses.put("AUTHENTICATE_REDIRECT", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    String id = json.get("id").toString();
+                    String hostname = json.get("hostname").toString();
+                    int port = ((Long) json.get("port")).intValue();
+
+                    SessionManager.getInstance().followAuthenticateRedirect(con, id, hostname, port);
                 }
             });
             /* Server successfully authenticated itself with another server in the network. Update representation of
@@ -294,16 +301,24 @@ public class Responder {
                     SessionManager sessionManager = SessionManager.getInstance();
                     ServerRegistry serverRegistry = sessionManager.getServerRegistry();
 
+                    // The parent now reads us as a server, so large messages can go to it in fragments
+                    con.markServerLink();
+
                     // Retrieve info from the message
                     String parentHost = json.get("hostname").toString();
                     int port = ((Long) json.get("port")).intValue();
                     String id = json.get("id").toString();
 
                     // Update client Registry
-                    sessionManager.getClientRegistry().updateRecords((JSONArray) json.get("registry"));
+                    sessionManager.getClientRegistry().updateRecords((JSONArray) json.get("registry"),
+                                                                  sessionManager::hasRecipientsHere);
 
-                    // Set the connected Parent
+                    // Set the connected Parent. If we already had one, we are moving, so let go of the old parent.
+                    Connection oldParentCon = serverRegistry.getParentConnection();
                     serverRegistry.setConnectedParent(id, parentHost, port, con);
+                    if (oldParentCon != null && oldParentCon != con) {
+                        sessionManager.completeReparent(oldParentCon);
+                    }
 
                     // Set the grandparent, if any
                     JSONObject grandparent = (JSONObject) json.get("grandparent");
@@ -375,46 +390,12 @@ public class Responder {
 
                 }
             });
-            /* Another server in the network has a direct connection to a given anonymous client. Add this client record
-             * to our local storage.  */
-            responses.put("ANON_CONFIRM", new ServerCommand() {
+            /* Another server has missed a change to our anonymous clients, and asked for the full list on a
+             * short-lived connection. */
+            responses.put("ANON_SESSIONS_REQUEST", new ServerCommand() {
                 @Override
                 public void execute(JSONObject json, Connection con) {
-
-                    // Add the ClientRecord to server's client Registry, and forward through network
-                    JSONObject anonRecordTmp = (JSONObject) json.get("anon_record");
-                    ClientRecord newAnonRecord = new ClientRecord(anonRecordTmp);
-                    String username = newAnonRecord.getUsername();
-                    SessionManager sessionManager = SessionManager.getInstance();
-
-                    // Add the record to the registry and forward on the anon_confirm!
-                    sessionManager.getClientRegistry().addRecord(username, newAnonRecord);
-                    SessionManager.getInstance().forwardServerMsg(con, json.toString());
-                }
-            });
-            /* Conflicting understand of whether an anonymous client exists on the network or not - send out broadcast
-            * on network to check if any other server has a direct connection to the given anonymous client. */
-            responses.put("ANON_CHECK", new ServerCommand() {
-                @Override
-                public void execute(JSONObject json, Connection con) {
-
-                    // Add the ClientRecord to server's client Registry, and forward through network
-                    JSONObject anonRecordTmp = (JSONObject) json.get("anon_record");
-                    ClientRecord newAnonRecord = new ClientRecord(anonRecordTmp);
-                    SessionManager sessionManager = SessionManager.getInstance();
-                    String username = newAnonRecord.getUsername();
-                    String secret = newAnonRecord.getSecret();
-
-                    // This server has a direct connection w/ the anon client. Broadcast ANON_CONFIRM msg.
-                    if (sessionManager.clientLoggedInLocally(username, secret)) {
-                        String msg = MessageProcessor.getAnonConfirm(anonRecordTmp);
-                        sessionManager.serverBroadcast(msg);
-                    }
-                    // Not connected to anon client. Remove record from registry if it exists & forward ANON_CHECK.
-                    else {
-                        sessionManager.getClientRegistry().removeUser(username);
-                        sessionManager.forwardServerMsg(con, json.toString());
-                    }
+                    SessionManager.getInstance().anonymousSessionsRequested(con);
                 }
             });
             /* Received an activity broadcast message from a server. Forward message on to all other connections, except
@@ -424,17 +405,30 @@ public class Responder {
                 public void execute(JSONObject json, Connection con) {
 
                     System.out.println("Received ACTIVITY_BROADCAST: " + json.toString());
+                    SessionManager.getInstance().receiveActivityBroadcast(json, con);
+                }
+            });
+            /* Received a batch of activity broadcasts from a server. Each activity is handled in the order it appears
+             * in the batch, exactly as if it had been received as its own ACTIVITY_BROADCAST. **/
+            responses.put("ACTIVITY_BATCH", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    JSONArray activities = (JSONArray) json.get("activities");
+                    System.out.println("Received ACTIVITY_BATCH of " + activities.size() + " activities");
 
-                    // Forward message onto all other servers
                     SessionManager sessionManager = SessionManager.getInstance();
-                    sessionManager.forwardServerMsg(con, json.toString());
-
-                    // Add message to ClientRegistry
-                    ClientRegistry clientRegistry = sessionManager.getClientRegistry();
-                    String sender = json.get("username").toString();
-                    Message received_message = new Message(json);
-                    clientRegistry.addMessageToRegistry(received_message, sender);
-                    sessionManager.scheduleDelivery(sender);
+                    for (Object activityObj : activities) {
+                        if (!(activityObj instanceof JSONObject) ||
+                                MessageProcessor.hasValidCommandAndFields((JSONObject) activityObj) != null ||
+                                !"ACTIVITY_BROADCAST".equals(((JSONObject) activityObj).get("command"))) {
+                            System.out.println("Skipping invalid activity in batch: " + activityObj);
+                            continue;
+                        }
+                        if (sessionManager.isDuplicate((JSONObject) activityObj)) {
+                            continue;
+                        }
+                        sessionManager.receiveActivityBroadcast((JSONObject) activityObj, con);
+                    }
                 }
             });
             /* Client(s) successfully received message(s), update records by removing as a recipient from
@@ -455,6 +449,23 @@ public class Responder {
                     sessionManager.forwardServerMsg(con, json.toString());
                 }
             });
+            /* Clients successfully received messages from many senders, acknowledged as ranges of tokens. Update
+             * records by removing them as recipients from each message, then forward the batch. */
+            responses.put("MSG_ACKS_BATCH", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    SessionManager sessionManager = SessionManager.getInstance();
+                    ClientRegistry clientRegistry = sessionManager.getClientRegistry();
+
+                    // Decode the ranges and register the ACKs of each sender in the ClientRegistry
+                    AckBatch.fromJson((JSONObject) json.get("acks")).forEach((sender, ackMap) -> {
+                        if (!ackMap.isEmpty()) {
+                            clientRegistry.registerAcks(ackMap, sender);
+                        }
+                    });
+                    sessionManager.forwardServerMsg(con, json.toString());
+                }
+            });
             /* A registered client has logged into the network - update records to reflect this */
             responses.put("LOGIN_BROADCAST", new ServerCommand() {
                 @Override
@@ -469,8 +480,22 @@ public class Responder {
                     String loginContext = "Context: receiving LOGIN_BROADCAST (in Responder)";
 
                     // Update client records so is logged in
-                    ClientRegistry clientRegistry = SessionManager.getInstance().getClientRegistry();
+                    SessionManager sessionManager = SessionManager.getInstance();
+                    ClientRegistry clientRegistry = sessionManager.getClientRegistry();
+
+                    // Anonymous usernames are unique by construction, so this is the first we hear of them
+                    if (MessageProcessor.isAnonymous(user) && !clientRegistry.userExists(user)) {
+                        clientRegistry.addFreshClient(user, secret);
+                    }
+                    if (MessageProcessor.isAnonymous(user)) {
+                        sessionManager.anonymousChangeHeard(user, MessageProcessor.getAnonEpoch(json));
+                    }
                     clientRegistry.logUser(true, user, secret, loginContext, loginRequestToken);
+
+                    // The client can now be reached through the server that sent this, so activities addressed to
+                    // them are routed that way. Forward so every server learns the route.
+                    sessionManager.getRoutingTable().learnRoute(user, con);
+                    sessionManager.forwardServerMsg(con, json.toString());
                 }
             });
             /* A client has logged off the network - update record to reflect this  */
@@ -484,6 +509,7 @@ public class Responder {
                     String secret = json.get("secret").toString();
                     // Set client record to indicate client is not logged into the network
                     sessionManager.logoutRegisteredClient(user, secret, logoutContext, logoutRequestToken);
+                    sessionManager.getRoutingTable().forgetRoute(user, con);
                     sessionManager.forwardServerMsg(con, json.toString());
                 }
             });
@@ -496,10 +522,80 @@ public class Responder {
                     SessionManager sessionManager = SessionManager.getInstance();
                     // String logoutContext = "Context: Received ANON_LOGOUT_BROADCAST for " + user;
                     // Because was an anonymous user, need to remove the client's record
-                    sessionManager.logoutAnonClient(user);
+                    sessionManager.logoutAnonClient(user, MessageProcessor.getAnonEpoch(json));
+                    sessionManager.getRoutingTable().forgetRoute(user, con);
                     sessionManager.forwardServerMsg(con, json.toString());
                 }
             });
+            /* A grandchild has asked us to hold a standby connection, so we can take over as its parent at once if its
+             * parent fails. **/
+            responses.put("STANDBY_AUTH", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    String id = json.get("id").toString();
+                    String hostname = json.get("hostname").toString();
+                    Integer port = ((Long) json.get("port")).intValue();
+                    String secret = (String) json.get("secret");
+                    SessionManager.getInstance().acceptStandby(secret, con, id, hostname, port);
+                }
+            });
+            /* Our grandparent is holding our standby connection. **/
+            responses.put("STANDBY_READY", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    con.markServerLink();
+                    StandbyLink standbyLink = SessionManager.getInstance().getStandbyLink();
+                    if (standbyLink != null) {
+                        standbyLink.standbyReady(con);
+                    }
+                }
+            });
+            /* A grandchild is keeping its standby connection alive. **/
+            responses.put("STANDBY_PING", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    con.writeControlMsg(MessageProcessor.getStandbyPongMsg());
+                }
+            });
+            /* Our grandparent has answered our standby ping. **/
+            responses.put("STANDBY_PONG", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    StandbyLink standbyLink = SessionManager.getInstance().getStandbyLink();
+                    if (standbyLink != null) {
+                        standbyLink.standbyPong(con);
+                    }
+                }
+            });
+            /* A grandchild's parent has failed, and it has made us its parent over its standby connection. **/
+            responses.put("STANDBY_PROMOTE", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    SessionManager.getInstance().standbyPromoted(con, (String) json.get("parent"));
+                }
+            });
+            /* One of our children has moved to a new parent nearer the root. Remove it from our children. **/
+            responses.put("SERVER_DETACH", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    SessionManager.getInstance().childDetached(con);
+                }
+            });
+            /* A server has moved in the tree, taking the given clients with it. Activities for them are now routed
+             * down the link this arrived on. Forward so every server learns the new routes. **/
+            responses.put("ROUTE_UPDATE", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    SessionManager sessionManager = SessionManager.getInstance();
+                    RoutingTable routingTable = sessionManager.getRoutingTable();
+                    for (Object user : (JSONArray) json.get("users")) {
+                        if (!sessionManager.getLocalUsernames().contains(user.toString())) {
+                            routingTable.learnRoute(user.toString(), con);
+                        }
+                    }
+                    sessionManager.forwardServerControlMsg(con, json.toString());
+                }
+            });
             /* Server announce message received from another server. Update information about this server, then forward
              * message on to all server connections. **/
             responses.put("SERVER_ANNOUNCE", new ServerCommand() {
@@ -515,7 +611,7 @@ public class Responder {
 
                     // Update our client registry
                     SessionManager sessionManager = SessionManager.getInstance();
-                    sessionManager.getClientRegistry().updateRecords(newClientRegistry);
+                    sessionManager.getClientRegistry().updateRecords(newClientRegistry, sessionManager::hasRecipientsHere);
 
                     // Update this server's information about the given server
                     ServerRegistry serverRegistry = sessionManager.getServerRegistry();
@@ -525,6 +621,19 @@ public class Responder {
                     else {
                         serverRegistry.updateRegistry(id, load, hostname, port, true);
                     }
+                    if (json.get("ancestors") instanceof JSONArray) {
+                        ArrayList<String> ancestors = new ArrayList<String>();
+                        ((JSONArray) json.get("ancestors")).forEach((ancestor) -> ancestors.add(ancestor.toString()));
+                        int children = (json.get("children") instanceof Number ?
+                                        ((Number) json.get("children")).intValue() : 0);
+                        serverRegistry.updateTreePosition(id, ancestors, children);
+                    }
+                    if (json.get("anon_epoch") instanceof Number) {
+                        sessionManager.checkAnonymousEpoch(id, hostname, port, MessageProcessor.getAnonEpoch(json));
+                    }
+                    if (json.get("load_vector") instanceof JSONObject) {
+                        serverRegistry.updateLoadVector(id, LoadVector.fromJson((JSONObject) json.get("load_vector")));
+                    }
 
                     // Forward to all other servers that this server is connected to
                     sessionManager.forwardServerMsg(con, json.toString());
@@ -544,17 +653,17 @@ public class Responder {
                     // Firstly, if username exists then broadcast a LOCK_DENIED message
                     if (sessionManager.getClientRegistry().userExists(username)) {
                         String msg = MessageProcessor.getLockResponseMg("LOCK_DENIED", username, secret);
-                        sessionManager.serverBroadcast(msg);
+                        sessionManager.serverControlBroadcast(msg);
                     }
                     // Otherwise, broadcast Lock request and send LOCK_ALLOWED
                     else {
                         // Forward the LOCK_REQUEST message on to all other server connections
-                        sessionManager.forwardServerMsg(con, json.toString());
+                        sessionManager.forwardServerControlMsg(con, json.toString());
 
                         // Add to username registry and send LOCK_ALLOWED message
                         sessionManager.getClientRegistry().addFreshClient(username, secret);
                         String msg = MessageProcessor.getLockResponseMg("LOCK_ALLOWED", username, secret);
-                        sessionManager.serverBroadcast(msg);
+                        sessionManager.serverControlBroadcast(msg);
                     }
                 }
             });
@@ -577,7 +686,7 @@ public class Responder {
                     sessionManager.registrationFailed(username, secret, con);
 
                     // Forward the LOCK_DENIED message to all other connections
-                    sessionManager.serverBroadcast(json.toString());
+                    sessionManager.forwardServerControlMsg(con, json.toString());
                 }
             });
 
@@ -610,8 +719,36 @@ public class Responder {
                     // We're not connected to the client so we're not the sender; forward the LOCK_ALLOWED message!
                     else {
                         System.out.println("WE'RE NOT THE SENDER - FORWARD LOCK_ALLOWED");
-                        sessionManager.forwardServerMsg(con, json.toString());
+                        sessionManager.forwardServerControlMsg(con, json.toString());
+                    }
+                }
+            });
+
+            /* A server has a client registering a username that we own. Decide whether it is free, and answer on the
+             * same short-lived connection. */
+            responses.put("USERNAME_CLAIM", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    String username = (String) json.get("username");
+                    String secret = (String) json.get("secret");
+                    SessionManager.getInstance().usernameClaimed(con, username, secret);
+                }
+            });
+            /* The owner of a username has granted it to a client. Record the username and secret if we do not already
+             * have them, and forward the message through the network. */
+            responses.put("USER_REGISTERED", new ServerCommand() {
+                @Override
+                public void execute(JSONObject json, Connection con) {
+                    String username = (String) json.get("username");
+                    String secret = (String) json.get("secret");
+
+                    SessionManager sessionManager = SessionManager.getInstance();
+
+                    // Leave an existing record alone, as it holds the user's login state
+                    if (!sessionManager.getClientRegistry().secretCorrect(username, secret)) {
+                        sessionManager.getClientRegistry().addFreshClient(username, secret);
                     }
+                    sessionManager.forwardServerMsg(con, json.toString());
                 }
             });
 
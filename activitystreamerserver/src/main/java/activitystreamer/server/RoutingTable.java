@@ -0,0 +1,117 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps a summary of which clients are reachable through each of a server's links, learned from the LOGIN_BROADCAST
+ * and LOGOUT_BROADCAST messages that travel through the tree. An activity only needs to travel down the links leading
+ * to at least one of its recipients; a recipient with no known route (e.g. one that has logged out) is assumed to be
+ * reachable through every link.
+ *
+ * The table also remembers, for each link and sender, the token of the last activity sent on that link. This is sent
+ * with the next activity as "link_prev", so the server on the other end knows the tokens in between were never routed
+ * to it and need not be waited for. If one of those turns up later, e.g. by gossip after a recipient moved, it is
+ * still delivered to the recipients that never got it. */
+public class RoutingTable {
+
+    // username -> the link the client's LOGIN_BROADCAST arrived on
+    private ConcurrentHashMap<String, Connection> routes;
+    // link -> sender -> token of the last activity sent on that link
+    private ConcurrentHashMap<Connection, ConcurrentHashMap<String, Integer>> lastSent;
+
+    /** Creates an empty routing table */
+    public RoutingTable() {
+        this.routes = new ConcurrentHashMap<String, Connection>();
+        this.lastSent = new ConcurrentHashMap<Connection, ConcurrentHashMap<String, Integer>>();
+    }
+
+    /** Records that a client has logged in somewhere beyond the given link
+     * @param user The client's username
+     * @param con The link the client's LOGIN_BROADCAST was received on */
+    public void learnRoute(String user, Connection con) {
+        routes.put(user, con);
+    }
+
+    /** Forgets where a client is, e.g. as they have logged in to this server
+     * @param user The client's username */
+    public void forgetRoute(String user) {
+        routes.remove(user);
+    }
+
+    /** Forgets where a client is, as they have logged out. The route is only removed if the logout came from the same
+     * direction as the login, so a late logout cannot undo a newer login elsewhere.
+     * @param user The client's username
+     * @param con The link the client's LOGOUT_BROADCAST was received on */
+    public void forgetRoute(String user, Connection con) {
+        routes.remove(user, con);
+    }
+
+    /** Forgets every route through a link that has closed
+     * @param con The closed link */
+    public void forgetLink(Connection con) {
+        routes.values().removeIf((route) -> route.equals(con));
+        lastSent.remove(con);
+    }
+
+    /** Get the clients reachable through any of the given links
+     * @param links The links to look for
+     * @return The usernames of the clients routed through those links */
+    public HashSet<String> usersRoutedVia(Collection<Connection> links) {
+        HashSet<String> users = new HashSet<String>();
+        routes.forEach((user, route) -> {
+            if (links.contains(route)) {
+                users.add(user);
+            }
+        });
+        return users;
+    }
+
+    /** Get the link a client can be reached through
+     * @param user The client's username
+     * @return The link, or null if we don't know where the client is */
+    public Connection getRoute(String user) {
+        return routes.get(user);
+    }
+
+    /** Works out which links an activity needs to be sent down to reach all of its recipients
+     * @param recipients The clients yet to receive the activity
+     * @param links The server links we could send the activity on
+     * @param from The link the activity was received on (never sent back down), or null
+     * @param localUsers The clients logged in to this server, who need not be routed anywhere
+     * @return The links to send the activity on */
+    public HashSet<Connection> linksFor(ArrayList<String> recipients, Collection<Connection> links, Connection from,
+                                        HashSet<String> localUsers) {
+        HashSet<Connection> selected = new HashSet<Connection>();
+        for (String recipient : recipients) {
+            if (localUsers.contains(recipient)) {
+                continue;
+            }
+            Connection route = routes.get(recipient);
+            if (route == null || !links.contains(route)) {
+                // We don't know where this recipient is, so the activity has to go everywhere
+                selected.addAll(links);
+                break;
+            }
+            selected.add(route);
+        }
+        selected.remove(from);
+        return selected;
+    }
+
+    /** Records that an activity is being sent on a link
+     * @param con The link the activity is being sent on
+     * @param sender The client who sent the activity
+     * @param token The activity's token
+     * @return The token of the previous activity from this sender sent on the link, or 0 if there was none */
+    public Integer recordSent(Connection con, String sender, Integer token) {
+        ConcurrentHashMap<String, Integer> linkTokens = lastSent.get(con);
+        if (linkTokens == null) {
+            linkTokens = new ConcurrentHashMap<String, Integer>();
+            lastSent.put(con, linkTokens);
+        }
+        Integer previous = linkTokens.put(sender, token);
+        return (previous == null ? 0 : previous);
+    }
+}
@@ -0,0 +1,37 @@
+package activitystreamer.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Remembers the most recent messages flooded between servers, identified by the server they originated at and their
+ * sequence number there, so a copy that arrives a second time over another link can be dropped. Only the most recently
+ * seen messages are kept, so the cache has a fixed size however long the server runs. */
+public class SeenCache {
+
+    private LinkedHashMap<String, Boolean> seen;
+
+    /** Creates an empty cache
+     * @param capacity The number of messages to remember */
+    public SeenCache(int capacity) {
+        this.seen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Records that a message has been seen
+     * @param origin The id of the server the message originated at
+     * @param seq The message's sequence number at its origin
+     * @return true if this is the first time the message has been seen, false if it is a duplicate */
+    public synchronized boolean markSeen(String origin, long seq) {
+        return seen.put(origin + ":" + seq, true) == null;
+    }
+
+    /** Get the number of messages currently remembered
+     * @return The number of messages in the cache */
+    public synchronized int size() {
+        return seen.size();
+    }
+}
@@ -8,6 +8,7 @@ import org.json.simple.JSONObject;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -18,6 +19,7 @@ public class ServerRegistry {
 
     private ConcurrentHashMap<Connection, ConnectedServer> server_connections;
     private ArrayList<Connection> unauthorised_connections;
+    private ConcurrentHashMap<Connection, ConnectedServer> standby_connections;
     private ConnectedServer grandparent;
     private ConnectedServer parent;
     private Connection parentConnection;
@@ -43,6 +45,7 @@ public class ServerRegistry {
         this.parentConnection = null;
         this.server_connections = new ConcurrentHashMap<Connection, ConnectedServer>();
         this.unauthorised_connections = new ArrayList<Connection>();
+        this.standby_connections = new ConcurrentHashMap<Connection, ConnectedServer>();
         this.all_servers = new ConcurrentHashMap<String, ConnectedServer>();
     }
 
@@ -77,8 +80,9 @@ public class ServerRegistry {
             System.out.println("Updating Registry -> Adding connection to server_connections: " + hostname + ":" + port);
             all_servers.put(id, newConnectedServer);
         }
-        if (!isChild) {
-            // Message came from a server that is not one of our children, reset timeout counter
+        if (parent != null && parent.getId().equals(id) && parent != all_servers.get(id)) {
+            // Our parent's own announce, when the record updated above is not the one we hold for the parent. Announces
+            // relayed from further up are not heartbeats of the parent: their arrival gaps are not its interval.
             parent.resetTimeout();
         }
     }
@@ -339,6 +343,18 @@ public class ServerRegistry {
         return server_connections.get(con);
     }
 
+    /** Retrieve the connection we have to a given server
+     * @param server The server's record
+     * @return The connection to the server, or null if we are not directly connected to it */
+    public Connection getConnectionToServer(ConnectedServer server) {
+        for (HashMap.Entry<Connection, ConnectedServer> entry : server_connections.entrySet()) {
+            if (entry.getValue().equals(server)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
     /** Retrieve a server record for a given server id
      * @param serverId the id of the server we want the record for
      * @return The ConnectedServer record for that server, if exists, otherwise null */
@@ -364,12 +380,148 @@ public class ServerRegistry {
         return server_connections;
     }
 
+    /** Get the links to our parent and children whose SERVER_ANNOUNCEs have stopped arriving, i.e. whose suspicion
+     * level has passed the configured threshold although the connection still looks open, e.g. as the server hung or
+     * the network dropped the link without resetting it
+     * @return The connections to servers we suspect have failed */
+    public ArrayList<Connection> getSilentLinks() {
+        ArrayList<Connection> silent = new ArrayList<Connection>();
+        server_connections.forEach((con, server) -> {
+            // The parent's own announces feed the record we hold for it; a child's feed its record in all_servers
+            ConnectedServer record = (isParentConnection(con) ? parent
+                                                              : all_servers.getOrDefault(server.getId(), server));
+            if (record != null && con.isOpen() && record.isTimedOut()) {
+                silent.add(con);
+            }
+        });
+        return silent;
+    }
+
     /** Return the records of all the servers we are aware of
      * @return Records for all servers we know about on the network */
     public ArrayList<ConnectedServer> getAllServers() {
         return new ArrayList<>(all_servers.values());
     }
 
+    /** Update how busy a server is, from the load vector carried in its SERVER_ANNOUNCE
+     * @param id The server's id
+     * @param loadVector The server's load */
+    public void updateLoadVector(String id, LoadVector loadVector) {
+        ConnectedServer server = all_servers.get(id);
+        if (server != null) {
+            server.setLoadVector(loadVector);
+        }
+    }
+
+    /** Get the number of activities queued on our links to other servers, waiting to be sent in a batch
+     * @return The number of queued activities */
+    public int getQueuedActivities() {
+        int queued = 0;
+        for (Connection con : server_connections.keySet()) {
+            queued += con.getQueuedActivities();
+        }
+        return queued;
+    }
+
+    /** Update where a server is in the tree, from the position carried in its SERVER_ANNOUNCE
+     * @param id The server's id
+     * @param ancestors The ids of the server's ancestors, starting at the root
+     * @param childCount The number of children the server has */
+    public void updateTreePosition(String id, ArrayList<String> ancestors, int childCount) {
+        ConnectedServer server = all_servers.get(id);
+        if (server != null) {
+            server.setTreePosition(ancestors, childCount);
+        }
+    }
+
+    /** Get the ids of this server's ancestors, starting at the root, worked out from our parent's position
+     * @return Our ancestors (empty if we are the root), or null if our parent has not announced its position yet */
+    public ArrayList<String> getAncestors() {
+        if (parent == null) {
+            return new ArrayList<String>();
+        }
+        ConnectedServer parentRecord = all_servers.get(parent.getId());
+        if (parentRecord == null || parentRecord.getAncestors() == null) {
+            return null;
+        }
+        ArrayList<String> ancestors = new ArrayList<String>(parentRecord.getAncestors());
+        ancestors.add(parent.getId());
+        return ancestors;
+    }
+
+    /** Get the child server with the fewest clients, which a joining server is redirected to when we have as many
+     * children as we accept
+     * @return The least loaded child that is still announcing, or null if there is none */
+    public ConnectedServer getLeastLoadedChild() {
+        return getLeastLoadedChild(null);
+    }
+
+    /** Get the child server with the lowest load, other than one known to have failed
+     * @param excludeId The id of a child that must not be chosen, or null
+     * @return The least loaded child, or null if there is none */
+    public ConnectedServer getLeastLoadedChild(String excludeId) {
+        ConnectedServer leastLoaded = null;
+        for (ConnectedServer child : connectedChildServers.keySet()) {
+            if (child.isTimedOut() || child.getId().equals(excludeId)) {
+                continue;
+            }
+            if (leastLoaded == null || child.getLoadScore() < leastLoaded.getLoadScore()) {
+                leastLoaded = child;
+            }
+        }
+        return leastLoaded;
+    }
+
+    /** Checks if a server is one of our children
+     * @param id The server's id
+     * @return true if the server is a connected child, false otherwise */
+    public boolean hasChild(String id) {
+        for (ConnectedServer child : connectedChildServers.keySet()) {
+            if (child.getId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Forget a link to a server that is being closed without the server having failed, e.g. as it redirected us
+     * @param con The connection to the server */
+    public void removeServerCon(Connection con) {
+        server_connections.remove(con);
+        unauthorised_connections.remove(con);
+    }
+
+    /** Hold a standby connection from one of our grandchildren. Nothing is broadcast on it until it is promoted.
+     * @param con The standby connection
+     * @param grandchild The grandchild's record */
+    public void addStandbyCon(Connection con, ConnectedServer grandchild) {
+        standby_connections.put(con, grandchild);
+    }
+
+    /** Stop holding a standby connection, as it has been promoted or closed
+     * @param con The standby connection
+     * @return The grandchild's record, or null if the connection was not a standby connection */
+    public ConnectedServer removeStandbyCon(Connection con) {
+        return standby_connections.remove(con);
+    }
+
+    /** Checks if a connection is a standby connection held for one of our grandchildren
+     * @param con The connection to examine
+     * @return true if it is a standby connection, false otherwise */
+    public boolean isStandbyCon(Connection con) {
+        return standby_connections.containsKey(con);
+    }
+
+    /** Get how strongly we suspect each server we know about has failed
+     * @return A hashmap of server ids to their suspicion levels (phi) */
+    public HashMap<String, Double> getSuspicionLevels() {
+        HashMap<String, Double> levels = new HashMap<String, Double>();
+        for (ConnectedServer server : all_servers.values()) {
+            levels.put(server.getId(), server.getSuspicion());
+        }
+        return levels;
+    }
+
     /** Add a new server connection to our holding list
      * @param con the connection to add*/
     public void addServerCon(Connection con) {
@@ -387,7 +539,7 @@ public class ServerRegistry {
     /** Close all connections we have to a server, and send a shutdown message to these connections */
     public void closeServerCons() {
         server_connections.forEach((con, server) -> {
-            con.writeMsg(MessageProcessor.getShutdownMessage(this_server.getId()));
+            con.writeControlMsg(MessageProcessor.getShutdownMessage(this_server.getId()));
         });
         server_connections.clear();
     }
@@ -1,10 +1,29 @@
 package activitystreamer.server;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.logging.log4j.LogManager;
@@ -26,12 +45,35 @@ public class SessionManager extends Thread {
     private static ServerRegistry serverRegistry;
     private static boolean term = false;
     private static Listener listener;
+    private static ActivityFlusher activityFlusher;
+    private static WriteAheadLog writeAheadLog;
+    private static RegistrySnapshotter registrySnapshotter;
+    private static SwimMembership membership;
+    private static TreeOptimizer treeOptimizer;
+    private static StandbyLink standbyLink;
+    private static Rebalancer rebalancer;
     private static String serverId;
     private static Responder responder;
     private static ClientRegistry clientRegistry;
     private final static int REDIRECT_DELAY = 2000; // milliseconds (= 2 seconds)
+    private final static int ACK_BATCH_LIMIT = 1000; // acknowledgements held before the batch is sent early
+    private final static int DIRECT_REQUEST_THREADS = 16; // requests to other servers awaited at once, the rest queue
     private static ConcurrentLinkedQueue<String> deliveries;
+    private static AckBatch pendingAcks;
+    private static RoutingTable routingTable;
+    private static SeenCache seenCache;
+    private static AtomicLong msgSeq;
     private static boolean reconnecting;
+    private static Connection reparentConnection;
+    private static ReconnectBackoff reconnectBackoff;
+    private static Semaphore joinAdmissions;
+    private static LoadMonitor loadMonitor;
+    private static ActivityThrottle activityThrottle;
+    private static AtomicLong anonSeq;
+    private static AnonymousEpochs anonEpochs;
+    private static HashMap<String, InetSocketAddress> anonSyncQueue; // out-of-step servers for the next sync round
+    private static boolean anonSyncRunning;
+    private static ExecutorService directRequests; // waits on requests made on short-lived connections
 
     protected static SessionManager sessionManager = null;
 
@@ -47,6 +89,10 @@ public class SessionManager extends Thread {
      */
     public SessionManager() {
 
+        // Connections (e.g. membership probes) can arrive before the constructor returns, and must not create a second
+        // SessionManager through getInstance()
+        sessionManager = this;
+
         // To store unauthenticated server connections & not yet logged in client connections
         connections = new ArrayList<Connection>();
 
@@ -56,13 +102,61 @@ public class SessionManager extends Thread {
         // To store connected Servers & Clients.
         clientConnections = new HashMap<Connection, ConnectedClient>();
         deliveries = new ConcurrentLinkedQueue<String>();
+        pendingAcks = new AckBatch();
+        routingTable = new RoutingTable();
+        seenCache = new SeenCache(Settings.getSeenCacheSize());
+        msgSeq = new AtomicLong(0);
+        reconnectBackoff = new ReconnectBackoff();
+        joinAdmissions = new Semaphore(Settings.getMaxConcurrentJoins(), true);
+        loadMonitor = new LoadMonitor();
+        activityThrottle = new ActivityThrottle();
+        anonSeq = new AtomicLong(0);
+        anonEpochs = new AnonymousEpochs();
+        anonSyncQueue = new HashMap<String, InetSocketAddress>();
+        anonSyncRunning = false;
+        directRequests = Executors.newFixedThreadPool(DIRECT_REQUEST_THREADS, (r) -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
         serverRegistry = new ServerRegistry(serverId, Settings.getLocalPort(), Settings.getLocalHostname());
 
-        // Store information about all known clients in a system
+        // Pending messages beyond the memory limit are kept on disk
+        if (Settings.getSpoolDir() != null) {
+            try {
+                MessageSpool.open(Settings.getSpoolDir());
+            }
+            catch (IOException e) {
+                log.fatal("failed to open message spool: " + e);
+                System.exit(-1);
+            }
+        }
+
+        // Store information about all known clients in a system, rebuilt from the write-ahead log if we keep one
         clientRegistry = new ClientRegistry();
+        if (Settings.getWalFile() != null) {
+            recoverClientRegistry();
+        }
 
         responder = new Responder();
 
+        // Sends activities batched on server links that have waited long enough
+        activityFlusher = new ActivityFlusher(serverRegistry);
+
+        // Probes other servers to maintain the membership of the network and detect failed servers
+        membership = new SwimMembership(serverRegistry, directRequests);
+
+        // Moves this server nearer the root of the tree when a shallower position becomes free
+        treeOptimizer = new TreeOptimizer(serverRegistry, membership);
+
+        // Moves clients to less loaded servers, a few at a time
+        rebalancer = new Rebalancer();
+
+        // Keeps a warm standby connection to our grandparent, so it can take over at once if our parent fails
+        if (Settings.isStandbyEnabled()) {
+            standbyLink = new StandbyLink(serverRegistry);
+        }
+
         // start a listener - keeps listening until ...?
         try {
             listener = new Listener();
@@ -112,16 +206,40 @@ public class SessionManager extends Thread {
         Integer port = conToTry.getPort();
 
         // Make a connection to another server if remote hostname is supplied
+        Socket socket = new Socket();
         try {
             System.out.println("Trying to connect to: " + hostname + ":" + port);
-            Connection con = outgoingConnection(new Socket(hostname, port));
+            socket.connect(new InetSocketAddress(hostname, port), Settings.getConnectTimeout());
+            return initiateConnection(conToTry, socket);
+        }
+        catch (IOException e) {
+            log.error("failed to make connection to " + hostname + ":" + port + " :" + e);
+            try {
+                socket.close();
+            }
+            catch (IOException e1) {
+                // Nothing more to do, the connection was never made
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Authenticates with a server we have already connected to, and makes it our parent
+     * @param conToTry The server connected to
+     * @param socket The socket connected to the server
+     * @return true if the server is now our parent, false otherwise
+     */
+    public synchronized boolean initiateConnection(ConnectedServer conToTry, Socket socket) {
+        try {
+            Connection con = outgoingConnection(socket);
             authenticate(con);
-            log.info("connected to server on port number " + port);
-            serverRegistry.setConnectedParent(conToTry.getId(), hostname, port, con);
+            log.info("connected to server on port number " + conToTry.getPort());
+            serverRegistry.setConnectedParent(conToTry.getId(), conToTry.getHostname(), conToTry.getPort(), con);
             return true;
         }
         catch (IOException e) {
-            log.error("failed to make connection to " + hostname + ":" + port + " :" + e);
+            log.error("failed to make connection to " + conToTry.getHostname() + ":" + conToTry.getPort() + " :" + e);
             return false;
         }
     }
@@ -131,10 +249,115 @@ public class SessionManager extends Thread {
      * Processing incoming messages from a given connection.
      * @param con The connection a message was received on
      * @param msg The message sent by a client or server on the network
+     * @param parsed The message, if it has already been parsed (see parseClientActivity), or null
      * @return If the message was successfully processed
      */
-    public synchronized boolean process(Connection con, String msg) {
+    public synchronized boolean process(Connection con, String msg, JSONObject parsed) {
+        long start = System.nanoTime();
+        // Log the changes now and wait for them to be on disk once the lock is released, in releaseReplies
+        if (deferLogSyncs()) {
+            con.holdWrites();
+        }
+        try {
+            return processMessage(con, msg, parsed);
+        }
+        finally {
+            loadMonitor.messageProcessed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Called by a connection's thread once it has released the processing lock. Under the ALWAYS sync policy, waits
+     * for the registry changes made while processing its message to be on disk, then lets the replies to it go out,
+     * so a client is never told of a change that a crash could lose.
+     * @param con The connection the message was received on
+     */
+    public void releaseReplies(Connection con) {
+        awaitLogSyncs();
+        con.releaseWrites();
+    }
+
+    /** Under the ALWAYS sync policy, lets the current thread log registry changes under the processing lock without
+     * waiting for each to be on disk; it then waits for them all in awaitLogSyncs, once the lock is released
+     * @return true if syncs are being deferred, false if changes are not logged or not waited for */
+    private boolean deferLogSyncs() {
+        if (writeAheadLog != null && writeAheadLog.isSynchronous()) {
+            writeAheadLog.deferSyncs();
+            return true;
+        }
+        return false;
+    }
+
+    /** Waits for the registry changes the current thread logged since deferLogSyncs to be on disk. Must be called
+     * without the processing lock held. */
+    private void awaitLogSyncs() {
+        if (writeAheadLog != null) {
+            writeAheadLog.awaitDeferred();
+        }
+    }
+
+    /**
+     * Parses a message from a client that may be an ACTIVITY_MESSAGE, the only kind the per-client rate limits apply
+     * to, so admitMessage can check its command. Messages from servers are never limited and are not parsed here. The
+     * parsed message is handed on to process, so it is not parsed a second time.
+     * @param con The connection a message was received on
+     * @param msg The message
+     * @return The parsed message, or null if it was not parsed
+     */
+    public JSONObject parseClientActivity(Connection con, String msg) {
+        if (!msg.contains("\"ACTIVITY_MESSAGE\"") || serverRegistry.isServerCon(con)) {
+            return null;
+        }
+        return MessageProcessor.toJson(msg, false, "status");
+    }
+
+    /**
+     * Answers a membership probe from another server without taking the processing lock, so a server busy processing
+     * messages is not suspected for being slow to answer. Only the membership protocol's state, which has its own
+     * lock, is touched. A probe that is malformed or has an incorrect server secret is left to process to reject.
+     * @param con The connection a message was received on
+     * @param msg The message
+     * @return true if the message was a valid membership probe and has been answered, false otherwise
+     */
+    public boolean answerProbe(Connection con, String msg) {
+        if (!MessageProcessor.isProbeMsg(msg)) {
+            return false;
+        }
         JSONObject json = MessageProcessor.toJson(msg, false, "status");
+        if ("failure".equals(String.valueOf(json.get("status"))) ||
+                MessageProcessor.hasValidCommandAndFields(json) != null ||
+                json.get("server_secret") == null || !json.get("server_secret").equals(Settings.getSecret())) {
+            return false;
+        }
+        membership.answerProbe(con, json);
+        return true;
+    }
+
+    /**
+     * Applies the per-client rate limits to a message before it is processed. Only a client's ACTIVITY_MESSAGEs are
+     * limited; if one is over the limit this waits for a token to become free, without holding the processing lock.
+     * @param con The connection a message was received on
+     * @param json The message, as returned by parseClientActivity
+     * @return true if the message should be processed, false if it should be dropped
+     */
+    public boolean admitMessage(Connection con, JSONObject json) {
+        if (json == null || !"ACTIVITY_MESSAGE".equals(json.get("command"))) {
+            // Leave anything else, including malformed messages, to be dealt with by process
+            return true;
+        }
+        if (activityThrottle.admit(con)) {
+            return true;
+        }
+        log.debug("dropping activity message from " + json.get("username") + ", over the rate limit");
+        return false;
+    }
+
+    /** Handles a message received on a connection, with the lock held
+     * @param con The connection the message arrived on
+     * @param msg The message
+     * @return true if the connection should be closed, false otherwise */
+    private boolean processMessage(Connection con, String msg, JSONObject parsed) {
+        JSONObject json = (parsed != null ? parsed : MessageProcessor.toJson(msg, false, "status"));
 
         // If we couldn't parse the message, notify the sender and disconnect
         if (json.containsKey("status") && (json.get("status").toString()).equals("failure")) {
@@ -154,7 +377,7 @@ public class SessionManager extends Thread {
         if (command.equals("INVALID_MESSAGE") || command.equals("LOGOUT") || command.equals("AUTHENTICATION_FAIL")) {
 
             if (serverRegistry.isServerCon(con)) {
-                con.writeMsg(MessageProcessor.getShutdownMessage(serverId));
+                con.writeControlMsg(MessageProcessor.getShutdownMessage(serverId));
             }
             con.closeCon();
             return true;        // true because we want terminate = true; makes con delete itself from SessionManager
@@ -166,6 +389,17 @@ public class SessionManager extends Thread {
              return messageInvalid(con, invalidSender);
          }
 
+        // Drop any copy of a flooded message that has already reached us over another link
+        if (serverRegistry.isServerCon(con) && isDuplicate(json)) {
+            return false;
+        }
+
+        // Note when each client was last active, so idle clients are the first moved when rebalancing
+        ConnectedClient client = clientConnections.get(con);
+        if (client != null) {
+            client.markActive();
+        }
+
          // Process the message
         return responder.process(json, con);
     }
@@ -196,6 +430,7 @@ public class SessionManager extends Thread {
         Connection c = new Connection(s);
 
         // Add connections straight to server array, as parent server is already authenticated
+        c.expectServer();
         serverRegistry.addServerCon(c);
         return c;
     }
@@ -215,8 +450,13 @@ public class SessionManager extends Thread {
 
                     // Deliver queued messages every second
                     Thread.sleep(Settings.getActivityInterval() / 5);
-                    makeDeliveries();
-                    eventualRedirect(null);
+                    try {
+                        makeDeliveries();
+                    }
+                    catch (RuntimeException e) {
+                        log.error("delivery pass failed, trying again next pass: " + e, e);
+                    }
+                    closeSilentLinks();
                     secondsPassed += 1;
                 }
             }
@@ -225,44 +465,340 @@ public class SessionManager extends Thread {
                 break;
             }
             // Make a serverAnnounce every 5 seconds
-            serverAnnounce();
+            try {
+                serverAnnounce();
+            }
+            catch (RuntimeException e) {
+                log.error("server announce failed, trying again next interval: " + e, e);
+            }
         }
         log.info("closing " + connections.size() + " connections");
         // clean up
         closeAllConnections();
+        activityFlusher.setTerm(true);
+        if (registrySnapshotter != null) {
+            registrySnapshotter.setTerm(true);
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.syncAll();
+            writeAheadLog.setTerm(true);
+        }
+        membership.setTerm(true);
+        treeOptimizer.setTerm(true);
+        rebalancer.setTerm(true);
+        if (standbyLink != null) {
+            standbyLink.setTerm(true);
+        }
         listener.setTerm(true);
     }
 
+    /** Rebuilds the client registry from the latest snapshot and the write-ahead log written since, then keeps logging
+     * to it. This is done before we listen for connections or join the network, so registered users, login tokens and
+     * held messages survive a restart rather than being learnt again from the registries of the servers we connect to.
+     * The snapshot is memory-mapped and only its usernames are read here; records are decoded as they are needed. */
+    private void recoverClientRegistry() {
+        String path = Settings.getWalFile();
+        String rotatedPath = path + RegistrySnapshot.ROTATED_SUFFIX;
+        try {
+            long start = System.currentTimeMillis();
+            long generation = 0;
+            RegistrySnapshot snapshot = RegistrySnapshot.open(path + RegistrySnapshot.SNAPSHOT_SUFFIX);
+            if (snapshot != null) {
+                clientRegistry.loadSnapshot(snapshot);
+                generation = snapshot.getGeneration();
+            }
+
+            // A rotated log is left behind if we stopped while writing a snapshot. If the snapshot was finished it
+            // already holds the log's changes; otherwise they come before those of the live log.
+            int replayed = 0;
+            HashMap<String, Integer> sessions = new HashMap<String, Integer>();
+            long rotatedGeneration = WriteAheadLog.readGeneration(rotatedPath);
+            if (rotatedGeneration >= generation) {
+                ArrayList<JSONObject> entries = WriteAheadLog.read(rotatedPath);
+                sessions.putAll(clientRegistry.replay(entries));
+                replayed += entries.size();
+            }
+            else if (rotatedGeneration >= 0) {
+                new File(rotatedPath).delete();
+            }
+            ArrayList<JSONObject> entries = WriteAheadLog.read(path);
+            sessions.putAll(clientRegistry.replay(entries));
+            replayed += entries.size();
+
+            long liveGeneration = Math.max(generation, WriteAheadLog.readGeneration(path));
+            writeAheadLog = new WriteAheadLog(path, WriteAheadLog.SyncPolicy.valueOf(Settings.getWalSyncPolicy()),
+                                              liveGeneration);
+            clientRegistry.setWriteAheadLog(writeAheadLog);
+            int ended = clientRegistry.endRecoveredSessions(sessions);
+            log.info("recovered " + clientRegistry.getRegisteredUserCount() + " client records from " +
+                     (snapshot == null ? "no snapshot" : "snapshot generation " + generation) + " and " + replayed +
+                     " write-ahead log entries in " + (System.currentTimeMillis() - start) + " ms, ending " + ended +
+                     " sessions");
+            if (Settings.getSnapshotInterval() > 0) {
+                registrySnapshotter = new RegistrySnapshotter(writeAheadLog);
+            }
+        }
+        catch (IOException e) {
+            log.fatal("failed to recover from write-ahead log " + path + ": " + e);
+            System.exit(-1);
+        }
+    }
+
+    /** Rotates the write-ahead log and cuts the client registry there, as the starting point of a snapshot. Only the
+     * rotation and the cut are done under the processing lock; the records are then copied a shard at a time by
+     * copySnapshotShard. Must be followed by endSnapshot, whether or not it succeeds.
+     * @return The cut, marked with the generation of the new log, to be filled by copySnapshotShard
+     * @throws IOException If the log cannot be rotated */
+    public RegistrySnapshot.Cut beginSnapshot() throws IOException {
+        // The logins noted again in the new log are waited for once the lock is released
+        deferLogSyncs();
+        try {
+            return cutForSnapshot();
+        }
+        finally {
+            awaitLogSyncs();
+        }
+    }
+
+    /** Rotates the write-ahead log and cuts the client registry there (see beginSnapshot)
+     * @return The cut
+     * @throws IOException If the log cannot be rotated */
+    private synchronized RegistrySnapshot.Cut cutForSnapshot() throws IOException {
+        // Spooled contents of the copied messages must stay readable until the snapshot is written
+        if (MessageSpool.getInstance() != null) {
+            MessageSpool.getInstance().pin();
+        }
+        long generation = writeAheadLog.rotate(Settings.getWalFile() + RegistrySnapshot.ROTATED_SUFFIX);
+
+        // Our clients' logins were logged in the old generation, so they are noted again in the new one
+        HashSet<String> localUsers = new HashSet<String>();
+        clientConnections.values().forEach((client) -> localUsers.add(client.getUsername()));
+        for (String user : localUsers) {
+            ClientRecord record = clientRegistry.getClientRecord(user);
+            if (record != null && record.loggedIn() && !MessageProcessor.isAnonymous(user)) {
+                clientRegistry.localSessionOpened(user, record.getLoggedInToken());
+            }
+        }
+        writeAheadLog.markRotated();
+        return clientRegistry.openCut(generation);
+    }
+
+    /** Copies the next shard of the client registry into the snapshot being taken. Messages are held off only for the
+     * shard, so traffic carries on between shards.
+     * @param shardSize The number of records to copy
+     * @return true if there are records left to copy, false once they have all been copied */
+    public synchronized boolean copySnapshotShard(int shardSize) {
+        return clientRegistry.copySnapshotShard(shardSize);
+    }
+
+    /** Every shard of the snapshot being taken has been copied. The records that changed before their shard was
+     * copied are logged whole in the new generation of the write-ahead log, which is on disk when this returns, so
+     * the snapshot can be written without them. */
+    public void finishSnapshotCopy() {
+        synchronized (this) {
+            writeAheadLog.deferSyncs();
+            clientRegistry.closeCut();
+        }
+        writeAheadLog.awaitDeferred();
+        writeAheadLog.syncAll();
+    }
+
+    /** A snapshot has been written, or has failed. Spool segments held for it are deleted under the processing lock,
+     * as the messages left in them are moved to another. */
+    public synchronized void endSnapshot() {
+        clientRegistry.closeCut();
+        if (MessageSpool.getInstance() != null) {
+            MessageSpool.getInstance().unpin();
+        }
+    }
+
+    /** Reconnects to a different server on a thread of its own, for when the parent is found to be gone while a
+     * message is being processed, or its connection closes. Reconnecting pauses and waits on connection attempts,
+     * which must not hold up every other message or the closing of the old connection. Does nothing if a reconnect is
+     * already under way; the server counts as reconnecting from now, so the other way of finding the parent gone does
+     * not start a second attempt. */
+    public synchronized void reconnectParentInBackground() {
+        if (reconnecting) {
+            return;
+        }
+        reconnecting = true;
+        Thread reconnect = new Thread(this::reconnectParentIfDisconnected);
+        reconnect.setDaemon(true);
+        reconnect.start();
+    }
+
     /**
      * We know the parent has been disconnected. Try to reconnect to a different server.
      */
-    public synchronized void reconnectParentIfDisconnected() {
-        reconnecting = true;
-        boolean reconnected = false;
-        ConcurrentLinkedQueue<ConnectedServer> consToTry = serverRegistry.getConsToTry();
+    public void reconnectParentIfDisconnected() {
+        ConnectedServer grandparent;
+        boolean rootSibling;
+        synchronized (this) {
+            reconnecting = true;
+            grandparent = serverRegistry.getGrandparent();
+            rootSibling = serverRegistry.amRootSibling();
+
+            // With a warm standby connection to the grandparent there is nothing to connect to
+            if (promoteStandby(grandparent)) {
+                finishReconnect(true, rootSibling);
+                return;
+            }
+            ConnectedServer failedParent = serverRegistry.getParentInfo();
+            if (failedParent != null) {
+                reconnectBackoff.recordFailure(failedParent.getId());
+            }
+        }
 
-        // Try to reconnect to grandparent
-        ConnectedServer grandparent = serverRegistry.getGrandparent();
-        if (grandparent != null) {
-            log.info("Should be connecting to grandparent here.");
-            reconnected = initiateConnection(grandparent);
-            if (reconnected) {
-                serverRegistry.setNoGrandparent();
-            }
-        }
-        boolean rootSibling = serverRegistry.amRootSibling();
-        ConnectedServer conToTry;
-        // If the reconnection didn't work
-        if (!reconnected) {
-
-            // If we're not the root sibling, try to connect to other servers
-            if (!rootSibling) {
-                while (!reconnected && !consToTry.isEmpty()) {
-                    conToTry = consToTry.poll();
-                    reconnected = initiateConnection(conToTry);
+        // Every child of the failed server notices at the same moment, so wait a random while to spread out their
+        // attempts on the servers they all share as candidates
+        pause(reconnectBackoff.getJitter());
+
+        // The root sibling only ever tries the grandparent; if that fails it becomes the root itself
+        int rounds = (rootSibling ? 1 : Math.max(1, Settings.getReconnectAttempts()));
+        ConnectedServer newParent = null;
+        Socket socket = null;
+        for (int round = 1; round <= rounds && newParent == null; round++) {
+            ArrayList<ConnectedServer> candidates;
+            synchronized (this) {
+                candidates = getReconnectCandidates(grandparent, rootSibling);
+            }
+            // Leave alone servers that have recently failed us, unless that leaves nothing to try
+            ArrayList<ConnectedServer> ready = new ArrayList<ConnectedServer>();
+            for (ConnectedServer candidate : candidates) {
+                if (!reconnectBackoff.isBackedOff(candidate.getId())) {
+                    ready.add(candidate);
+                }
+            }
+            if (ready.isEmpty() && !candidates.isEmpty()) {
+                pause(getShortestBackoff(candidates));
+                continue;
+            }
+
+            // Try every candidate at once, grandparent first, rather than waiting on each in turn
+            log.info("Trying to reconnect to " + ready.size() + " candidate parents (round " + round + " of " +
+                     rounds + ")");
+            ParallelConnector connector = new ParallelConnector(ready, directRequests);
+            newParent = connector.connect(Settings.getConnectTimeout(), Settings.getConnectStagger());
+            socket = connector.getSocket();
+            for (ConnectedServer failed : connector.getFailed()) {
+                reconnectBackoff.recordFailure(failed.getId());
+            }
+            if (newParent != null) {
+                reconnectBackoff.recordSuccess(newParent.getId());
+            }
+            else if (round < rounds) {
+                pause(getShortestBackoff(candidates));
+            }
+        }
+        reconnectTo(newParent, socket, grandparent, rootSibling);
+    }
+
+    /**
+     * Works out how long until the first of the given servers may be tried again
+     * @param candidates The servers we are waiting to try
+     * @return The time to wait in milliseconds
+     */
+    private long getShortestBackoff(ArrayList<ConnectedServer> candidates) {
+        long shortest = Settings.getReconnectBackoffMax();
+        for (ConnectedServer candidate : candidates) {
+            shortest = Math.min(shortest, reconnectBackoff.getRemainingBackoff(candidate.getId()));
+        }
+        return shortest;
+    }
+
+    /**
+     * Waits for a while, giving up early if interrupted
+     * @param millis The time to wait in milliseconds
+     */
+    private void pause(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Works out which servers to try to reconnect to after our parent has failed. The grandparent comes first, as it
+     * keeps the shape of the tree; if we are not the root sibling, every other server we know of that is not in our
+     * subtree follows, those with the lowest round trip time (then the lowest load) first.
+     * @param grandparent Our grandparent, or null if we have none
+     * @param rootSibling True if we are the root sibling, and so become the root if the grandparent cannot be reached
+     * @return The candidates, most preferred first
+     */
+    private ArrayList<ConnectedServer> getReconnectCandidates(ConnectedServer grandparent, boolean rootSibling) {
+        ArrayList<ConnectedServer> candidates = new ArrayList<ConnectedServer>();
+        if (!rootSibling) {
+            ConnectedServer failedParent = serverRegistry.getParentInfo();
+            for (ConnectedServer server : serverRegistry.getConsToTry()) {
+                if (!server.equals(failedParent) && !server.equals(grandparent) && membership.isAlive(server.getId())) {
+                    candidates.add(server);
                 }
             }
+            candidates.sort((a, b) -> {
+                long rttA = membership.getRtt(a.getId());
+                long rttB = membership.getRtt(b.getId());
+                if (rttA != rttB) {
+                    return (rttA < 0 ? 1 : (rttB < 0 ? -1 : Long.compare(rttA, rttB)));
+                }
+                return Double.compare(a.getLoadScore(), b.getLoadScore());
+            });
+        }
+        if (grandparent != null) {
+            candidates.add(0, grandparent);
         }
+        return candidates;
+    }
+
+    /**
+     * Makes the server we managed to reconnect to our parent, or takes over as root if there was none
+     * @param newParent The server connected to, or null if none could be reached
+     * @param socket The socket connected to the new parent
+     * @param grandparent Our grandparent when reconnection started
+     * @param rootSibling True if we are the root sibling
+     */
+    private synchronized void reconnectTo(ConnectedServer newParent, Socket socket, ConnectedServer grandparent,
+                                          boolean rootSibling) {
+        boolean reconnected = (newParent != null && initiateConnection(newParent, socket));
+        if (reconnected && newParent.equals(grandparent)) {
+            serverRegistry.setNoGrandparent();
+        }
+        finishReconnect(reconnected, rootSibling);
+    }
+
+    /**
+     * Makes our grandparent our parent straight away over the standby connection, if there is a ready one
+     * @param grandparent Our grandparent, or null if we have none
+     * @return true if the grandparent is now our parent, false otherwise
+     */
+    private synchronized boolean promoteStandby(ConnectedServer grandparent) {
+        if (standbyLink == null) {
+            return false;
+        }
+        Connection con = standbyLink.promote(grandparent);
+        if (con == null) {
+            return false;
+        }
+        log.info("Promoting standby connection to " + grandparent.getHostname() + ":" + grandparent.getPort());
+        ConnectedServer failedParent = serverRegistry.getParentInfo();
+        con.writeControlMsg(MessageProcessor.getStandbyPromoteMsg(serverId, Settings.getLocalHostname(),
+                                                           Settings.getLocalPort(),
+                                                           (failedParent == null ? null : failedParent.getId())));
+        serverRegistry.setConnectedParent(grandparent.getId(), grandparent.getHostname(), grandparent.getPort(), con);
+        serverRegistry.setNoGrandparent();
+        return true;
+    }
+
+    /**
+     * Tells our children how the tree was repaired, once reconnection has finished
+     * @param reconnected True if we have a new parent, false otherwise
+     * @param rootSibling True if we are the root sibling
+     */
+    private synchronized void finishReconnect(boolean reconnected, boolean rootSibling) {
         // Check if we are the new root server of the network
         if (!reconnected && rootSibling) {
             log.info("This server is the new parent server, allowing other servers to connect to this one.");
@@ -274,13 +810,12 @@ public class SessionManager extends Thread {
         }
         // Must have reconnected!
         else {
-            ConnectedServer newParent = serverRegistry.getParentInfo();
-            Connection newParentCon = serverRegistry.getParentConnection();
-            if (newParent != null) {
+            ConnectedServer parentInfo = serverRegistry.getParentInfo();
+            if (parentInfo != null) {
                 log.info("Succeeded in repairing network partition due to server failure.");
 
                 // Send a "GRANDPARENT_UPDATE" message to children.
-                String msg = MessageProcessor.getGrandparentUpdateMsg(newParent.toJson());
+                String msg = MessageProcessor.getGrandparentUpdateMsg(parentInfo.toJson());
                 forwardToChildren(msg);
             }
         }
@@ -349,6 +884,22 @@ public class SessionManager extends Thread {
     // SERVER_ANNOUNCE MANAGEMENT
     //
 
+    /** Closes the links to a parent or children whose announces have stopped arriving, as judged by their phi-accrual
+     * detectors. Closing the link hands the server to the same failover as a link the other end closed: we reconnect
+     * to a new parent, or forget the child. Each close is done on a pooled thread, as the writes still queued for a hung
+     * server may block for a while. A link stays silent until its close is done, so a close is only started once. */
+    private void closeSilentLinks() {
+        for (Connection con : serverRegistry.getSilentLinks()) {
+            if (!con.startClosing()) {
+                continue;
+            }
+            ConnectedServer server = serverRegistry.getServerConnections().get(con);
+            log.warn("no announce from server " + (server == null ? "" : server.getId()) +
+                     " in too long, closing the link");
+            directRequests.execute(() -> closeConnection(con, "server stopped announcing (in closeSilentLinks)"));
+        }
+    }
+
     /** Create and sends a server announce message to all servers it is connected to.
      * If the server is the first server in the network (therefore the secret sever), then remote port and remote
      * hostname is null. Send message to all servers it has direct connection to. **/
@@ -358,10 +909,25 @@ public class SessionManager extends Thread {
         int load = clientConnections.size();
         int port = Settings.getLocalPort();
         String hostname = Settings.getLocalHostname();
+        LoadVector loadVector = loadMonitor.sample(load, serverRegistry.getQueuedActivities(),
+                                                   clientRegistry.getPendingBytes());
+        log.debug("announcing load " + loadVector);
+        activityThrottle.report();
 
         String msg = MessageProcessor.getServerAnnounceMsg(serverId, load, hostname, port,
-                                                           clientRegistry.getRecordsJson());
-        serverBroadcast(msg);
+                                                           serverRegistry.getAncestors(),
+                                                           serverRegistry.getConnectedChildConnections().size(),
+                                                           loadVector, anonEpochs.current());
+        sendWithRegistry(stampMsg(msg), serverRegistry.getServerConnections().keySet());
+
+        // Anonymous users of servers that have left went with them
+        ArrayList<String> liveServers = new ArrayList<String>();
+        liveServers.add(serverId);
+        serverRegistry.getAllServers().forEach((server) -> liveServers.add(server.getId()));
+        for (String goneServer : clientRegistry.forgetAnonymousUsersExcept(liveServers)) {
+            log.info("forgot the anonymous users of departed server " + goneServer);
+            anonEpochs.forget(goneServer);
+        }
     }
 
 
@@ -375,9 +941,9 @@ public class SessionManager extends Thread {
      * Sends an AUTHENTICATE message to that server with its secret.
      * @param c The connection the authenticate message will be send on **/
     public void authenticate(Connection c) {
-        String msg = MessageProcessor.getAuthenticateMsg(Settings.getSecret(), clientRegistry.getRecordsJson(), serverId,
-                                                         Settings.getLocalHostname(), Settings.getLocalPort());
-        c.writeMsg(msg);
+        String msg = MessageProcessor.getAuthenticateMsg(Settings.getSecret(), serverId, Settings.getLocalHostname(),
+                                                         Settings.getLocalPort());
+        sendWithRegistry(msg, Collections.singletonList(c));
     }
 
     /** Authenticates a new server from incoming connection
@@ -392,24 +958,127 @@ public class SessionManager extends Thread {
             return false;
         }
         else {
-            // Server supplied correct secret, remove from generic "holding" connections array and add to server
-            // connections array
-            // Also add this server to our list of child servers
-            ConnectedServer newChild;
-            connections.remove(c);
-            if (serverRegistry.hasRootChild()) {
-                newChild = serverRegistry.addConnectedChild(c, id, hostname, port);
-            }
-            else {
-                // This server is the new root child of the system
-                newChild = serverRegistry.addRootChild(c, id, hostname, port);
+            if (redirectIfFull(c, null)) {
+                return false;
             }
-            // Send AUTHENTICATE_SUCCESS message
-            serverAuthenticateSuccess(c, newChild);
+            acceptChild(c, id, hostname, port);
             return true;
         }
     }
 
+    /** If we already have as many children as we accept, sends a server asking to become our child further down the
+     * tree
+     * @param c The connection the server asked on
+     * @param failedChildId The id of a child known to have failed, which is neither counted nor redirected to, or null
+     * @return true if the server was redirected, false if it can be accepted */
+    private boolean redirectIfFull(Connection c, String failedChildId) {
+        int children = serverRegistry.getConnectedChildConnections().size();
+        if (failedChildId != null && serverRegistry.hasChild(failedChildId)) {
+            children -= 1;
+        }
+        if (children >= Settings.getMaxChildren()) {
+            ConnectedServer leastLoaded = serverRegistry.getLeastLoadedChild(failedChildId);
+            if (leastLoaded != null) {
+                serverAuthenticateRedirect(c, leastLoaded);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Waits for a turn to admit a joining server, on the connection's own thread before the message is processed.
+     * Merging a joining server's registry is expensive and is done with the processing lock held, and after a failure
+     * every orphaned server may join us at once. Only a few joins are let through to the lock at a time, and the rest
+     * wait their turn here in the order they arrived, so other traffic gets the lock between merges. When this
+     * returns true, finishJoin must be called once the message has been processed.
+     * @param c The connection the message was received on
+     * @param msg The message
+     * @return true if the message is an AUTHENTICATE that has been admitted, false if it is not a join */
+    public boolean admitJoin(Connection c, String msg) {
+        if (!MessageProcessor.isJoinMsg(msg)) {
+            return false;
+        }
+        if (!joinAdmissions.tryAcquire()) {
+            log.info("Already admitting " + Settings.getMaxConcurrentJoins() + " servers, queueing joining server");
+            joinAdmissions.acquireUninterruptibly();
+        }
+        return true;
+    }
+
+    /** A joining server has been dealt with, so let the next waiting server in */
+    public void finishJoin() {
+        joinAdmissions.release();
+    }
+
+    /** Accepts an authenticated server as one of our children
+     * @param c The connection to the server
+     * @param id The server's id
+     * @param hostname The server's hostname
+     * @param port The server's port number */
+    private void acceptChild(Connection c, String id, String hostname, Integer port) {
+        // Server supplied correct secret, remove from generic "holding" connections array and add to server
+        // connections array
+        // Also add this server to our list of child servers
+        ConnectedServer newChild;
+        connections.remove(c);
+        c.markServerLink();
+        if (serverRegistry.hasRootChild()) {
+            newChild = serverRegistry.addConnectedChild(c, id, hostname, port);
+        }
+        else {
+            // This server is the new root child of the system
+            newChild = serverRegistry.addRootChild(c, id, hostname, port);
+        }
+        // Send AUTHENTICATE_SUCCESS message
+        serverAuthenticateSuccess(c, newChild);
+    }
+
+    /** A grandchild has asked us to hold a standby connection for it, so we can take over as its parent if its parent
+     * fails
+     * @param incomingSecret The secret supplied by the grandchild
+     * @param c The standby connection
+     * @param id The grandchild's id
+     * @param hostname The grandchild's hostname
+     * @param port The grandchild's port number */
+    public synchronized void acceptStandby(String incomingSecret, Connection c, String id, String hostname,
+                                           Integer port) {
+        if (!Settings.getSecret().equals(incomingSecret)) {
+            serverAuthenticateFailed(c, incomingSecret);
+            return;
+        }
+        connections.remove(c);
+        c.markServerLink();
+        serverRegistry.addStandbyCon(c, new ConnectedServer(id, hostname, port, false, false));
+        c.writeControlMsg(MessageProcessor.getStandbyReadyMsg());
+    }
+
+    /** A grandchild's parent has failed, and it has promoted its standby connection to us. It becomes our child
+     * straight away, as it was authenticated when the standby connection was opened, unless that would take us past
+     * the maximum number of children. When a parent with several children fails they all promote at once, so those
+     * beyond the maximum are redirected further down the tree like any other joining server. The failed parent is
+     * usually still one of our children when the promotions arrive; its place is counted as free.
+     * @param c The standby connection
+     * @param failedParentId The id of the grandchild's parent that failed, or null if not known */
+    public synchronized void standbyPromoted(Connection c, String failedParentId) {
+        ConnectedServer grandchild = serverRegistry.removeStandbyCon(c);
+        if (grandchild != null) {
+            if (redirectIfFull(c, failedParentId)) {
+                return;
+            }
+            log.info("Standby connection from " + grandchild.getHostname() + ":" + grandchild.getPort() +
+                     " promoted, accepting as child");
+            acceptChild(c, grandchild.getId(), grandchild.getHostname(), grandchild.getPort());
+        }
+    }
+
+    /**
+     * Get the standby connection to our grandparent
+     * @return The standby link, or null if standby connections are not enabled
+     */
+    public StandbyLink getStandbyLink() {
+        return standbyLink;
+    }
+
     /** Called by Responder to determine if a given server is authenticated.
      * Checks server connections array list for the connection. If in this array list, server is authenticated and
      * returns true, otherwise not authenticated and returns falls.
@@ -432,6 +1101,124 @@ public class SessionManager extends Thread {
         deleteClosedConnection(con);
     }
 
+    /**
+     * We already have as many children as we accept - send the authenticating server to one of our children instead,
+     * and close the connection
+     * @param con The connection to send the message on
+     * @param child The child server the authenticating server should join
+     */
+    public void serverAuthenticateRedirect(Connection con, ConnectedServer child) {
+        log.info("At the maximum of " + Settings.getMaxChildren() + " children, redirecting joining server to " +
+                 child.getHostname() + ":" + child.getPort());
+        con.writeMsg(MessageProcessor.getAuthenticateRedirectMsg(child.getId(), child.getHostname(), child.getPort()));
+        String closeContext = "Close Connection Context: Authenticate Redirected (in serverAuthenticateRedirect, " +
+                "in SessionManager)";
+        closeConnection(con, closeContext);
+        deleteClosedConnection(con);
+    }
+
+    /**
+     * The server we tried to authenticate with has as many children as it accepts, and has sent us to one of its
+     * children. Authenticate with that server instead, then close the connection to the redirecting server.
+     * @param con The connection to the redirecting server
+     * @param id The id of the server to authenticate with instead
+     * @param hostname The hostname of the server to authenticate with instead
+     * @param port The port number of the server to authenticate with instead
+     */
+    public synchronized void followAuthenticateRedirect(Connection con, String id, String hostname, int port) {
+        log.info("Redirected to authenticate with " + hostname + ":" + port);
+        if (con == reparentConnection) {
+            // The server we were moving under has filled up. Following the redirect could lead into our own subtree,
+            // so stay where we are.
+            log.info("New parent is full, staying under our current parent");
+            reparentConnection = null;
+            serverRegistry.removeServerCon(con);
+            closeConnection(con, "Close Connection Context: Move abandoned (in followAuthenticateRedirect, in " +
+                    "SessionManager)");
+            return;
+        }
+        if (serverRegistry.isParentConnection(con)) {
+            // Reconnecting after our parent failed, so the parent is set as soon as we connect. If this fails, closing
+            // the connection below carries on repairing the tree.
+            initiateConnection(new ConnectedServer(id, hostname, port, false, true));
+        }
+        else {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(hostname, port), Settings.getConnectTimeout());
+                authenticate(outgoingConnection(socket));
+            }
+            catch (IOException e) {
+                log.error("failed to make connection to " + hostname + ":" + port + " :" + e);
+                try {
+                    socket.close();
+                }
+                catch (IOException e1) {
+                    // Nothing more to do, the connection was never made
+                }
+            }
+        }
+        if (!serverRegistry.isParentConnection(con)) {
+            serverRegistry.removeServerCon(con);
+        }
+        closeConnection(con, "Close Connection Context: Authenticate Redirected (in followAuthenticateRedirect, " +
+                "in SessionManager)");
+    }
+
+    /**
+     * Starts moving this server (and its subtree) under a new parent nearer the root, by authenticating with it. The
+     * current parent is kept until the new parent accepts us.
+     * @param s The socket connected to the new parent
+     * @throws IOException
+     */
+    public synchronized void reparent(Socket s) throws IOException {
+        Connection con = outgoingConnection(s);
+        reparentConnection = con;
+        authenticate(con);
+    }
+
+    /** Checks if this server is in the middle of moving to a new parent
+     * @return true if we have asked a new parent to accept us and not yet heard back, false otherwise */
+    public boolean isReparenting() {
+        return reparentConnection != null;
+    }
+
+    /**
+     * A new parent has accepted us, so let go of the old one. The old parent is told we have moved rather than
+     * crashed, and every server is told the clients in our subtree are now reached through our new position.
+     * @param oldParentCon The connection to our old parent
+     */
+    public synchronized void completeReparent(Connection oldParentCon) {
+        reparentConnection = null;
+        oldParentCon.writeMsg(MessageProcessor.getServerDetachMsg(serverId));
+        serverRegistry.removeServerCon(oldParentCon);
+        closeConnection(oldParentCon, "Close Connection Context: Moved to a new parent (in completeReparent, in " +
+                "SessionManager)");
+
+        HashSet<Connection> childLinks = new HashSet<Connection>(serverRegistry.getServerConnections().keySet());
+        childLinks.remove(serverRegistry.getParentConnection());
+        HashSet<String> users = routingTable.usersRoutedVia(childLinks);
+        users.addAll(getLocalUsernames());
+        if (!users.isEmpty()) {
+            serverControlBroadcast(MessageProcessor.getRouteUpdateMsg(users));
+        }
+    }
+
+    /**
+     * One of our children has moved to a new parent. Remove it from our children, and tell our other children it is
+     * no longer their sibling.
+     * @param con The connection to the child that has moved
+     */
+    public synchronized void childDetached(Connection con) {
+        ConnectedServer child = serverRegistry.getServerFromCon(con);
+        if (child == null) {
+            return;
+        }
+        log.info("Child server " + child.getHostname() + ":" + child.getPort() + " has moved to a new parent");
+        serverRegistry.removeCrashedChild(child);
+        forwardToChildren(MessageProcessor.getSiblingCrashed(child.toJson()));
+    }
+
     /**
      * Incoming server has successfully authenticated - send an authentication success message
      * @param con the server connection to send the message to
@@ -439,13 +1226,12 @@ public class SessionManager extends Thread {
      */
     public void serverAuthenticateSuccess(Connection con, ConnectedServer newChild) {
         // Generate AUTHENTICATION_SUCCESS message
-        String msg = MessageProcessor.getAuthenticationSuccessMsg(clientRegistry.getRecordsJson(),
-                                                                  serverRegistry.toJson(),
+        String msg = MessageProcessor.getAuthenticationSuccessMsg(serverRegistry.toJson(),
                                                                   Settings.getLocalHostname(),
                                                                   Settings.getLocalPort(), serverId,
                                                                   serverRegistry.getParentJson(),
                                                                   serverRegistry.childListToJson());
-        con.writeMsg(msg);
+        sendWithRegistry(msg, Collections.singletonList(con));
 
         // Update other child servers with their new sibling!
         msg = MessageProcessor.getSiblingUpdateMsg(newChild.toJson());
@@ -536,7 +1322,12 @@ public class SessionManager extends Thread {
         // Send login success message (Registered & Correct combo) & check for redirection
         if (logged_in) {
             String loginContext = "Context: Received LOGIN, now in loginClient (in SessionManager)";
+            routingTable.forgetRoute(username);
             Integer token = clientRegistry.logUser(true, username, secret, loginContext, Integer.MIN_VALUE);
+            if (token != Integer.MIN_VALUE) {
+                clientRegistry.localSessionOpened(username, token);
+                activityThrottle.loggedIn(c, username);
+            }
 
             String msg = MessageProcessor.getLoginSuccessMsg(username);
             c.writeMsg(msg);
@@ -549,6 +1340,13 @@ public class SessionManager extends Thread {
         }
     }
 
+    /** Creates a username for an anonymous client. Our server id is unique on the network and the counter is unique on
+     * this server, so no other server can hand out the same name.
+     * @return The username, of the form anonymous-serverId-n */
+    public String nextAnonymousUsername() {
+        return "anonymous-" + serverId + "-" + anonSeq.incrementAndGet();
+    }
+
     /** Log in an anonymous client
      * @param c The connection a client is using
      * @param username The username supplied by the client
@@ -564,26 +1362,21 @@ public class SessionManager extends Thread {
         clientRegistry.addFreshClient(username, secret);
         String loginContext = "Context: Received LOGIN from Anon user, now in loginAnonymousClient (in SessionManger).";
         Integer token = clientRegistry.logUser(true, username, secret, loginContext, Integer.MIN_VALUE);
+        anonEpochs.advance();
 
-        // Broadcast the LOCK_REQUEST
-        String msg = MessageProcessor.getLockRequestMsg(username, secret);
-        serverBroadcast(msg);
-
-        // Send LOGIN_SUCCESS Message - delay so that we have time to send around the LOCK_REQUEST
-        delayThread(1500);
-        msg = MessageProcessor.getLoginSuccessMsg(username);
+        // The username is unique by construction, so no lock is needed. Other servers record it from LOGIN_BROADCAST
+        String msg = MessageProcessor.getLoginSuccessMsg(username);
         c.writeMsg(msg);
         return token;
     }
 
     /** Checks if the server knows of another server that has at least two less connections than it. If such a server
      * exists, sends a REDIRECT message with that server's hostname and port number.
-     * This has been implemented to return the FIRST server that has two or less connections.
+     * The server is chosen as described in getLowLoadServer.
      * @param c The connection to send the message on
      * @param anonClient True if the client is an anonymous client, false if registered */
     public boolean checkRedirectClient(Connection c, boolean anonClient) {
-        int load = clientConnections.size() + connections.size();
-        ConnectedServer server = getLowLoadServer(load);
+        ConnectedServer server = getLowLoadServer(getOwnLoadScore());
         if (server != null) {
             return redirect(c, server, anonClient);
         }
@@ -592,74 +1385,177 @@ public class SessionManager extends Thread {
         }
     }
 
-    public ConnectedServer getLowLoadServer(Integer load) {
+    /** Chooses a server to redirect a client to. Of the live servers whose load is at least two less than ours, two
+     * are picked at random and the less loaded one is chosen, so a burst of redirects is spread over the lightly loaded
+     * servers rather than all sent to the same one. Loads are those last announced, adjusted as described in
+     * getEffectiveLoad.
+     * @param load Our own load score
+     * @return The server to redirect to, or null if no server is sufficiently less loaded than us */
+    public ConnectedServer getLowLoadServer(double load) {
         ArrayList<ConnectedServer> lowLoadServers = new ArrayList<ConnectedServer>();
         for (ConnectedServer server : serverRegistry.getAllServers()) {
-            Integer serverLoad = server.getLoad();
-            if (server.isConnected() && serverLoad != null && serverLoad <= load - 2 && !server.isTimedOut()) {
-                return server;
+            if (server.isConnected() && server.getLoad() != null && getEffectiveLoad(server) <= load - 2 &&
+                    !server.isTimedOut() && membership.isAlive(server.getId())) {
+                lowLoadServers.add(server);
             }
         }
-        return null;
+        if (lowLoadServers.isEmpty()) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ConnectedServer first = lowLoadServers.get(random.nextInt(lowLoadServers.size()));
+        if (lowLoadServers.size() == 1) {
+            return first;
+        }
+        ConnectedServer second;
+        do {
+            second = lowLoadServers.get(random.nextInt(lowLoadServers.size()));
+        } while (second == first);
+        return (getEffectiveLoad(second) < getEffectiveLoad(first) ? second : first);
     }
 
-    public boolean eventualRedirect(Connection con) {
-        boolean anonClient;
-        String username;
+    /** Get how busy this server is right now, as a single number measured in clients. Connections that have not yet
+     * logged in or authenticated are counted as clients.
+     * @return Our load score */
+    public double getOwnLoadScore() {
         int load = clientConnections.size() + connections.size();
-        ConnectedServer lowLoadServer = getLowLoadServer(load);
-        if (lowLoadServer == null) {
-            // log.debug("Redirect failed; logoutClient failed.");
-            return false;
+        return loadMonitor.current(load, serverRegistry.getQueuedActivities()).getScore();
+    }
+
+    /** Estimates a server's current load. Its last announced load score is increased by the clients we have redirected to it
+     * since, which it may not have announced yet, and by one for every announce interval the load has gone without
+     * being updated, so that servers we have not heard from lately are not trusted to be as idle as they were.
+     * @param server The server
+     * @return The estimated load score of the server */
+    private double getEffectiveLoad(ConnectedServer server) {
+        int interval = Settings.getActivityInterval();
+        double load = server.getLoadScore();
+        load += server.getRecentRedirects(REDIRECT_DELAY + interval);
+        long age = server.getLoadAge();
+        load += (age < 0 ? 1 : (int) (age / interval));
+        return load;
+    }
+
+    /** The membership protocol has declared a server dead. Remove it from our records; if we have a direct
+     * connection to it, close the connection so the network is repaired as it would be for a crash (our parent is
+     * replaced, and our children are told their sibling has gone).
+     * @param id The id of the dead server */
+    public synchronized void serverFailed(String id) {
+        ConnectedServer failedServer = serverRegistry.getServerInfo(id);
+        if (failedServer == null) {
+            return;
         }
-        // Get a connection to redirect to the server
+        log.info("membership protocol declared server dead: " + failedServer);
+        Connection con = serverRegistry.getConnectionToServer(failedServer);
         if (con == null) {
-            if (clientConnections.isEmpty()) {
-                return false;
-            }
-            HashMap.Entry<Connection, ConnectedClient> entry = clientConnections.entrySet().iterator().next();
-            con = entry.getKey();
-            ConnectedClient conClient = entry.getValue();
-            username = conClient.getUsername();
-            anonClient = MessageProcessor.isAnonymous(username);
+            serverRegistry.removeCrashedSibling(failedServer);
         }
-        else {
-            anonClient = MessageProcessor.isAnonymous(clientConnections.get(con).getUsername());
+        else if (serverRegistry.isParentConnection(con)) {
+            // The connection's thread notices the closure and reconnects us to the network
+            con.closeCon();
+        }
+        else if (serverRegistry.getConnectedChildConnections().containsValue(con)) {
+            serverRegistry.removeCrashedChild(failedServer);
+            String childCrashed = MessageProcessor.getGson().toJson(failedServer);
+            JSONObject crashedSibling = MessageProcessor.toJson(childCrashed, false, "crashed_sibling");
+            forwardToChildren(MessageProcessor.getSiblingCrashed(crashedSibling));
+            con.closeCon();
         }
-        return redirect(con, lowLoadServer, anonClient);
     }
 
+    /** Redirects a client to another server: logs the client out, waits for the LOGOUT_BROADCAST to spread, then
+     * sends the REDIRECT and disconnects the client
+     * @param con The client's connection
+     * @param destServer The server to send the client to
+     * @param anonClient True if the client is anonymous, false if registered
+     * @return true if the client was redirected, false otherwise */
     public boolean redirect(Connection con, ConnectedServer destServer, boolean anonClient) {
-        boolean logoutSuccess = false;
-        boolean disconnect = false;
-        boolean redirect = false;
+        if (!beginRedirect(con, destServer, anonClient)) {
+            return false;
+        }
+        log.info("about to call redirect message, waiting 2 secs\n");
+        delayDisconnect();
+        completeRedirect(con, destServer);
+        return true;
+    }
 
-        String msg = MessageProcessor.getRedirectMsg(destServer.getHostname(), destServer.getPort());;
+    /** Starts redirecting a client to another server by logging it out of the network
+     * @param con The client's connection
+     * @param destServer The server the client will be sent to
+     * @param anonClient True if the client is anonymous, false if registered
+     * @return true if the client can now be sent the REDIRECT, false if it could not be logged out */
+    public synchronized boolean beginRedirect(Connection con, ConnectedServer destServer, boolean anonClient) {
         String logoutContext = "Context: Redirecting, now in checkRedirect (in SessionManager)";
 
         // If client is anonymous, we need to remove the record from our registry so we do not create conflicts
         if (!anonClient) {
             boolean doDisconnect = false;
-            logoutSuccess = logoutClient(con, logoutContext, doDisconnect, true, null);
-            if (logoutSuccess) { disconnect = true; }
+            if (!logoutClient(con, logoutContext, doDisconnect, true, null)) {
+                log.debug("Completely Failed Redirection; logoutClient failed.");
+                return false;
+            }
         }
-        // Client is a registered user - merely set as logout and redirect
-        else { disconnect = true; }
-        if (disconnect) {
-            log.info("about to call redirect message, waiting 2 secs\n");
-            delayDisconnect();
+        destServer.recordRedirect();
+        return true;
+    }
 
-            // LOGOUT_BROADCAST should have been sent. Will now disconnect user and log them out.
-            con.writeMsg(msg);
-            closeConnection(con, "Close " + logoutContext);
-            deleteClosedConnection(con);
-            return true;
+    /** Finishes redirecting a client once its LOGOUT_BROADCAST has had time to spread: sends the REDIRECT and
+     * disconnects the client
+     * @param con The client's connection
+     * @param destServer The server to send the client to */
+    public void completeRedirect(Connection con, ConnectedServer destServer) {
+        // LOGOUT_BROADCAST should have been sent. Will now disconnect user and log them out.
+        String msg = MessageProcessor.getRedirectMsg(destServer.getHostname(), destServer.getPort());
+        con.writeMsg(msg);
+        closeConnection(con, "Close Context: Redirecting, now in checkRedirect (in SessionManager)");
+        deleteClosedConnection(con);
+    }
+
+    /** Chooses the clients to move to other servers when rebalancing. Only clients that are fully logged in and have
+     * been connected for at least the rebalance cooldown are chosen, so a client that has just been redirected here
+     * is never moved straight on again; of those, the clients that have been idle longest are chosen first.
+     * @param count The most clients to choose
+     * @return The chosen clients' connections, longest idle first */
+    public synchronized ArrayList<Connection> getClientsToMove(int count) {
+        ArrayList<Connection> movable = new ArrayList<Connection>();
+        for (HashMap.Entry<Connection, ConnectedClient> entry : clientConnections.entrySet()) {
+            ConnectedClient client = entry.getValue();
+            if (!client.isRegistered() || client.getConnectedTime() < Settings.getRebalanceCooldown()) {
+                continue;
+            }
+            if (!MessageProcessor.isAnonymous(client.getUsername())) {
+                ClientRecord record = clientRegistry.getClientRecord(client.getUsername());
+                if (record == null || !record.loggedIn()) {
+                    continue;
+                }
+            }
+            movable.add(entry.getKey());
         }
-        if (redirect && !logoutSuccess) { log.debug("Completely Failed Redirection; logoutClient failed."); }
-        return false;
+        movable.sort((a, b) -> Long.compare(clientConnections.get(b).getIdleTime(),
+                                            clientConnections.get(a).getIdleTime()));
+        return new ArrayList<Connection>(movable.subList(0, Math.min(count, movable.size())));
     }
 
+    /** Get the average load score of the live servers we know of, including this one
+     * @return The average load score */
+    public double getAverageLoadScore() {
+        double total = getOwnLoadScore();
+        int servers = 1;
+        for (ConnectedServer server : serverRegistry.getAllServers()) {
+            if (server.isConnected() && server.getLoad() != null && !server.isTimedOut() &&
+                    membership.isAlive(server.getId())) {
+                total += getEffectiveLoad(server);
+                servers++;
+            }
+        }
+        return total / servers;
+    }
 
+    /** Get how long a client being redirected is kept after it is logged out, for the LOGOUT_BROADCAST to spread
+     * @return The delay, in milliseconds */
+    public static int getRedirectDelay() {
+        return REDIRECT_DELAY;
+    }
 
     /** Delays the disconnection to account for synchronisation and communication delays*/
     public void delayDisconnect() {
@@ -692,35 +1588,133 @@ public class SessionManager extends Thread {
     // REGISTRATION MANAGEMENT
     //
 
-    /**
-     * Retrieves the known number of servers in the network, at the time of the method call.
-     * @return An integer representing the number of known servers in the network.
-     */
-    private int numKnownServersInNetwork() {
-        return serverRegistry.numServersInNetwork(this.serverId);
-    }
-
-    /** Stores the client connection for later reference. Sends a LOCK_REQUEST message and forwards this to all other
-     * servers in the system
+    /** Stores the client connection for later reference, and registers the username with the server that owns it.
+     * Each username belongs to one server, found by consistent hashing over the servers we know of, which decides
+     * alone whether it is free. Registration therefore takes a single round trip to the owner, however many servers
+     * there are. The username is only added to our records once it is granted, so a claim that loses never reaches
+     * other servers in our announces.
      * @param con The connection a client is using
      * @param username The username supplied by the client to register with
      * @param secret The secret supplied by the client to register with **/
     public void registerNewClient(Connection con, String username, String secret) {
+        ConnectedServer owner = getUsernameOwner(username);
 
-        // Save client as a client connection
-        int numKnownServers = numKnownServersInNetwork();
-        clientConnections.put(con, new ConnectedClient(username, secret, numKnownServers));
+        // Save client as a client connection, waiting on one answer if the username belongs to another server
+        clientConnections.put(con, new ConnectedClient(username, secret, (owner == null ? 0 : 1)));
         connections.remove(con);
 
-        // No need to send lock request if no servers connected
-        if (numKnownServers == 0) {
+        // We own the username and have already checked it is free, so it is ours to give
+        if (owner == null) {
+            clientRegistry.addFreshClient(username, secret);
+            serverBroadcast(MessageProcessor.getUserRegisteredMsg(username, secret));
             registrationSuccess(username, secret, con);
         }
-        // Create the LOCK_REQUEST MESSAGE and send to all connected servers
         else {
-            String msg = MessageProcessor.getLockRequestMsg(username, secret);
-            serverBroadcast(msg);
+            claimUsername(owner, con, username, secret);
+        }
+    }
+
+    /** Get the server that owns a username, and so decides whether it may be registered. Servers the membership
+     * protocol suspects or has declared dead are left out of the ring, so their usernames pass to the next server
+     * round the ring rather than every claim on them timing out.
+     * @param username The username
+     * @return The owning server, or null if we own it ourselves */
+    private ConnectedServer getUsernameOwner(String username) {
+        ArrayList<String> ids = new ArrayList<String>();
+        ids.add(serverId);
+        for (ConnectedServer server : serverRegistry.getAllServers()) {
+            if (membership.isAlive(server.getId())) {
+                ids.add(server.getId());
+            }
+        }
+        String ownerId = new ConsistentHashRing(ids).getOwner(username);
+        return (ownerId.equals(serverId) ? null : serverRegistry.getServerInfo(ownerId));
+    }
+
+    /** Checks if a client connected here is waiting on the owner of a username to grant it
+     * @param username The username
+     * @return true if the username is being registered here, otherwise false */
+    public boolean registrationPending(String username) {
+        for (ConnectedClient client : clientConnections.values()) {
+            if (!client.isRegistered() && client.getUsername().equals(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Asks the owner of a username, on a short-lived connection, whether a client may register it. The request is
+     * made on a pooled thread so the processing lock is not held while waiting for the answer.
+     * @param owner The server that owns the username
+     * @param con The connection the registering client is using
+     * @param username The username supplied by the client
+     * @param secret The secret supplied by the client */
+    private void claimUsername(ConnectedServer owner, Connection con, String username, String secret) {
+        String msg = MessageProcessor.getUsernameClaimMsg(Settings.getSecret(), serverId, username, secret);
+        directRequests.execute(() -> {
+            String reply = DirectRequest.request(owner.getHostname(), owner.getPort(), msg,
+                                                 Settings.getRegisterTimeout());
+            // As for a message processed on the connection's thread, the REGISTER_SUCCESS waits for the new record to
+            // be on disk, and that wait is done once the lock is released
+            if (deferLogSyncs()) {
+                con.holdWrites();
+            }
+            try {
+                usernameClaimAnswered(con, username, secret, reply);
+            }
+            finally {
+                releaseReplies(con);
+            }
+        });
+    }
+
+    /** The owner of a username has answered our claim on it, or failed to answer in time. The client's registration
+     * succeeds only if the owner granted the username, in which case it is added to our records (unless the owner's
+     * USER_REGISTERED got here first); otherwise the client is sent a REGISTER_FAILED.
+     * @param con The connection the registering client is using
+     * @param username The username supplied by the client
+     * @param secret The secret supplied by the client
+     * @param reply The owner's USERNAME_CLAIM_REPLY, or null if none arrived */
+    public synchronized void usernameClaimAnswered(Connection con, String username, String secret, String reply) {
+        boolean granted = false;
+        if (reply == null) {
+            log.info("owner of username " + username + " did not answer in time, registration failed");
+        }
+        else {
+            JSONObject json = MessageProcessor.toJson(reply, false, "");
+            granted = "USERNAME_CLAIM_REPLY".equals(json.get("command")) && Boolean.TRUE.equals(json.get("granted"));
+        }
+        if (granted && !clientRegistry.secretCorrect(username, secret)) {
+            clientRegistry.addFreshClient(username, secret);
         }
+
+        // The client may have gone while we were waiting
+        ConnectedClient client = clientConnections.get(con);
+        if (client == null || !con.isOpen()) {
+            return;
+        }
+        if (granted) {
+            if (client.receivedLockAllowed()) {
+                registrationSuccess(username, secret, con);
+            }
+        }
+        else {
+            registrationFailed(username, secret, con);
+        }
+    }
+
+    /** Another server has a client registering a username we own. The username is granted if we have no record of
+     * it, in which case every server is told it is now registered.
+     * @param con The short-lived connection the claim arrived on
+     * @param username The username being registered
+     * @param secret The secret being registered */
+    public void usernameClaimed(Connection con, String username, String secret) {
+        boolean granted = !clientRegistry.userExists(username);
+        if (granted) {
+            clientRegistry.addFreshClient(username, secret);
+            serverBroadcast(MessageProcessor.getUserRegisteredMsg(username, secret));
+        }
+        con.writeMsg(MessageProcessor.getUsernameClaimReplyMsg(username, granted));
     }
 
     /**
@@ -737,8 +1731,7 @@ public class SessionManager extends Thread {
     }
 
     /** The username already exists within the system. Send a REGISTER_FAILED message to the client and close the
-     * connection. Reset the server so it is no longer the sender of the LOCK_REQUEST message. And clear the response
-     * counter.
+     * connection.
      * @param username The username a client attempted to register with */
     public void registrationFailed(String username, String secret, Connection con) {
 
@@ -806,11 +1799,22 @@ public class SessionManager extends Thread {
      * @param msg The message to be sent **/
     public void serverBroadcast(String msg) {
         System.out.println("Broadcasting!");
+        msg = stampMsg(msg);
         for (Connection c: serverRegistry.getServerConnections().keySet()) {
             c.writeMsg(msg);
         }
     }
 
+    /** Sends a control message, such as a ROUTE_UPDATE, to all of the servers a given server has a direct connection
+     * to, ahead of any data queued for them (see Connection.writeControlMsg).
+     * @param msg The message to be sent **/
+    public void serverControlBroadcast(String msg) {
+        msg = stampMsg(msg);
+        for (Connection c: serverRegistry.getServerConnections().keySet()) {
+            c.writeControlMsg(msg);
+        }
+    }
+
     /** Sends a message to all of the servers a given server has a direct connection to, except the server it received
      * the message from.
      * @param c The connection that should NOT have the message sent to
@@ -823,10 +1827,219 @@ public class SessionManager extends Thread {
         }
     }
 
+    /** Sends a control message on to all of the servers a given server has a direct connection to, except the server
+     * it received the message from, ahead of any data queued for them (see Connection.writeControlMsg).
+     * @param c The connection that should NOT have the message sent to
+     * @param msg The message to be sent **/
+    public void forwardServerControlMsg(Connection c, String msg) {
+        for (Connection con: serverRegistry.getServerConnections().keySet()) {
+            if (con != c) {
+                con.writeControlMsg(msg);
+            }
+        }
+    }
+
+    /** Sends a message with the client registry added to it as its "registry" field. The registry holds every pending
+     * message, so when pending messages are spooled the whole message is written to the spool, a record at a time, and
+     * copied from there to each connection, rather than being built in memory; otherwise it is built as a string.
+     * The registry is written out under the processing lock, as the records are changed under it; the message is
+     * written to the connections once the lock is released.
+     * @param msg The rest of the message, already stamped if it is to be flooded
+     * @param cons The connections to send the message on */
+    public void sendWithRegistry(String msg, Collection<Connection> cons) {
+        MessageSpool spool = MessageSpool.getInstance();
+        SpooledMessage spooled = null;
+        String fullMsg = null;
+        synchronized (this) {
+            if (spool != null) {
+                spooled = spoolWithRegistry(spool, msg);
+            }
+            if (spooled == null) {
+                StringWriter out = new StringWriter();
+                try {
+                    writeWithRegistry(msg, out);
+                }
+                catch (IOException e) {
+                    // A StringWriter cannot fail
+                }
+                fullMsg = out.toString();
+            }
+        }
+        for (Connection c : cons) {
+            if (spooled != null) {
+                c.writeMsg(spooled);
+            }
+            else {
+                c.writeMsg(fullMsg);
+            }
+        }
+        if (spooled != null) {
+            spooled.release();
+        }
+    }
+
+    /** Writes a message with the client registry added to it to a file in the spool
+     * @param spool The spool
+     * @param msg The rest of the message
+     * @return The spooled message, or null if it could not be written */
+    private SpooledMessage spoolWithRegistry(MessageSpool spool, String msg) {
+        String command = MessageProcessor.toJson(msg, false, "").get("command").toString();
+        File file = null;
+        try {
+            file = spool.createOutgoingFile();
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                                                                        StandardCharsets.UTF_8))) {
+                writeWithRegistry(msg, out);
+            }
+            return new SpooledMessage(file, command);
+        }
+        catch (IOException e) {
+            log.warn("failed to spool outgoing " + command + ", building it in memory instead: " + e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        }
+    }
+
+    /** Writes a message with the client registry added to it
+     * @param msg The rest of the message
+     * @param out The writer to write it to
+     * @throws IOException If the writer cannot be written to */
+    private void writeWithRegistry(String msg, Writer out) throws IOException {
+        out.write(msg, 0, msg.length() - 1);
+        out.write(",\"registry\":");
+        clientRegistry.writeRecordsJson(out);
+        out.write('}');
+    }
+
+    /** Stamps a message about to be flooded between servers with this server's id and the next sequence number, so
+     * servers receiving it over more than one link can drop the duplicates. Only messages originating here are
+     * stamped this way; relayed ones keep their stamp and go through forwardServerMsg. The message is not searched for
+     * an existing stamp, as those of the server messages held in announced records would be found.
+     * @param msg The message to be stamped
+     * @return The stamped message */
+    public String stampMsg(String msg) {
+        long seq = msgSeq.incrementAndGet();
+        seenCache.markSeen(serverId, seq);
+        return msg.substring(0, msg.length() - 1) + ",\"msg_origin\":\"" + serverId + "\",\"msg_seq\":" + seq + "}";
+    }
+
+    /** Stamps a message about to be flooded between servers with this server's id and the next sequence number, unless
+     * it already carries a stamp from where it originated
+     * @param json The message to be stamped */
+    public void stampMsg(JSONObject json) {
+        if (!json.containsKey("msg_origin")) {
+            long seq = msgSeq.incrementAndGet();
+            seenCache.markSeen(serverId, seq);
+            json.put("msg_origin", serverId);
+            json.put("msg_seq", seq);
+        }
+    }
+
+    /** Checks if a message received from a server has been seen before, recording it as seen if not. Messages without
+     * a stamp (those sent to a single server rather than flooded) are never duplicates.
+     * @param json The received message
+     * @return true if the message has already been received, and should be dropped */
+    public boolean isDuplicate(JSONObject json) {
+        Object origin = json.get("msg_origin");
+        Object seq = json.get("msg_seq");
+        if (origin == null || !(seq instanceof Number)) {
+            return false;
+        }
+        boolean duplicate = !seenCache.markSeen(origin.toString(), ((Number) seq).longValue());
+        if (duplicate) {
+            log.debug("Dropping duplicate " + json.get("command") + " from " + origin + " (seq " + seq + ")");
+        }
+        return duplicate;
+    }
+
+    /** Sends an ACTIVITY_BROADCAST to the servers a given server has a direct connection to that lead to at least one
+     * of its recipients, except the server it received the message from. Each copy carries the token of the last
+     * activity from the same sender sent on that link ("link_prev"), so the receiving server knows which tokens were
+     * routed elsewhere. Activities are batched per link, so a burst of activities is carried between servers in a few
+     * ACTIVITY_BATCH frames rather than one line per activity.
+     * @param c The connection that should NOT have the message sent to, or null to send to every server
+     * @param activity The ACTIVITY_BROADCAST message to be sent
+     * @return true if the activity was sent on at least one link, false otherwise **/
+    public boolean activityBroadcast(Connection c, JSONObject activity) {
+        stampMsg(activity);
+        String sender = activity.get("username").toString();
+        Integer token = ((Number) activity.get("token")).intValue();
+        ArrayList<String> recipients = Message.recipientsFromRecordJson(activity);
+
+        HashSet<Connection> links = routingTable.linksFor(recipients, serverRegistry.getServerConnections().keySet(),
+                                                          c, getLocalUsernames());
+        if (links.isEmpty()) {
+            return false;
+        }
+        // Each copy carries the token of the last activity sent on its own link
+        for (Connection con : links) {
+            activity.put("link_prev", routingTable.recordSent(con, sender, token));
+            con.queueActivity(activity.toString());
+        }
+        activity.remove("link_prev");
+        return true;
+    }
+
+    /** Handles an ACTIVITY_BROADCAST received from another server, whether sent on its own or within an
+     * ACTIVITY_BATCH. The activity is passed on to our other servers leading to its recipients, and stored for
+     * delivery to our clients.
+     * @param json The ACTIVITY_BROADCAST message
+     * @param con The connection the message was received on */
+    public void receiveActivityBroadcast(JSONObject json, Connection con) {
+        Object linkPrev = json.remove("link_prev");
+        String sender = json.get("username").toString();
+        ClientRecord senderRecord = clientRegistry.getClientRecord(sender);
+        if (senderRecord == null) {
+            log.info("Received activity from unknown sender " + sender + ", forwarding only");
+            activityBroadcast(con, json);
+            return;
+        }
+
+        // Tokens between the previous activity on this link and this one were routed elsewhere
+        Message receivedMessage = new Message(json);
+        if (linkPrev instanceof Number) {
+            clientRegistry.skipUnroutedTokens(sender, ((Number) linkPrev).intValue(), receivedMessage.getToken());
+        }
+
+        // Forward message onto the servers leading to its recipients
+        activityBroadcast(con, json);
+
+        // Add message to ClientRegistry
+        clientRegistry.addMessageToRegistry(receivedMessage, sender);
+        scheduleDelivery(sender);
+    }
+
+    /** Checks if any of a message's recipients may be served through this server: they are logged in here, or we do
+     * not know where they are.
+     * @param recipients The clients yet to receive the message
+     * @return true if this server should hold the message, false if every recipient is routed elsewhere */
+    public boolean hasRecipientsHere(ArrayList<String> recipients) {
+        HashSet<String> localUsers = getLocalUsernames();
+        for (String recipient : recipients) {
+            if (localUsers.contains(recipient) || routingTable.getRoute(recipient) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Get the usernames of all clients logged in to this server
+     * @return The usernames of our logged in clients */
+    public HashSet<String> getLocalUsernames() {
+        HashSet<String> localUsers = new HashSet<String>();
+        clientConnections.values().forEach((client) -> localUsers.add(client.getUsername()));
+        return localUsers;
+    }
+
+    /** Sends a tree update, such as a GRANDPARENT_UPDATE or SIBLING_CRASHED, to each of our children. These are
+     * control messages, so they go ahead of any data queued for the children.
+     * @param msg The message to be sent */
     public void forwardToChildren(String msg) {
         ConcurrentHashMap<ConnectedServer, Connection> children = serverRegistry.getConnectedChildConnections();
         for (Connection con : children.values()) {
-            con.writeMsg(msg);
+            con.writeControlMsg(msg);
         }
     }
 
@@ -872,15 +2085,33 @@ public class SessionManager extends Thread {
      */
     public synchronized void deleteClosedConnection(Connection con) {
 
+        // No client can be reached through a closed link any more
+        routingTable.forgetLink(con);
+        activityThrottle.connectionClosed(con);
+
+        if (standbyLink != null) {
+            standbyLink.connectionClosed(con);
+        }
+        serverRegistry.removeStandbyCon(con);
+
+        if (con == reparentConnection) {
+            // The server we were moving under went away before accepting us
+            reparentConnection = null;
+            serverRegistry.removeServerCon(con);
+        }
+
         if (clientConnections.containsKey(con)) {
             // Close connection to another client
             // Generate appropriate logout broadcast, depending on if client was registered or anonymous
             ConnectedClient client = getConnectedClient(con);
 
             if (client.getUsername().contains("anonymous")) {
-                // Client connection anonymous
-                String msg = MessageProcessor.getAnonLogoutBroadcast(client.getUsername(), client.getSecret());
-                serverBroadcast(msg);
+                // Client connection anonymous. Unless it logged out first, remove it and tell the other servers.
+                ClientRecord record = clientRegistry.getClientRecord(client.getUsername());
+                if (record != null && !record.anonToDelete()) {
+                    String logoutContext = "Context: anonymous client's connection closed (in deleteClosedConnection)";
+                    logoutAnonClient(con, logoutContext, client.getUsername(), client.getSecret(), true);
+                }
             }
             else {
                 // Client was registered -- need to get client token
@@ -932,8 +2163,9 @@ public class SessionManager extends Thread {
     public void logoutAnonClient(Connection con, String logoutContext, String username, String secret, boolean bcast) {
         clientRegistry.removeUser(username);
         clientRegistry.clearRecipientFromAllMsgs(username);
+        long epoch = anonEpochs.advance();
         if (bcast) {
-            String anonLogoutBroadcastMsg = MessageProcessor.getAnonLogoutBroadcast(username, secret);
+            String anonLogoutBroadcastMsg = MessageProcessor.getAnonLogoutBroadcast(username, secret, epoch);
             sessionManager.serverBroadcast(anonLogoutBroadcastMsg);
         }
     }
@@ -941,10 +2173,143 @@ public class SessionManager extends Thread {
     /**
      * Only use in response to an ANON_LOGOUT_BROADCAST
      * @param user
+     * @param epoch The anonymous epoch of the client's server after the logout, or -1 if not given
      */
-    public void logoutAnonClient(String user) {
+    public void logoutAnonClient(String user, long epoch) {
         clientRegistry.removeUser(user);
         clientRegistry.clearRecipientFromAllMsgs(user);
+        anonymousChangeHeard(user, epoch);
+    }
+
+    /** Records that a login or logout of another server's anonymous client has been applied
+     * @param user The username of the anonymous client
+     * @param epoch The anonymous epoch of the client's server after the change, or -1 if not given */
+    public void anonymousChangeHeard(String user, long epoch) {
+        String owner = MessageProcessor.getAnonymousOwner(user);
+        if (owner != null && epoch >= 0) {
+            anonEpochs.heard(owner, epoch);
+        }
+    }
+
+    /** Get the number of changes there have been to our anonymous clients
+     * @return Our anonymous epoch */
+    public long getAnonEpoch() {
+        return anonEpochs.current();
+    }
+
+    /** Checks a server's announced anonymous epoch, and if we have missed a change to its anonymous clients queues it
+     * for the next sync round. After a partition heals, the announces from the other side arrive in a burst, so the
+     * out-of-step servers are gathered for a moment and then synced together by one task on the request pool, rather
+     * than one thread and one log line per server.
+     * @param id The server's id
+     * @param hostname The server's hostname
+     * @param port The server's port number
+     * @param epoch The server's announced anonymous epoch */
+    public void checkAnonymousEpoch(String id, String hostname, int port, long epoch) {
+        if (id.equals(serverId) || !anonEpochs.needsSync(id, epoch)) {
+            return;
+        }
+        boolean startRound;
+        synchronized (anonSyncQueue) {
+            anonSyncQueue.put(id, InetSocketAddress.createUnresolved(hostname, port));
+            startRound = !anonSyncRunning;
+            anonSyncRunning = true;
+        }
+        if (startRound) {
+            directRequests.execute(this::syncAnonymousSessions);
+        }
+    }
+
+    /** Runs sync rounds until no servers are left queued. Each round asks every queued server at once, on short-lived
+     * connections, for the full list of its anonymous clients, so one unreachable server only delays the round by a
+     * single timeout. This is done off the processing thread so the processing lock is not held while waiting for the
+     * answers. */
+    private void syncAnonymousSessions() {
+        boolean finished = false;
+        try {
+            try {
+                Thread.sleep(Settings.getAnonSyncDelay());
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping anonymous sync");
+                return;
+            }
+            while (true) {
+                HashMap<String, InetSocketAddress> round;
+                synchronized (anonSyncQueue) {
+                    if (anonSyncQueue.isEmpty()) {
+                        anonSyncRunning = false;
+                        finished = true;
+                        return;
+                    }
+                    round = new HashMap<String, InetSocketAddress>(anonSyncQueue);
+                    anonSyncQueue.clear();
+                }
+                String msg = MessageProcessor.getAnonSessionsRequestMsg(Settings.getSecret(), serverId);
+                HashMap<String, Future<String>> replies = new HashMap<String, Future<String>>();
+                for (Map.Entry<String, InetSocketAddress> entry : round.entrySet()) {
+                    InetSocketAddress address = entry.getValue();
+                    replies.put(entry.getKey(), directRequests.submit(() ->
+                            DirectRequest.request(address.getHostString(), address.getPort(), msg,
+                                                  Settings.getRegisterTimeout())));
+                }
+                int users = 0;
+                for (Map.Entry<String, Future<String>> entry : replies.entrySet()) {
+                    String reply;
+                    try {
+                        reply = entry.getValue().get();
+                    }
+                    catch (InterruptedException | ExecutionException e) {
+                        reply = null;
+                    }
+                    try {
+                        users += anonymousSessionsReceived(entry.getKey(), reply);
+                    }
+                    catch (RuntimeException e) {
+                        log.error("failed to sync anonymous users of server " + entry.getKey() + ": " + e);
+                        // Try again at the server's next announce
+                        anonEpochs.synced(entry.getKey(), -1);
+                    }
+                }
+                log.info("anonymous sync round: " + users + " users from " + round.size() + " servers");
+            }
+        }
+        finally {
+            if (!finished) {
+                // Let the next out-of-step announce start a new sync thread
+                synchronized (anonSyncQueue) {
+                    anonSyncRunning = false;
+                }
+            }
+        }
+    }
+
+    /** A server has sent us its anonymous clients. Bring our table of its clients in line with the list.
+     * @param id The server's id
+     * @param reply The server's ANON_SESSIONS message, or null if none arrived
+     * @return The number of the server's anonymous clients now in our table */
+    public synchronized int anonymousSessionsReceived(String id, String reply) {
+        JSONObject json = (reply == null ? null : MessageProcessor.toJson(reply, false, ""));
+        if (json == null || !"ANON_SESSIONS".equals(json.get("command")) ||
+                !(json.get("anon_epoch") instanceof Number) || !(json.get("users") instanceof JSONObject)) {
+            // Try again at the server's next announce
+            anonEpochs.synced(id, -1);
+            return 0;
+        }
+        if (!anonEpochs.synced(id, ((Number) json.get("anon_epoch")).longValue())) {
+            return 0;
+        }
+        HashMap<String, String> users = new HashMap<String, String>();
+        ((JSONObject) json.get("users")).forEach((user, secret) -> users.put(user.toString(), secret.toString()));
+        clientRegistry.syncAnonymousUsers(id, users);
+        return users.size();
+    }
+
+    /** Another server has asked for our anonymous clients
+     * @param con The short-lived connection the request arrived on */
+    public void anonymousSessionsRequested(Connection con) {
+        con.writeMsg(MessageProcessor.getAnonSessionsMsg(serverId, anonEpochs.current(),
+                                                         clientRegistry.getAnonymousUsers(serverId)));
     }
 
     /**
@@ -989,6 +2354,14 @@ public class SessionManager extends Thread {
     // Getters and Setters
     //
 
+    /**
+     * Getter that retrieves the RoutingTable
+     * @return the routingTable of this SessionManager
+     */
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
     /**
      * Getter that retrieves the ClientRegistry
      * @return the clientRegistry of this SessionManager
@@ -997,6 +2370,14 @@ public class SessionManager extends Thread {
         return this.clientRegistry;
     }
 
+    /**
+     * Getter that retrieves the SwimMembership
+     * @return the membership protocol of this SessionManager
+     */
+    public SwimMembership getMembership() {
+        return membership;
+    }
+
     public ServerRegistry getServerRegistry() {
         return this.serverRegistry;
     }
@@ -1039,13 +2420,46 @@ public class SessionManager extends Thread {
         deliveries.add(sender);
     }
 
+    /** Delivers the messages of every sender scheduled for delivery, then sends the acknowledgements of this delivery
+     * pass (and any queued since the last pass) to all servers as a single batch. Holds the same lock as process(), as
+     * the records being delivered from are also updated by incoming messages. The acknowledgements logged meanwhile
+     * are waited for once the lock is released. */
     public void makeDeliveries() {
-        while (!deliveries.isEmpty()) {
-            JSONObject ackMsg = clientRegistry.messageFlush(getClientConnections(), deliveries.poll());
-            if (ackMsg != null) {
-                serverBroadcast(ackMsg.toString());
+        deferLogSyncs();
+        try {
+            synchronized (this) {
+                while (!deliveries.isEmpty()) {
+                    String sender = deliveries.poll();
+                    HashMap<Integer, ArrayList<String>> acks = clientRegistry.messageFlush(getClientConnections(),
+                                                                                           sender);
+                    if (!acks.isEmpty()) {
+                        queueAcks(sender, acks);
+                    }
+                }
+                flushAcks();
             }
         }
+        finally {
+            awaitLogSyncs();
+        }
+    }
+
+    /** Adds acknowledgements for a sender's delivered messages to the pending batch. The batch is sent at the end of
+     * the next delivery pass, or straight away if it has grown too large.
+     * @param sender The client who sent the delivered messages
+     * @param acks A map of message tokens to the recipients who received that message */
+    public void queueAcks(String sender, HashMap<Integer, ArrayList<String>> acks) {
+        pendingAcks.addAcks(sender, acks);
+        if (pendingAcks.size() >= ACK_BATCH_LIMIT) {
+            flushAcks();
+        }
+    }
+
+    /** Sends all pending acknowledgements to the servers we are connected to in one MSG_ACKS_BATCH message */
+    public void flushAcks() {
+        if (!pendingAcks.isEmpty()) {
+            serverBroadcast(MessageProcessor.getAckBatchMsg(pendingAcks.drainToJson()));
+        }
     }
 
     public static String getServerId() {
@@ -0,0 +1,55 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/** A message written to a file in the spool directory instead of being built in memory, used for messages carrying
+ * the registry, such as SERVER_ANNOUNCE, as the registry holds the contents of every pending message. The file is
+ * copied to each connection the message is queued on, and deleted once every one of them has written or dropped it. */
+public class SpooledMessage {
+    private File file;
+    private String command;
+    private long length;
+    private int references; // the connections the message is queued on, and the sender until it has queued it
+
+    /** Takes over a file a message has been written to, on behalf of the sender, who must release it once the message
+     * has been queued on every connection
+     * @param file The file holding the message
+     * @param command The message's command, for logging */
+    public SpooledMessage(File file, String command) {
+        this.file = file;
+        this.command = command;
+        this.length = file.length();
+        this.references = 1;
+    }
+
+    /** The message is being queued on a connection */
+    public synchronized void retain() {
+        references++;
+    }
+
+    /** The message has been written to a connection, or dropped from it, or has been queued on every connection by
+     * the sender. The file is deleted once nothing needs it. */
+    public synchronized void release() {
+        references--;
+        if (references == 0) {
+            file.delete();
+        }
+    }
+
+    /** Opens the message for copying to a connection, a chunk at a time
+     * @return A reader for the message, to be closed by the caller
+     * @throws IOException If the file cannot be opened */
+    public Reader open() throws IOException {
+        return new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return command + " (spooled, " + length + " bytes)";
+    }
+}
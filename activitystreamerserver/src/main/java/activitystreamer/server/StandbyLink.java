@@ -0,0 +1,171 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Keeps a warm standby connection to our grandparent, so the grandparent can take over as our parent the moment our
+ * parent fails. The connection is authenticated in advance (STANDBY_AUTH, answered with STANDBY_READY) but carries no
+ * traffic apart from a STANDBY_PING every ping interval, which the grandparent answers with a STANDBY_PONG. When our
+ * parent fails, a STANDBY_PROMOTE on the link makes us the grandparent's child straight away, with no TCP handshake or
+ * AUTHENTICATE round trip. The link follows the grandparent as it changes, and is reopened if the pongs stop.
+ */
+public class StandbyLink extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private static final int MISSED_PONGS = 3; // pings without a pong before the link is reopened
+
+    private ServerRegistry serverRegistry;
+    private Connection con;
+    private ConnectedServer server;
+    private boolean ready;
+    private long lastPong;
+    private boolean term = false;
+
+    public StandbyLink(ServerRegistry serverRegistry) {
+        this.serverRegistry = serverRegistry;
+        this.con = null;
+        this.server = null;
+        this.ready = false;
+        setDaemon(true);
+        start();
+    }
+
+    /** Checks the link once every ping interval: opens it to a new grandparent, closes it if it is stale, and pings
+     * the grandparent otherwise. */
+    @Override
+    public void run() {
+        log.info("using standby ping interval of " + Settings.getStandbyPingInterval() + " milliseconds");
+        while (!term) {
+            try {
+                Thread.sleep(Settings.getStandbyPingInterval());
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping standby link");
+                break;
+            }
+            maintain();
+        }
+        close();
+    }
+
+    /** Brings the link in line with our current grandparent */
+    private void maintain() {
+        ConnectedServer grandparent = serverRegistry.getGrandparent();
+        synchronized (this) {
+            boolean pongsMissed = ready && System.currentTimeMillis() - lastPong >
+                    (long) MISSED_PONGS * Settings.getStandbyPingInterval();
+            if (con != null && (grandparent == null || !grandparent.equals(server) || !con.isOpen() || pongsMissed)) {
+                close();
+            }
+            if (con != null) {
+                if (ready) {
+                    con.writeControlMsg(MessageProcessor.getStandbyPingMsg());
+                }
+                return;
+            }
+        }
+        if (grandparent != null && !SessionManager.isReconnecting()) {
+            open(grandparent);
+        }
+    }
+
+    /** Opens a standby connection to our grandparent and asks it to hold the connection for us
+     * @param grandparent Our grandparent */
+    private void open(ConnectedServer grandparent) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(grandparent.getHostname(), grandparent.getPort()),
+                           Settings.getConnectTimeout());
+            SessionManager sessionManager = SessionManager.getInstance();
+            Connection newCon = sessionManager.outgoingConnection(socket);
+            synchronized (this) {
+                con = newCon;
+                server = grandparent;
+                ready = false;
+            }
+            newCon.writeControlMsg(MessageProcessor.getStandbyAuthMsg(Settings.getSecret(), SessionManager.getServerId(),
+                                                               Settings.getLocalHostname(), Settings.getLocalPort()));
+        }
+        catch (IOException e) {
+            log.debug("failed to open standby connection to " + grandparent.getHostname() + ":" +
+                      grandparent.getPort() + " :" + e);
+            try {
+                socket.close();
+            }
+            catch (IOException e1) {
+                // Nothing more to do, the connection was never made
+            }
+        }
+    }
+
+    /** Closes the standby connection, if there is one */
+    private synchronized void close() {
+        if (con != null) {
+            Connection oldCon = con;
+            reset();
+            serverRegistry.removeServerCon(oldCon);
+            oldCon.closeCon();
+        }
+    }
+
+    /** Forgets the standby connection */
+    private void reset() {
+        con = null;
+        server = null;
+        ready = false;
+    }
+
+    /** The grandparent has accepted the standby connection
+     * @param readyCon The connection the STANDBY_READY arrived on */
+    public synchronized void standbyReady(Connection readyCon) {
+        if (readyCon == con) {
+            log.info("standby connection to " + server.getHostname() + ":" + server.getPort() + " is ready");
+            ready = true;
+            lastPong = System.currentTimeMillis();
+        }
+    }
+
+    /** The grandparent has answered a ping
+     * @param pongCon The connection the STANDBY_PONG arrived on */
+    public synchronized void standbyPong(Connection pongCon) {
+        if (pongCon == con) {
+            lastPong = System.currentTimeMillis();
+        }
+    }
+
+    /** A connection has closed; forget it if it was the standby connection
+     * @param closedCon The connection that closed */
+    public synchronized void connectionClosed(Connection closedCon) {
+        if (closedCon == con) {
+            reset();
+        }
+    }
+
+    /** Hands over the standby connection to become the link to our new parent, if it is ready and leads to the given
+     * grandparent. The link is no longer a standby once handed over.
+     * @param grandparent The grandparent we want to make our parent
+     * @return The connection to the grandparent, or null if there is no ready standby connection to it */
+    public synchronized Connection promote(ConnectedServer grandparent) {
+        if (con == null || !ready || grandparent == null || !grandparent.equals(server) || !con.isOpen()) {
+            return null;
+        }
+        Connection promoted = con;
+        reset();
+        return promoted;
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
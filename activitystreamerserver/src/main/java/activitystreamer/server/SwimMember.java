@@ -0,0 +1,145 @@
+package activitystreamer.server;
+
+import org.json.simple.JSONObject;
+
+/** A server as seen by the SWIM membership protocol: where it can be probed, what we believe its state to be, and how
+ * many more times news of that state should be piggybacked onto our probes. */
+public class SwimMember {
+
+    public static final String ALIVE = "ALIVE";
+    public static final String SUSPECT = "SUSPECT";
+    public static final String DEAD = "DEAD";
+
+    private String id;
+    private String hostname;
+    private int port;
+    private String state;
+    private int incarnation;
+    private long stateChangedAt; // System.nanoTime() at the last change of state
+    private int disseminationsLeft;
+    private long rttMillis;
+
+    /** Creates a new member
+     * @param id The server's id
+     * @param hostname The server's hostname
+     * @param port The server's port number
+     * @param state The state the server is believed to be in
+     * @param incarnation The incarnation number the state belongs to */
+    public SwimMember(String id, String hostname, int port, String state, int incarnation) {
+        this.id = id;
+        this.hostname = hostname;
+        this.port = port;
+        this.state = state;
+        this.incarnation = incarnation;
+        this.stateChangedAt = System.nanoTime();
+        this.disseminationsLeft = 0;
+        this.rttMillis = -1;
+    }
+
+    /** Creates a member from a piggybacked membership update
+     * @param update The JSONObject representation of the update
+     * @return The member the update describes */
+    public static SwimMember fromJson(JSONObject update) {
+        return new SwimMember(update.get("id").toString(), update.get("hostname").toString(),
+                              ((Number) update.get("port")).intValue(), update.get("state").toString(),
+                              ((Number) update.get("incarnation")).intValue());
+    }
+
+    /** Converts the member into a membership update, to be piggybacked on a probe
+     * @return The JSONObject representation of the member */
+    public JSONObject toJson() {
+        JSONObject update = new JSONObject();
+        update.put("id", id);
+        update.put("hostname", hostname);
+        update.put("port", port);
+        update.put("state", state);
+        update.put("incarnation", incarnation);
+        return update;
+    }
+
+    /** Checks if an update about this member should replace what we currently believe. A higher incarnation always
+     * wins; for the same incarnation, SUSPECT overrides ALIVE, and DEAD overrides everything. A dead member is only
+     * revived by it refuting its death, i.e. ALIVE at a higher incarnation, as a member wrongly declared dead after a
+     * pause or a short partition keeps its id.
+     * @param newState The state in the update
+     * @param newIncarnation The incarnation in the update
+     * @return true if the update is newer information, false otherwise */
+    public boolean isOverriddenBy(String newState, int newIncarnation) {
+        if (state.equals(DEAD)) {
+            return newState.equals(ALIVE) && newIncarnation > incarnation;
+        }
+        if (newState.equals(DEAD)) {
+            return true;
+        }
+        if (newIncarnation != incarnation) {
+            return newIncarnation > incarnation;
+        }
+        return newState.equals(SUSPECT) && state.equals(ALIVE);
+    }
+
+    /** Updates what we believe about this member, and queues the change to be disseminated
+     * @param newState The member's new state
+     * @param newIncarnation The incarnation the state belongs to
+     * @param disseminations The number of probes to piggyback the change on */
+    public void setState(String newState, int newIncarnation, int disseminations) {
+        this.state = newState;
+        this.incarnation = newIncarnation;
+        this.stateChangedAt = System.nanoTime();
+        this.disseminationsLeft = disseminations;
+    }
+
+    /** Records that news of this member has been piggybacked onto a probe */
+    public void disseminated() {
+        if (disseminationsLeft > 0) {
+            disseminationsLeft -= 1;
+        }
+    }
+
+    /** Records the round trip time of a successful direct probe, smoothing it with earlier measurements
+     * @param rtt The round trip time of the probe, in milliseconds */
+    public void recordRtt(long rtt) {
+        rttMillis = (rttMillis < 0 ? rtt : (rttMillis * 7 + rtt) / 8);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public int getIncarnation() {
+        return incarnation;
+    }
+
+    /** Get the number of milliseconds since this member's state last changed
+     * @return The time since the change, in milliseconds */
+    public long getMillisSinceStateChange() {
+        return (System.nanoTime() - stateChangedAt) / 1000000;
+    }
+
+    public int getDisseminationsLeft() {
+        return disseminationsLeft;
+    }
+
+    /** Get the smoothed round trip time of direct probes to this member
+     * @return The round trip time in milliseconds, or -1 if it has never been measured */
+    public long getRtt() {
+        return rttMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + hostname + ":" + port + " (id=" + id + "), " + state + ", incarnation: " + incarnation +
+                ", rtt: " + rttMillis + "ms}";
+    }
+}
@@ -0,0 +1,393 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Maintains the membership of the network and detects failed servers using a SWIM style protocol. Every protocol
+ * period the server probes one member, chosen in a randomly shuffled round robin, with a SWIM_PING on a short-lived
+ * connection. If no SWIM_ACK arrives in time, a few other members are asked to probe it on our behalf (SWIM_PING_REQ).
+ * A member that cannot be reached either way is suspected, and declared dead if it does not refute the suspicion
+ * within the suspicion timeout. Changes in membership are piggybacked onto the probes themselves, so each server sends
+ * a constant number of messages per period no matter how large the network grows.
+ */
+public class SwimMembership extends Thread {
+    private static final Logger log = LogManager.getLogger();
+    private static final int MAX_PIGGYBACK = 8; // membership updates carried per probe
+    private static final int DISSEMINATION_FACTOR = 3; // each update is piggybacked factor * log2(members) times
+
+    private ConcurrentHashMap<String, SwimMember> members;
+    private ArrayList<String> probeOrder;
+    private int probeIndex;
+    private int incarnation;
+    private int selfDisseminationsLeft;
+    private ServerRegistry serverRegistry;
+    private Random random;
+    private Executor requests; // bounded pool the indirect probes wait on
+    private boolean term = false;
+
+    /** Starts the membership protocol
+     * @param serverRegistry The servers learnt about through the tree
+     * @param requests The pool to make indirect probes on */
+    public SwimMembership(ServerRegistry serverRegistry, Executor requests) {
+        this.members = new ConcurrentHashMap<String, SwimMember>();
+        this.probeOrder = new ArrayList<String>();
+        this.probeIndex = 0;
+        this.incarnation = 0;
+        this.selfDisseminationsLeft = 0;
+        this.serverRegistry = serverRegistry;
+        this.random = new Random();
+        this.requests = requests;
+        setDaemon(true);
+        start();
+    }
+
+    /** Runs one protocol period after another: probe a member, then expire any suspicions that have timed out. */
+    @Override
+    public void run() {
+        log.info("using membership probe interval of " + Settings.getSwimProbeInterval() + " milliseconds");
+        while (!term) {
+            long periodStart = System.nanoTime();
+
+            syncMembers();
+            SwimMember target = nextProbeTarget();
+            if (target != null && !probe(target)) {
+                suspect(target);
+            }
+            failServers(expireSuspects());
+
+            long remaining = Settings.getSwimProbeInterval() - (System.nanoTime() - periodStart) / 1000000;
+            try {
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping membership protocol");
+                break;
+            }
+        }
+    }
+
+    // ------------------------------ PROBING ------------------------------
+
+    /** Probes a member directly, then indirectly through other members if it does not answer
+     * @param target The member to probe
+     * @return true if the member answered, false otherwise */
+    private boolean probe(SwimMember target) {
+        long sent = System.nanoTime();
+        String reply = DirectRequest.request(target.getHostname(), target.getPort(), getPingMsg(),
+                                             Settings.getSwimAckTimeout());
+        if (handleAck(reply)) {
+            target.recordRtt((System.nanoTime() - sent) / 1000000);
+            return true;
+        }
+
+        // No direct answer - ask other members to try, in case the problem is only between us and the target
+        ArrayList<SwimMember> helpers = pickHelpers(target);
+        if (helpers.isEmpty()) {
+            return false;
+        }
+        int indirectTimeout = Math.max(Settings.getSwimAckTimeout(),
+                                       Settings.getSwimProbeInterval() - Settings.getSwimAckTimeout());
+        String pingReq = MessageProcessor.getSwimPingReqMsg(Settings.getSecret(), SessionManager.getServerId(),
+                                                            Settings.getLocalHostname(), Settings.getLocalPort(),
+                                                            getPiggyback(), target.toJson());
+        CountDownLatch acked = new CountDownLatch(1);
+        for (SwimMember helper : helpers) {
+            requests.execute(() -> {
+                String indirectReply = DirectRequest.request(helper.getHostname(), helper.getPort(), pingReq,
+                                                             indirectTimeout);
+                if (handleAck(indirectReply)) {
+                    acked.countDown();
+                }
+            });
+        }
+        try {
+            return acked.await(indirectTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /** Probes a member on behalf of another server that could not reach it, replying with a SWIM_ACK if it answers.
+     * Runs on the request pool, so the requesting server's connection is held open rather than our SessionManager.
+     * @param con The connection the SWIM_PING_REQ was received on
+     * @param target The member to probe */
+    private void probeFor(Connection con, SwimMember target) {
+        requests.execute(() -> {
+            String reply = DirectRequest.request(target.getHostname(), target.getPort(), getPingMsg(),
+                                                 Settings.getSwimAckTimeout());
+            if (handleAck(reply)) {
+                con.writeControlMsg(MessageProcessor.getSwimAckMsg(SessionManager.getServerId(), getPiggyback()));
+            }
+        });
+    }
+
+    /** Answers a SWIM_PING or SWIM_PING_REQ from another server, merging the membership updates it carries. A ping
+     * is answered with a SWIM_ACK at once; a ping request is answered only once the target answers us.
+     * @param con The connection the probe was received on
+     * @param json The probe, already checked to be valid */
+    public void answerProbe(Connection con, JSONObject json) {
+        heardFrom(json.get("id").toString(), json.get("hostname").toString(), ((Number) json.get("port")).intValue());
+        ArrayList<String> deadServers = mergeUpdates((JSONArray) json.get("updates"));
+        if (json.get("command").equals("SWIM_PING")) {
+            con.writeControlMsg(MessageProcessor.getSwimAckMsg(SessionManager.getServerId(), getPiggyback()));
+        }
+        else {
+            probeFor(con, SwimMember.fromJson((JSONObject) json.get("target")));
+        }
+        failServers(deadServers);
+    }
+
+    /** Handles the reply to a probe, merging any membership updates it carries
+     * @param reply The reply, or null if none arrived
+     * @return true if the reply was a SWIM_ACK, false otherwise */
+    private boolean handleAck(String reply) {
+        if (reply == null) {
+            return false;
+        }
+        JSONObject json = MessageProcessor.toJson(reply, false, "");
+        if (!"SWIM_ACK".equals(json.get("command"))) {
+            return false;
+        }
+        if (json.get("updates") instanceof JSONArray) {
+            failServers(mergeUpdates((JSONArray) json.get("updates")));
+        }
+        return true;
+    }
+
+    /** Get a SWIM_PING carrying our most recent membership updates
+     * @return The message to be sent */
+    private String getPingMsg() {
+        return MessageProcessor.getSwimPingMsg(Settings.getSecret(), SessionManager.getServerId(),
+                                               Settings.getLocalHostname(), Settings.getLocalPort(), getPiggyback());
+    }
+
+    // ------------------------------ MEMBERSHIP ------------------------------
+
+    /** Adds any server we have learnt about through the tree (SERVER_ANNOUNCE, sibling lists, ...) as a member */
+    private synchronized void syncMembers() {
+        for (ConnectedServer server : serverRegistry.getAllServers()) {
+            if (!server.getId().equals(SessionManager.getServerId()) && !members.containsKey(server.getId())) {
+                members.put(server.getId(), new SwimMember(server.getId(), server.getHostname(), server.getPort(),
+                                                           SwimMember.ALIVE, 0));
+            }
+        }
+    }
+
+    /** Records that a server has contacted us, adding it as a member if it is new. A member we believe dead is still
+     * running, so its death is disseminated again for our reply to carry, giving it the chance to refute it.
+     * @param id The server's id
+     * @param hostname The server's hostname
+     * @param port The server's port number */
+    public synchronized void heardFrom(String id, String hostname, int port) {
+        if (id.equals(SessionManager.getServerId())) {
+            return;
+        }
+        SwimMember member = members.get(id);
+        if (member == null) {
+            members.put(id, new SwimMember(id, hostname, port, SwimMember.ALIVE, 0));
+        }
+        else if (member.getState().equals(SwimMember.DEAD) && member.getDisseminationsLeft() == 0) {
+            member.setState(SwimMember.DEAD, member.getIncarnation(), disseminationCount());
+        }
+    }
+
+    /** Picks the next member to probe. Members are probed in a random order, reshuffled after every round, so each
+     * member is probed within a bounded number of periods.
+     * @return The member to probe, or null if we know of no live members */
+    private synchronized SwimMember nextProbeTarget() {
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder = new ArrayList<String>();
+            members.forEach((id, member) -> {
+                if (!member.getState().equals(SwimMember.DEAD)) {
+                    probeOrder.add(id);
+                }
+            });
+            Collections.shuffle(probeOrder, random);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            SwimMember member = members.get(probeOrder.get(probeIndex++));
+            if (member != null && !member.getState().equals(SwimMember.DEAD)) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /** Picks random live members, other than the target, to probe the target on our behalf
+     * @param target The member that did not answer
+     * @return Up to the configured number of indirect probers */
+    private synchronized ArrayList<SwimMember> pickHelpers(SwimMember target) {
+        ArrayList<SwimMember> candidates = new ArrayList<SwimMember>();
+        members.forEach((id, member) -> {
+            if (member != target && member.getState().equals(SwimMember.ALIVE)) {
+                candidates.add(member);
+            }
+        });
+        Collections.shuffle(candidates, random);
+        int helpers = Math.min(Settings.getSwimIndirectProbes(), candidates.size());
+        return new ArrayList<SwimMember>(candidates.subList(0, helpers));
+    }
+
+    /** Suspects a member that could not be reached, and disseminates the suspicion
+     * @param member The member that did not answer */
+    private synchronized void suspect(SwimMember member) {
+        if (member.getState().equals(SwimMember.ALIVE)) {
+            log.info("suspecting server " + member);
+            member.setState(SwimMember.SUSPECT, member.getIncarnation(), disseminationCount());
+        }
+    }
+
+    /** Declares dead the suspected members that have not refuted the suspicion within the timeout
+     * @return The ids of the members declared dead */
+    private synchronized ArrayList<String> expireSuspects() {
+        ArrayList<String> dead = new ArrayList<String>();
+        members.forEach((id, member) -> {
+            if (member.getState().equals(SwimMember.SUSPECT) &&
+                    member.getMillisSinceStateChange() >= Settings.getSwimSuspectTimeout()) {
+                log.info("declaring server dead " + member);
+                member.setState(SwimMember.DEAD, member.getIncarnation(), disseminationCount());
+                dead.add(id);
+            }
+        });
+        return dead;
+    }
+
+    /** Merges membership updates piggybacked on a probe or its reply. An update about ourselves that suspects us is
+     * refuted by raising our incarnation number and disseminating that we are alive.
+     * @param updates The piggybacked updates
+     * @return The ids of members that are newly known to be dead */
+    public synchronized ArrayList<String> mergeUpdates(JSONArray updates) {
+        ArrayList<String> dead = new ArrayList<String>();
+        for (Object updateObj : updates) {
+            if (!(updateObj instanceof JSONObject)) {
+                continue;
+            }
+            SwimMember update = SwimMember.fromJson((JSONObject) updateObj);
+            if (update.getId().equals(SessionManager.getServerId())) {
+                if (!update.getState().equals(SwimMember.ALIVE) && update.getIncarnation() >= incarnation) {
+                    incarnation = update.getIncarnation() + 1;
+                    selfDisseminationsLeft = disseminationCount();
+                    log.info("refuting suspicion of this server, now at incarnation " + incarnation);
+                }
+                // The sender has not heard our refutation yet, e.g. it was carried on replies to probes that had
+                // already given up on us
+                else if (!update.getState().equals(SwimMember.ALIVE) && selfDisseminationsLeft == 0) {
+                    selfDisseminationsLeft = disseminationCount();
+                }
+                continue;
+            }
+            SwimMember member = members.get(update.getId());
+            if (member == null) {
+                update.setState(update.getState(), update.getIncarnation(), disseminationCount());
+                members.put(update.getId(), update);
+            }
+            else if (member.isOverriddenBy(update.getState(), update.getIncarnation())) {
+                if (member.getState().equals(SwimMember.DEAD)) {
+                    log.info("server refuted its death, now at incarnation " + update.getIncarnation() + ": " +
+                             member);
+                }
+                member.setState(update.getState(), update.getIncarnation(), disseminationCount());
+            }
+            else {
+                continue;
+            }
+            if (update.getState().equals(SwimMember.DEAD)) {
+                dead.add(update.getId());
+            }
+        }
+        return dead;
+    }
+
+    /** Get the membership updates to piggyback on the next probe or reply, newest first
+     * @return A JSONArray of at most MAX_PIGGYBACK updates */
+    public synchronized JSONArray getPiggyback() {
+        JSONArray updates = new JSONArray();
+        if (selfDisseminationsLeft > 0) {
+            updates.add(new SwimMember(SessionManager.getServerId(), Settings.getLocalHostname(),
+                                       Settings.getLocalPort(), SwimMember.ALIVE, incarnation).toJson());
+            selfDisseminationsLeft -= 1;
+        }
+        ArrayList<SwimMember> pending = new ArrayList<SwimMember>();
+        members.forEach((id, member) -> {
+            if (member.getDisseminationsLeft() > 0) {
+                pending.add(member);
+            }
+        });
+        pending.sort((a, b) -> b.getDisseminationsLeft() - a.getDisseminationsLeft());
+        for (SwimMember member : pending) {
+            if (updates.size() >= MAX_PIGGYBACK) {
+                break;
+            }
+            updates.add(member.toJson());
+            member.disseminated();
+        }
+        return updates;
+    }
+
+    /** Get the number of probes an update should be piggybacked on, enough for it to reach every member with high
+     * probability
+     * @return The number of disseminations */
+    private int disseminationCount() {
+        int log2 = 32 - Integer.numberOfLeadingZeros(members.size() + 1);
+        return DISSEMINATION_FACTOR * log2;
+    }
+
+    /** Tells the SessionManager about servers declared dead, so they can be removed from the ServerRegistry
+     * @param ids The ids of the dead servers */
+    private void failServers(ArrayList<String> ids) {
+        for (String id : ids) {
+            SessionManager.getInstance().serverFailed(id);
+        }
+    }
+
+    // ------------------------------ GETTERS ------------------------------
+
+    /** Checks if a server is believed to be alive. Servers the protocol has not yet heard of are assumed alive.
+     * @param id The server's id
+     * @return true unless the server is suspected or dead, false otherwise */
+    public boolean isAlive(String id) {
+        SwimMember member = members.get(id);
+        return member == null || member.getState().equals(SwimMember.ALIVE);
+    }
+
+    /** Get the smoothed round trip time of probes to a server
+     * @param id The server's id
+     * @return The round trip time in milliseconds, or -1 if it has never been measured */
+    public long getRtt(String id) {
+        SwimMember member = members.get(id);
+        return (member == null ? -1 : member.getRtt());
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("{incarnation: " + incarnation + ", members: ");
+        members.forEach((id, member) -> str.append(member.toString()).append(",\n"));
+        return str.append("}").toString();
+    }
+}
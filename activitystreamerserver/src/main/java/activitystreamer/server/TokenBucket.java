@@ -0,0 +1,48 @@
+package activitystreamer.server;
+
+/** A token bucket: tokens are added at a steady rate up to a maximum, and each message admitted takes one. A sender
+ * may therefore burst up to the bucket's capacity, but over time cannot send faster than the refill rate. */
+public class TokenBucket {
+
+    private double rate;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /** Creates a full bucket
+     * @param rate The number of tokens added per second
+     * @param capacity The most tokens the bucket can hold */
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /** Takes a token, as long as one will be available within a given time. The bucket may go into debt if it is
+     * empty, which reserves the token for the caller to use once the wait is over and delays the tokens that follow.
+     * Checking and taking are one step, so callers sharing the bucket cannot take the same token.
+     * @param maxDelay The longest the caller is prepared to wait, in milliseconds
+     * @return The wait in milliseconds before the token may be used, 0 if now, or -1 if no token was taken */
+    public synchronized long tryTake(long maxDelay) {
+        refill();
+        long wait = (tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate * 1000));
+        if (wait > maxDelay) {
+            return -1;
+        }
+        tokens -= 1;
+        return wait;
+    }
+
+    /** Returns a token taken for a message that was not admitted after all */
+    public synchronized void giveBack() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    /** Adds the tokens due since the last refill */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,150 @@
+package activitystreamer.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import activitystreamer.util.Settings;
+
+/**
+ * Keeps the server tree shallow. Repairs after failures attach servers wherever there is room, which over time leaves
+ * long chains that activities have to be relayed along. Every so often this thread looks, using the tree positions
+ * carried in SERVER_ANNOUNCE messages, for a server with room for another child that is nearer the root than our
+ * parent, and moves this server (with its whole subtree) under it. Among equally shallow servers the one with the
+ * lowest round trip time, as measured by the membership protocol, is chosen.
+ *
+ * Servers only move when the number of children is capped (-mc), as otherwise every server would move under the root.
+ *
+ * Moves are make-before-break: the old parent is only let go once the new parent has accepted us, so the network is
+ * never partitioned by a move. A server in our own subtree is never chosen, so a move cannot create a cycle.
+ */
+public class TreeOptimizer extends Thread {
+    private static final Logger log = LogManager.getLogger();
+
+    private ServerRegistry serverRegistry;
+    private SwimMembership membership;
+    private Random random;
+    private boolean term = false;
+
+    public TreeOptimizer(ServerRegistry serverRegistry, SwimMembership membership) {
+        this.serverRegistry = serverRegistry;
+        this.membership = membership;
+        this.random = new Random();
+        setDaemon(true);
+        start();
+    }
+
+    /** Looks for a shallower position once every optimisation interval. The interval is jittered, so servers that
+     * started together do not all move at once. */
+    @Override
+    public void run() {
+        log.info("using tree optimisation interval of " + Settings.getTreeOptimizeInterval() + " milliseconds");
+        while (!term) {
+            int interval = Settings.getTreeOptimizeInterval();
+            try {
+                Thread.sleep(interval / 2 + random.nextInt(Math.max(1, interval)));
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping tree optimisation");
+                break;
+            }
+            SessionManager sessionManager = SessionManager.getInstance();
+            if (SessionManager.isReconnecting() || sessionManager.isReparenting()) {
+                continue;
+            }
+            ConnectedServer newParent = findShallowerParent();
+            if (newParent != null) {
+                moveTo(sessionManager, newParent);
+            }
+        }
+    }
+
+    /** Finds the best server to move under, if there is one nearer the root than our parent
+     * @return The server to become our new parent, or null if we should stay where we are */
+    private ConnectedServer findShallowerParent() {
+        if (Settings.getMaxChildren() == Integer.MAX_VALUE) {
+            // Without a cap on children every server would end up under the root, so the tree keeps its shape
+            return null;
+        }
+        ArrayList<String> ancestors = serverRegistry.getAncestors();
+        if (ancestors == null || ancestors.size() < 2) {
+            // Our position is not known yet, or we are already as near the root as we can be
+            return null;
+        }
+        String ownId = SessionManager.getServerId();
+        ConnectedServer parent = serverRegistry.getParentInfo();
+        int depth = ancestors.size();
+
+        ConnectedServer best = null;
+        for (ConnectedServer server : serverRegistry.getAllServers()) {
+            ArrayList<String> serverAncestors = server.getAncestors();
+            if (serverAncestors == null || server.getId().equals(ownId) || server.equals(parent) ||
+                    server.isChild() || serverAncestors.contains(ownId)) {
+                // Position unknown, or the server is in our own subtree
+                continue;
+            }
+            if (serverAncestors.size() + 1 >= depth || server.getChildCount() >= Settings.getMaxChildren() ||
+                    server.isTimedOut() || !membership.isAlive(server.getId())) {
+                continue;
+            }
+            if (best == null || isBetter(server, best)) {
+                best = server;
+            }
+        }
+        return best;
+    }
+
+    /** Compares two candidate parents: the one nearer the root is better, then the one with the lower round trip time
+     * @param candidate The candidate to compare
+     * @param best The best candidate so far
+     * @return true if the candidate is better than the best so far, false otherwise */
+    private boolean isBetter(ConnectedServer candidate, ConnectedServer best) {
+        int candidateDepth = candidate.getAncestors().size();
+        int bestDepth = best.getAncestors().size();
+        if (candidateDepth != bestDepth) {
+            return candidateDepth < bestDepth;
+        }
+        long candidateRtt = membership.getRtt(candidate.getId());
+        long bestRtt = membership.getRtt(best.getId());
+        return candidateRtt >= 0 && (bestRtt < 0 || candidateRtt < bestRtt);
+    }
+
+    /** Connects to the new parent and asks it to accept us as a child. The old parent is let go once the new parent
+     * answers with AUTHENTICATION_SUCCESS.
+     * @param sessionManager The server's SessionManager
+     * @param newParent The server to move under */
+    private void moveTo(SessionManager sessionManager, ConnectedServer newParent) {
+        log.info("moving from depth " + serverRegistry.getAncestors().size() + " to depth " +
+                 (newParent.getAncestors().size() + 1) + " under " + newParent.getHostname() + ":" +
+                 newParent.getPort());
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(newParent.getHostname(), newParent.getPort()),
+                           Settings.getConnectTimeout());
+            sessionManager.reparent(socket);
+        }
+        catch (IOException e) {
+            log.error("failed to make connection to " + newParent.getHostname() + ":" + newParent.getPort() + " :" + e);
+            try {
+                socket.close();
+            }
+            catch (IOException e1) {
+                // Nothing more to do, the connection was never made
+            }
+        }
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
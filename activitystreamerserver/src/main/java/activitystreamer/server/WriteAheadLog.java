@@ -0,0 +1,361 @@
+package activitystreamer.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import activitystreamer.util.Settings;
+
+/**
+ * An append-only log of the changes made to the ClientRegistry, one JSON entry per line, so the registry can be rebuilt
+ * after a restart instead of being pulled from the network. Entries are written to a buffer as they are appended and
+ * made durable in groups: one fsync covers every entry appended since the last one, whether it is done by this thread
+ * each sync interval or by an appender that must wait for its own entry under the ALWAYS policy. Entries are appended
+ * under the processing lock, so under ALWAYS a connection thread defers its wait until it has released the lock;
+ * threads that finished processing at about the same time then share one fsync, and the lock is never held for it.
+ *
+ * The log is rotated when a registry snapshot is taken. Each log starts with a BEGIN entry giving its generation, so
+ * that on recovery the logs already covered by the snapshot can be told apart from those written since.
+ */
+public class WriteAheadLog extends Thread {
+    private static final Logger log = LogManager.getLogger();
+
+    /** When appended entries are forced to disk */
+    public enum SyncPolicy {
+        ALWAYS,   // before the appender's reply is sent, sharing the fsync with any appenders waiting at the same time
+        INTERVAL, // every sync interval, so a crash loses at most that much
+        NEVER     // never forced; written to the operating system every sync interval
+    }
+
+    private boolean term = false;
+    private String path;
+    private SyncPolicy policy;
+    private long generation;     // counts rotations; the BEGIN entry of the current file gives it
+    private FileOutputStream out;
+    private Writer writer;
+    private long appended;       // entries appended so far
+    private long rotatedAt;      // entries appended when the log was last rotated
+    private long durable;        // entries known to be on disk (or handed to the OS under NEVER)
+    private boolean failed;      // a write failed; the log no longer covers the registry and is not written to
+    private final Object syncLock = new Object();
+    private final ThreadLocal<Long> deferred = new ThreadLocal<Long>(); // last entry a deferring thread must wait for
+
+    /** Opens a log for appending, creating it if it does not exist
+     * @param path The file the log is kept in
+     * @param policy When appended entries are forced to disk
+     * @param generation The generation to start the file with, if it is new
+     * @throws IOException If the file cannot be opened */
+    public WriteAheadLog(String path, SyncPolicy policy, long generation) throws IOException {
+        this.path = path;
+        this.policy = policy;
+        this.generation = generation;
+        openFile(false);
+        this.appended = 0;
+        this.durable = 0;
+        this.failed = false;
+        setDaemon(true);
+        start();
+    }
+
+    /** Opens the log file for appending, and starts it with a BEGIN entry if it is empty
+     * @param truncate true to start the file afresh, false to append to it
+     * @throws IOException If the file cannot be opened or written */
+    private void openFile(boolean truncate) throws IOException {
+        this.out = new FileOutputStream(path, !truncate);
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (out.getChannel().size() == 0) {
+            JSONObject begin = new JSONObject();
+            begin.put("op", "BEGIN");
+            begin.put("generation", generation);
+            writer.write(begin.toJSONString());
+            writer.write('\n');
+            writer.flush();
+            out.getChannel().force(false);
+        }
+    }
+
+    /** Reads the generation of a log from its BEGIN entry
+     * @param path The file the log is kept in
+     * @return The generation, 0 for a log without a BEGIN entry, or -1 if there is no log
+     * @throws IOException If the file cannot be read */
+    public static long readGeneration(String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+            return -1;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String first = reader.readLine();
+            JSONObject entry = (first == null ? null : (JSONObject) new JSONParser().parse(first));
+            if (entry != null && "BEGIN".equals(entry.get("op"))) {
+                return ((Number) entry.get("generation")).longValue();
+            }
+        }
+        catch (ParseException | ClassCastException e) {
+            // An unreadable first line is dealt with when the log is read
+        }
+        return 0;
+    }
+
+    /** Reads the entries of a log, in the order they were appended. A last line cut short by a crash, or anything after
+     * a line that cannot be read, is cut off the file so that new entries follow the last good one.
+     * @param path The file the log is kept in
+     * @return The entries of the log, empty if the file does not exist
+     * @throws IOException If the file cannot be read */
+    public static ArrayList<JSONObject> read(String path) throws IOException {
+        ArrayList<JSONObject> entries = new ArrayList<JSONObject>();
+        File file = new File(path);
+        if (!file.exists()) {
+            return entries;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        JSONParser parser = new JSONParser();
+        int start = 0;
+        int good = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+            try {
+                JSONObject entry = (JSONObject) parser.parse(line);
+                if (!"BEGIN".equals(entry.get("op"))) {
+                    entries.add(entry);
+                }
+            }
+            catch (ParseException | ClassCastException e) {
+                log.warn("write-ahead log " + path + " has an unreadable entry at byte " + start + ", ignoring the rest");
+                break;
+            }
+            start = i + 1;
+            good = start;
+        }
+        if (good < bytes.length) {
+            log.warn("cutting " + (bytes.length - good) + " bytes of incomplete entries off write-ahead log " + path);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        }
+        return entries;
+    }
+
+    /** Appends an entry to the log. Under the ALWAYS policy this returns once the entry is on disk, unless the thread
+     * is deferring its syncs, in which case the entry is on disk once it calls awaitDeferred.
+     * @param entry The entry to append */
+    public void append(JSONObject entry) {
+        append(entry, null, null);
+    }
+
+    /** Appends an entry to the log with one more field, which is converted straight into the log rather than being
+     * built in memory first, e.g. a whole record with its pending messages. Otherwise as append(entry).
+     * @param entry The entry to append, which must have at least one field of its own
+     * @param field The name of the field to add, or null for none
+     * @param value The value of the field, converted with Gson */
+    public void append(JSONObject entry, String field, Object value) {
+        long seq;
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            try {
+                String json = entry.toJSONString();
+                if (field == null) {
+                    writer.write(json);
+                }
+                else {
+                    writer.write(json, 0, json.length() - 1);
+                    writer.write(",\"" + JSONObject.escape(field) + "\":");
+                    MessageProcessor.getGson().toJson(value, writer);
+                    writer.write('}');
+                }
+                writer.write('\n');
+            }
+            catch (IOException e) {
+                fail(e);
+                return;
+            }
+            catch (RuntimeException e) {
+                // Part of the entry may already be written, so nothing more can safely follow it
+                fail(new IOException(e));
+                return;
+            }
+            seq = ++appended;
+        }
+        if (policy == SyncPolicy.ALWAYS) {
+            if (deferred.get() != null) {
+                deferred.set(seq);
+            }
+            else {
+                sync(seq);
+            }
+        }
+    }
+
+    /** Check if appenders wait for their entries to be on disk, and so may defer that wait
+     * @return true under the ALWAYS policy, false otherwise */
+    public boolean isSynchronous() {
+        return policy == SyncPolicy.ALWAYS;
+    }
+
+    /** Lets the current thread's appends return before their entries are on disk, until it calls awaitDeferred. Used
+     * while the processing lock is held, so the wait can be done once the lock is released. */
+    public void deferSyncs() {
+        deferred.set(0L);
+    }
+
+    /** Waits until every entry the current thread appended since deferSyncs is on disk, and stops deferring */
+    public void awaitDeferred() {
+        Long upTo = deferred.get();
+        deferred.remove();
+        if (upTo != null && upTo > 0) {
+            sync(upTo);
+        }
+    }
+
+    /** Makes the log durable up to a given entry. If another thread's fsync already covered it this returns at once;
+     * otherwise one fsync is done for every entry appended so far.
+     * @param upTo The number of the entry that must be durable */
+    private void sync(long upTo) {
+        synchronized (syncLock) {
+            if (durable >= upTo) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                if (failed) {
+                    return;
+                }
+                try {
+                    writer.flush();
+                }
+                catch (IOException e) {
+                    fail(e);
+                    return;
+                }
+                target = appended;
+            }
+            try {
+                if (policy != SyncPolicy.NEVER) {
+                    out.getChannel().force(false);
+                }
+                durable = target;
+            }
+            catch (IOException e) {
+                synchronized (this) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    /** Starts a new generation of the log, for a snapshot about to be taken. Everything logged so far is moved to the
+     * archive file, to be deleted once the snapshot is on disk. If the archive is still there because the last snapshot
+     * failed, the entries are added to the end of it instead, so nothing the snapshot may lack is lost.
+     * @param archivePath The file to move the logged entries to
+     * @return The new generation, which the snapshot should be marked with
+     * @throws IOException If the log cannot be rotated */
+    public long rotate(String archivePath) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (failed) {
+                    throw new IOException("write-ahead log has failed");
+                }
+                writer.flush();
+                out.getChannel().force(false);
+                writer.close();
+                File live = new File(path);
+                File archive = new File(archivePath);
+                if (archive.exists()) {
+                    byte[] bytes = Files.readAllBytes(live.toPath());
+                    // Leave out the live file's BEGIN line; the archive keeps its own, older, generation
+                    int skip = 0;
+                    while (skip < bytes.length && bytes[skip++] != '\n') {
+                        // skip to the end of the first line
+                    }
+                    try (FileOutputStream archiveOut = new FileOutputStream(archive, true)) {
+                        archiveOut.write(bytes, skip, bytes.length - skip);
+                        archiveOut.getChannel().force(false);
+                    }
+                }
+                else {
+                    Files.move(live.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                generation++;
+                openFile(true);
+                durable = appended;
+                rotatedAt = appended;
+                return generation;
+            }
+        }
+    }
+
+    /** Counts everything logged so far as part of the last rotation, e.g. entries carried over into the new generation,
+     * so they do not make the next snapshot look necessary */
+    public synchronized void markRotated() {
+        rotatedAt = appended;
+    }
+
+    /** Check if anything has been logged since the log was opened or last rotated
+     * @return true if entries have been appended since */
+    public synchronized boolean hasEntriesSinceRotation() {
+        return appended > rotatedAt;
+    }
+
+    /** Stops writing after a failed write. The registry carries on in memory and is pulled from the network as usual
+     * after a restart.
+     * @param e The cause of the failure */
+    private void fail(IOException e) {
+        failed = true;
+        log.error("write-ahead log write failed, no longer logging registry changes: " + e);
+    }
+
+    /** Commits the entries appended during each sync interval as one group. */
+    @Override
+    public void run() {
+        log.info("using write-ahead log sync policy " + policy + ", every " + Settings.getWalSyncInterval() +
+                 " milliseconds");
+        while (!term) {
+            try {
+                Thread.sleep(Math.max(1, Settings.getWalSyncInterval()));
+            }
+            catch (InterruptedException e) {
+                log.info("received an interrupt, stopping write-ahead log syncing");
+                break;
+            }
+            syncAll();
+        }
+        syncAll();
+    }
+
+    /** Makes every entry appended so far durable */
+    public void syncAll() {
+        long upTo;
+        synchronized (this) {
+            upTo = appended;
+        }
+        sync(upTo);
+    }
+
+    /**
+     * Sets term, which indicates if the server is running or not
+     * @param term Server status
+     */
+    public void setTerm(boolean term) {
+        this.term = term;
+        if (term) interrupt();
+    }
+}
@@ -17,6 +17,46 @@ public class Settings {
     private static int activityInterval = 5000; // milliseconds
     private static String secret = null;
     private static String username = "anonymous";
+    private static int activityBatchSize = 50; // activities per ACTIVITY_BATCH frame
+    private static int activityBatchBytes = 65536; // characters per ACTIVITY_BATCH frame
+    private static int activityBatchDelay = 20; // milliseconds an activity may wait for others to join its batch
+    private static int swimProbeInterval = 1000; // milliseconds between membership probes
+    private static int swimAckTimeout = 300; // milliseconds to wait for a direct probe to be answered
+    private static int swimIndirectProbes = 3; // members asked to probe a server that did not answer
+    private static int swimSuspectTimeout = 5000; // milliseconds a suspected server has to refute the suspicion
+    private static double phiThreshold = 8.0; // suspicion level beyond which a server is treated as failed
+    private static int phiWindowSize = 100; // announce inter-arrival times remembered per server
+    private static int phiMinStdDev = 200; // milliseconds, lower bound on the spread of inter-arrival times
+    private static int phiAcceptablePause = 0; // milliseconds an announce may be late before suspicion starts growing
+    private static int seenCacheSize = 10000; // flooded server messages remembered for dropping duplicates
+    private static int maxChildren = Integer.MAX_VALUE; // children accepted before joiners are redirected, no cap unless -mc
+    private static int treeOptimizeInterval = 30000; // milliseconds between looks for a shallower tree position
+    private static int connectTimeout = 500; // milliseconds a connection attempt to another server may take
+    private static int connectStagger = 50; // milliseconds between starting parallel connection attempts
+    private static boolean standbyEnabled = false; // keep a warm standby connection to our grandparent
+    private static int standbyPingInterval = 1000; // milliseconds between pings on the standby connection
+    private static int reconnectJitter = 200; // milliseconds, upper bound on the random wait before reconnecting
+    private static int reconnectBackoffBase = 250; // milliseconds to leave a server after the first failed attempt
+    private static int reconnectBackoffMax = 10000; // milliseconds, upper bound on the wait after repeated failures
+    private static int reconnectAttempts = 3; // rounds of connection attempts before giving up on repairing the tree
+    private static int maxConcurrentJoins = 1; // joining servers let through to the processing lock at a time
+    private static int rebalanceInterval = 5000; // milliseconds between checks for clients to move to other servers
+    private static int rebalanceBatch = 2; // clients moved to other servers per rebalance, at most
+    private static int rebalanceCooldown = 30000; // milliseconds a client must be connected before it may be moved
+    private static double throttleRate = 10; // activity messages per second allowed on a client connection
+    private static int throttleBurst = 20; // activity messages a client connection may send at once
+    private static double userThrottleRate = 20; // activity messages per second allowed per user, over all connections
+    private static int userThrottleBurst = 40; // activity messages a user may send at once
+    private static int throttleMaxDelay = 500; // milliseconds an over-limit message may be held back before dropping
+    private static int registerTimeout = 1000; // milliseconds to wait for a username's owner to answer a registration
+    private static int anonSyncDelay = 100; // milliseconds to gather out-of-step servers into one anonymous sync round
+    private static String walFile = null; // file to log client registry changes to, or null to keep them in memory only
+    private static String walSyncPolicy = "INTERVAL"; // when logged changes are forced to disk: ALWAYS, INTERVAL or NEVER
+    private static int walSyncInterval = 50; // milliseconds between group commits of the write-ahead log
+    private static int snapshotInterval = 60000; // milliseconds between registry snapshots, 0 for none
+    private static String spoolDir = null; // directory to spool pending messages to, or null to hold them in memory
+    private static long spoolMemoryLimit = 16777216; // bytes of pending messages held in memory before spooling
+    private static int spoolSegmentBytes = 4194304; // bytes per spool segment file
 
 
     /*
@@ -65,6 +105,370 @@ public class Settings {
         Settings.activityInterval = activityInterval;
     }
 
+    public static int getActivityBatchSize() {
+        return activityBatchSize;
+    }
+
+    public static void setActivityBatchSize(int activityBatchSize) {
+        Settings.activityBatchSize = activityBatchSize;
+    }
+
+    public static int getActivityBatchBytes() {
+        return activityBatchBytes;
+    }
+
+    public static void setActivityBatchBytes(int activityBatchBytes) {
+        Settings.activityBatchBytes = activityBatchBytes;
+    }
+
+    public static int getActivityBatchDelay() {
+        return activityBatchDelay;
+    }
+
+    public static void setActivityBatchDelay(int activityBatchDelay) {
+        if (activityBatchDelay < 0) {
+            log.error("supplied batch delay " + activityBatchDelay + " is negative, using " + getActivityBatchDelay());
+        }
+        else {
+            Settings.activityBatchDelay = activityBatchDelay;
+        }
+    }
+
+    public static int getSwimProbeInterval() {
+        return swimProbeInterval;
+    }
+
+    public static void setSwimProbeInterval(int swimProbeInterval) {
+        Settings.swimProbeInterval = swimProbeInterval;
+    }
+
+    public static int getSwimAckTimeout() {
+        return swimAckTimeout;
+    }
+
+    public static void setSwimAckTimeout(int swimAckTimeout) {
+        Settings.swimAckTimeout = swimAckTimeout;
+    }
+
+    public static int getSwimIndirectProbes() {
+        return swimIndirectProbes;
+    }
+
+    public static void setSwimIndirectProbes(int swimIndirectProbes) {
+        Settings.swimIndirectProbes = swimIndirectProbes;
+    }
+
+    public static int getSwimSuspectTimeout() {
+        return swimSuspectTimeout;
+    }
+
+    public static void setSwimSuspectTimeout(int swimSuspectTimeout) {
+        Settings.swimSuspectTimeout = swimSuspectTimeout;
+    }
+
+    public static double getPhiThreshold() {
+        return phiThreshold;
+    }
+
+    public static void setPhiThreshold(double phiThreshold) {
+        if (phiThreshold <= 0) {
+            log.error("supplied suspicion threshold " + phiThreshold + " is not positive, using " + getPhiThreshold());
+        }
+        else {
+            Settings.phiThreshold = phiThreshold;
+        }
+    }
+
+    public static int getPhiWindowSize() {
+        return phiWindowSize;
+    }
+
+    public static void setPhiWindowSize(int phiWindowSize) {
+        Settings.phiWindowSize = phiWindowSize;
+    }
+
+    public static int getPhiMinStdDev() {
+        return phiMinStdDev;
+    }
+
+    public static void setPhiMinStdDev(int phiMinStdDev) {
+        Settings.phiMinStdDev = phiMinStdDev;
+    }
+
+    public static int getPhiAcceptablePause() {
+        return phiAcceptablePause;
+    }
+
+    public static void setPhiAcceptablePause(int phiAcceptablePause) {
+        Settings.phiAcceptablePause = phiAcceptablePause;
+    }
+
+    public static int getSeenCacheSize() {
+        return seenCacheSize;
+    }
+
+    public static void setSeenCacheSize(int seenCacheSize) {
+        Settings.seenCacheSize = seenCacheSize;
+    }
+
+    public static int getMaxChildren() {
+        return maxChildren;
+    }
+
+    public static void setMaxChildren(int maxChildren) {
+        if (maxChildren < 1) {
+            log.error("supplied maximum children " + maxChildren + " is less than 1, using " + getMaxChildren());
+        }
+        else {
+            Settings.maxChildren = maxChildren;
+        }
+    }
+
+    public static int getTreeOptimizeInterval() {
+        return treeOptimizeInterval;
+    }
+
+    public static void setTreeOptimizeInterval(int treeOptimizeInterval) {
+        if (treeOptimizeInterval < 1) {
+            log.error("supplied tree optimisation interval " + treeOptimizeInterval + " is not positive, using " +
+                      getTreeOptimizeInterval());
+        }
+        else {
+            Settings.treeOptimizeInterval = treeOptimizeInterval;
+        }
+    }
+
+    public static int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public static void setConnectTimeout(int connectTimeout) {
+        Settings.connectTimeout = connectTimeout;
+    }
+
+    public static int getConnectStagger() {
+        return connectStagger;
+    }
+
+    public static void setConnectStagger(int connectStagger) {
+        Settings.connectStagger = connectStagger;
+    }
+
+    public static boolean isStandbyEnabled() {
+        return standbyEnabled;
+    }
+
+    public static void setStandbyEnabled(boolean standbyEnabled) {
+        Settings.standbyEnabled = standbyEnabled;
+    }
+
+    public static int getStandbyPingInterval() {
+        return standbyPingInterval;
+    }
+
+    public static void setStandbyPingInterval(int standbyPingInterval) {
+        Settings.standbyPingInterval = standbyPingInterval;
+    }
+
+    public static int getReconnectJitter() {
+        return reconnectJitter;
+    }
+
+    public static void setReconnectJitter(int reconnectJitter) {
+        Settings.reconnectJitter = reconnectJitter;
+    }
+
+    public static int getReconnectBackoffBase() {
+        return reconnectBackoffBase;
+    }
+
+    public static void setReconnectBackoffBase(int reconnectBackoffBase) {
+        Settings.reconnectBackoffBase = reconnectBackoffBase;
+    }
+
+    public static int getReconnectBackoffMax() {
+        return reconnectBackoffMax;
+    }
+
+    public static void setReconnectBackoffMax(int reconnectBackoffMax) {
+        Settings.reconnectBackoffMax = reconnectBackoffMax;
+    }
+
+    public static int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    public static void setReconnectAttempts(int reconnectAttempts) {
+        Settings.reconnectAttempts = reconnectAttempts;
+    }
+
+    public static int getMaxConcurrentJoins() {
+        return maxConcurrentJoins;
+    }
+
+    public static void setMaxConcurrentJoins(int maxConcurrentJoins) {
+        if (maxConcurrentJoins < 1) {
+            log.error("supplied maximum concurrent joins " + maxConcurrentJoins + " is less than 1, using " +
+                      getMaxConcurrentJoins());
+        }
+        else {
+            Settings.maxConcurrentJoins = maxConcurrentJoins;
+        }
+    }
+
+    public static int getRebalanceInterval() {
+        return rebalanceInterval;
+    }
+
+    public static void setRebalanceInterval(int rebalanceInterval) {
+        if (rebalanceInterval < 1) {
+            log.error("supplied rebalance interval " + rebalanceInterval + " is not positive, using " +
+                      getRebalanceInterval());
+        }
+        else {
+            Settings.rebalanceInterval = rebalanceInterval;
+        }
+    }
+
+    public static int getRebalanceBatch() {
+        return rebalanceBatch;
+    }
+
+    public static void setRebalanceBatch(int rebalanceBatch) {
+        Settings.rebalanceBatch = rebalanceBatch;
+    }
+
+    public static int getRebalanceCooldown() {
+        return rebalanceCooldown;
+    }
+
+    public static void setRebalanceCooldown(int rebalanceCooldown) {
+        Settings.rebalanceCooldown = rebalanceCooldown;
+    }
+
+    public static double getThrottleRate() {
+        return throttleRate;
+    }
+
+    public static void setThrottleRate(double throttleRate) {
+        if (throttleRate <= 0) {
+            log.error("supplied throttle rate " + throttleRate + " is not positive, using " + getThrottleRate());
+        }
+        else {
+            Settings.throttleRate = throttleRate;
+        }
+    }
+
+    public static int getThrottleBurst() {
+        return throttleBurst;
+    }
+
+    public static void setThrottleBurst(int throttleBurst) {
+        Settings.throttleBurst = throttleBurst;
+    }
+
+    public static double getUserThrottleRate() {
+        return userThrottleRate;
+    }
+
+    public static void setUserThrottleRate(double userThrottleRate) {
+        if (userThrottleRate <= 0) {
+            log.error("supplied user throttle rate " + userThrottleRate + " is not positive, using " +
+                      getUserThrottleRate());
+        }
+        else {
+            Settings.userThrottleRate = userThrottleRate;
+        }
+    }
+
+    public static int getUserThrottleBurst() {
+        return userThrottleBurst;
+    }
+
+    public static void setUserThrottleBurst(int userThrottleBurst) {
+        Settings.userThrottleBurst = userThrottleBurst;
+    }
+
+    public static int getThrottleMaxDelay() {
+        return throttleMaxDelay;
+    }
+
+    public static void setThrottleMaxDelay(int throttleMaxDelay) {
+        Settings.throttleMaxDelay = throttleMaxDelay;
+    }
+
+    public static int getRegisterTimeout() {
+        return registerTimeout;
+    }
+
+    public static void setRegisterTimeout(int registerTimeout) {
+        Settings.registerTimeout = registerTimeout;
+    }
+
+    public static int getAnonSyncDelay() {
+        return anonSyncDelay;
+    }
+
+    public static void setAnonSyncDelay(int anonSyncDelay) {
+        Settings.anonSyncDelay = anonSyncDelay;
+    }
+
+    public static String getWalFile() {
+        return walFile;
+    }
+
+    public static void setWalFile(String walFile) {
+        Settings.walFile = walFile;
+    }
+
+    public static String getWalSyncPolicy() {
+        return walSyncPolicy;
+    }
+
+    public static void setWalSyncPolicy(String walSyncPolicy) {
+        Settings.walSyncPolicy = walSyncPolicy;
+    }
+
+    public static int getWalSyncInterval() {
+        return walSyncInterval;
+    }
+
+    public static void setWalSyncInterval(int walSyncInterval) {
+        Settings.walSyncInterval = walSyncInterval;
+    }
+
+    public static int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public static void setSnapshotInterval(int snapshotInterval) {
+        Settings.snapshotInterval = snapshotInterval;
+    }
+
+    public static String getSpoolDir() {
+        return spoolDir;
+    }
+
+    public static void setSpoolDir(String spoolDir) {
+        Settings.spoolDir = spoolDir;
+    }
+
+    public static long getSpoolMemoryLimit() {
+        return spoolMemoryLimit;
+    }
+
+    public static void setSpoolMemoryLimit(long spoolMemoryLimit) {
+        Settings.spoolMemoryLimit = spoolMemoryLimit;
+    }
+
+    public static int getSpoolSegmentBytes() {
+        return spoolSegmentBytes;
+    }
+
+    public static void setSpoolSegmentBytes(int spoolSegmentBytes) {
+        Settings.spoolSegmentBytes = spoolSegmentBytes;
+    }
+
     public static String getSecret() {
         return secret;
     }
@@ -0,0 +1,111 @@
+package activitystreamer.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import org.json.simple.JSONObject;
+
+/** Checks that the messages of a sender reach clients in token order */
+public class ClientRecordTest extends TestCase {
+
+    /** Creates a message from alice
+     * @param token The message's token
+     * @param recipients The users the message is addressed to
+     * @return The message */
+    private static Message message(int token, String... recipients) {
+        JSONObject activity = new JSONObject();
+        activity.put("n", token);
+        JSONObject msg = new JSONObject();
+        msg.put("command", "ACTIVITY_MESSAGE");
+        msg.put("activity", activity);
+        return new Message(token, msg, new ArrayList<String>(Arrays.asList(recipients)));
+    }
+
+    /** Creates a message from alice to bob
+     * @param token The message's token
+     * @return The message */
+    private static Message messageToBob(int token) {
+        return message(token, "bob");
+    }
+
+    /** Takes the messages a recipient would be sent, in the order they would be sent
+     * @param record The sender's record
+     * @param recipient The recipient
+     * @return The tokens of the messages */
+    private static ArrayList<Integer> deliverTo(ClientRecord record, String recipient) {
+        ArrayList<Integer> delivered = new ArrayList<Integer>();
+        Message next;
+        while ((next = record.getNextMessage(recipient)) != null) {
+            delivered.add(next.getToken());
+            if (next.receivedMessage(recipient)) {
+                record.deleteMessage(next.getToken());
+            }
+        }
+        return delivered;
+    }
+
+    public void testLaterTokenWaitsForEarlierOne() {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        alice.addMessage(messageToBob(2));
+        assertTrue(deliverTo(alice, "bob").isEmpty());
+
+        alice.addMessage(messageToBob(1));
+        assertEquals(Arrays.asList(1, 2), deliverTo(alice, "bob"));
+    }
+
+    public void testWaitingTokensAreDeliveredOnceTheGapFills() {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        alice.addMessage(messageToBob(3));
+        alice.addMessage(messageToBob(4));
+        assertTrue(deliverTo(alice, "bob").isEmpty());
+
+        alice.addMessage(messageToBob(2));
+        assertTrue(deliverTo(alice, "bob").isEmpty());
+        alice.addMessage(messageToBob(1));
+        assertEquals(Arrays.asList(1, 2, 3, 4), deliverTo(alice, "bob"));
+    }
+
+    public void testTokenAlreadyDeliveredIsNotDeliveredAgain() {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        alice.addMessage(messageToBob(1));
+        alice.addMessage(messageToBob(2));
+        assertEquals(Arrays.asList(1, 2), deliverTo(alice, "bob"));
+
+        // A stale copy of token 1 turns up by gossip
+        alice.addMessage(messageToBob(1));
+        assertTrue(deliverTo(alice, "bob").isEmpty());
+    }
+
+    public void testRoutedAwayTokenIsDeliveredToRecipientThatMovedHere() {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        // Token 1 went down another link, where bob was; bob then moved here and token 2 is the first sent on this link
+        alice.skipUnroutedTokens(0, 2);
+        alice.addMessage(messageToBob(2));
+        assertEquals(Arrays.asList(2), deliverTo(alice, "bob"));
+
+        // Token 1 turns up late, after token 2 was delivered, and bob never got it
+        alice.addMessage(messageToBob(1));
+        assertEquals(Arrays.asList(1), deliverTo(alice, "bob"));
+
+        // Once delivered, a further copy is ignored
+        alice.addMessage(messageToBob(1));
+        alice.addMessage(messageToBob(3));
+        assertEquals(Arrays.asList(3), deliverTo(alice, "bob"));
+    }
+
+    public void testRecipientsOnDifferentLinksEachGetEveryMessage() {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        // Token 1 is for bob, here, and carol, behind another link; token 2 is for carol only, so it is only sent
+        // down her link and token 3, for bob, skips past it
+        alice.addMessage(message(1, "bob", "carol"));
+        alice.skipUnroutedTokens(1, 3);
+        alice.addMessage(message(3, "bob"));
+        assertEquals(Arrays.asList(1, 3), deliverTo(alice, "bob"));
+
+        // Carol moves here before she is sent token 2, which then turns up by gossip
+        alice.addMessage(message(2, "carol"));
+        assertEquals(Arrays.asList(1, 2), deliverTo(alice, "carol"));
+        assertTrue(deliverTo(alice, "bob").isEmpty());
+    }
+}
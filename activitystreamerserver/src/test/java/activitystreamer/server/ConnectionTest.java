@@ -0,0 +1,175 @@
+package activitystreamer.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/** Checks that a joining server's AUTHENTICATE reaches its parent whole, however large its registry, and that large
+ * messages are only sent in fragments once both ends have accepted each other as servers */
+public class ConnectionTest extends TestCase {
+
+    /** A connection, and what it writes as read by the peer at the other end */
+    private static class Link {
+        private Connection con;
+        private BufferedReader peer;
+    }
+
+    private ServerSocket listener;
+    private ArrayList<Socket> peers;
+    private ArrayList<File> files;
+
+    @Override
+    protected void setUp() throws IOException {
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        peers = new ArrayList<Socket>();
+        files = new ArrayList<File>();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        // The peers are left open: a connection whose other end closes hands itself to the SessionManager
+        listener.close();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /** Opens a connection, as a server would, to a peer that never writes to it
+     * @return The connection, and a reader for what it writes to the peer */
+    private Link connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        Socket peer = listener.accept();
+        peer.setSoTimeout(5000);
+        peers.add(peer);
+        Link link = new Link();
+        link.peer = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8));
+        link.con = new Connection(socket);
+        return link;
+    }
+
+    /** Creates an AUTHENTICATE carrying a registry too large to send in one fragment
+     * @return The message */
+    private static String joinMsg() {
+        JSONObject msg = new JSONObject();
+        msg.put("command", "AUTHENTICATE");
+        msg.put("secret", "secret");
+        msg.put("id", "joining");
+        msg.put("hostname", "localhost");
+        msg.put("port", 3781);
+        JSONArray registry = new JSONArray();
+        for (int i = 0; i < 500; i++) {
+            JSONObject record = new JSONObject();
+            record.put("username", "user-" + i);
+            record.put("secret", "secret-" + i);
+            registry.add(record);
+        }
+        msg.put("registry", registry);
+        String json = msg.toJSONString();
+        assertTrue(json.length() > 8192);
+        return json;
+    }
+
+    /** Writes a message to a spool file, as sendWithRegistry does when pending messages are spooled
+     * @param msg The message
+     * @return The spooled message */
+    private SpooledMessage spool(String msg) throws IOException {
+        File file = File.createTempFile("msg", ".outgoing");
+        files.add(file);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(msg);
+        }
+        return new SpooledMessage(file, "AUTHENTICATE");
+    }
+
+    /** Reads the lines making up one message, up to and including its last fragment if it was fragmented
+     * @param reader The reader for what the connection wrote
+     * @return The lines */
+    private static ArrayList<String> readMessage(BufferedReader reader) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        String line;
+        do {
+            line = reader.readLine();
+            lines.add(line);
+        } while (line.startsWith("~+"));
+        return lines;
+    }
+
+    /** Checks that a line is the join message as a parent would parse it
+     * @param line The line */
+    private static void assertJoin(String line) throws ParseException {
+        JSONObject json = (JSONObject) new JSONParser().parse(line);
+        assertEquals("AUTHENTICATE", json.get("command"));
+        assertEquals(500, ((JSONArray) json.get("registry")).size());
+    }
+
+    public void testJoinIsSentWholeBeforeParentAccepts() throws IOException, ParseException {
+        Link joining = connect();
+        joining.con.expectServer();
+
+        joining.con.writeMsg(joinMsg());
+        ArrayList<String> lines = readMessage(joining.peer);
+        assertEquals(1, lines.size());
+        assertJoin(lines.get(0));
+    }
+
+    public void testSpooledJoinIsSentWholeBeforeParentAccepts() throws IOException, ParseException {
+        Link joining = connect();
+        joining.con.expectServer();
+
+        SpooledMessage spooled = spool(joinMsg());
+        joining.con.writeMsg(spooled);
+        spooled.release();
+        ArrayList<String> lines = readMessage(joining.peer);
+        assertEquals(1, lines.size());
+        assertJoin(lines.get(0));
+    }
+
+    public void testLargeMessagesAreFragmentedOnceAccepted() throws IOException, ParseException {
+        Link sender = connect();
+        sender.con.markServerLink();
+        Connection receiver = connect().con;
+        receiver.markServerLink();
+
+        String join = joinMsg();
+        sender.con.writeMsg(join);
+        SpooledMessage spooled = spool(join);
+        sender.con.writeMsg(spooled);
+        spooled.release();
+
+        // Once from a string, once copied from the spool
+        for (int i = 0; i < 2; i++) {
+            ArrayList<String> lines = readMessage(sender.peer);
+            assertTrue(lines.size() > 1);
+            String whole = null;
+            for (String line : lines) {
+                whole = receiver.reassemble(line);
+            }
+            assertEquals(join, whole);
+        }
+    }
+
+    public void testFragmentsAreOnlyReassembledFromServers() throws IOException {
+        Connection con = connect().con;
+        // Until a peer is known to be a server, a line is taken as it is
+        assertEquals("~+{\"command\":", con.reassemble("~+{\"command\":"));
+
+        con.expectServer();
+        assertNull(con.reassemble("~+{\"command\":"));
+        assertEquals("{\"command\":\"AUTHENTICATE\"}", con.reassemble("~.\"AUTHENTICATE\"}"));
+    }
+}
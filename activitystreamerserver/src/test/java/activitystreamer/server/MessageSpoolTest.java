@@ -0,0 +1,138 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import org.json.simple.JSONObject;
+
+import activitystreamer.util.Settings;
+
+/** Checks that spooled messages read back intact, and that spool segments are emptied, deleted or have their last
+ * messages moved out once enough of them has been delivered */
+public class MessageSpoolTest extends TestCase {
+
+    private File dir;
+    private long memoryLimit;
+    private int segmentBytes;
+
+    @Override
+    protected void setUp() throws IOException {
+        memoryLimit = Settings.getSpoolMemoryLimit();
+        segmentBytes = Settings.getSpoolSegmentBytes();
+        dir = Files.createTempDirectory("spool").toFile();
+        MessageSpool.open(dir.getPath());
+        // Nothing is held in memory, so every held message is spooled
+        Settings.setSpoolMemoryLimit(0);
+    }
+
+    @Override
+    protected void tearDown() {
+        Settings.setSpoolMemoryLimit(memoryLimit);
+        Settings.setSpoolSegmentBytes(segmentBytes);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /** Creates a message to bob and holds it, which spools it
+     * @param token The message's token, which is also its activity's number
+     * @return The message */
+    private static Message heldMessage(int token) {
+        JSONObject activity = new JSONObject();
+        activity.put("n", token);
+        JSONObject msg = new JSONObject();
+        msg.put("command", "ACTIVITY_MESSAGE");
+        msg.put("activity", activity);
+        Message message = new Message(token, msg, new ArrayList<String>(Arrays.asList("bob")));
+        message.hold();
+        return message;
+    }
+
+    /** Reads a message's activity number back, from the spool if it is there
+     * @param message The message
+     * @return The number */
+    private static int activityNumber(Message message) {
+        JSONObject activity = (JSONObject) message.getClientMessage().get("activity");
+        return ((Number) activity.get("n")).intValue();
+    }
+
+    /** Get a segment file of the spool
+     * @param id The id of the segment
+     * @return The file, which may not exist */
+    private File segment(int id) {
+        return new File(dir, String.format("%08d", id) + ".spool");
+    }
+
+    public void testHeldMessageIsReadBackFromSpool() {
+        Message message = heldMessage(1);
+        assertTrue(segment(0).length() > 0);
+        assertEquals(1, activityNumber(message));
+        assertEquals(Integer.valueOf(1), message.getToken());
+    }
+
+    public void testFreeEmptiesCurrentSegment() {
+        Message message = heldMessage(1);
+        message.release();
+        assertTrue(segment(0).exists());
+        assertEquals(0, segment(0).length());
+    }
+
+    public void testDeliveredSegmentIsDeleted() {
+        // Each message fills a segment of its own
+        Settings.setSpoolSegmentBytes(1);
+        Message first = heldMessage(1);
+        Message second = heldMessage(2);
+        assertTrue(segment(1).exists());
+
+        first.release();
+        assertFalse(segment(0).exists());
+        assertEquals(2, activityNumber(second));
+    }
+
+    public void testMostlyDeliveredSegmentIsRespooled() {
+        Message first = heldMessage(1);
+        long length = segment(0).length();
+        // Four messages fill the first segment, so the fifth starts the second
+        Settings.setSpoolSegmentBytes((int) (length * 4));
+        Message second = heldMessage(2);
+        Message third = heldMessage(3);
+        Message fourth = heldMessage(4);
+        Message fifth = heldMessage(5);
+        assertEquals(length, segment(1).length());
+
+        first.release();
+        second.release();
+        assertTrue(segment(0).exists());
+
+        // A quarter of the segment is left, which is moved to the current segment so the rest can go
+        third.release();
+        assertFalse(segment(0).exists());
+        assertEquals(length * 2, segment(1).length());
+        assertEquals(4, activityNumber(fourth));
+        assertEquals(5, activityNumber(fifth));
+    }
+
+    public void testPinnedSegmentIsDeletedOnceUnpinned() {
+        Settings.setSpoolSegmentBytes(1);
+        Message first = heldMessage(1);
+        Message second = heldMessage(2);
+
+        MessageSpool.getInstance().pin();
+        first.release();
+        // A snapshot being written may still read it
+        assertTrue(segment(0).exists());
+        assertEquals(1, activityNumber(first));
+
+        MessageSpool.getInstance().unpin();
+        assertFalse(segment(0).exists());
+        assertEquals(2, activityNumber(second));
+    }
+}
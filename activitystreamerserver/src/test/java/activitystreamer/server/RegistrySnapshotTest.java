@@ -0,0 +1,144 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+import org.json.simple.JSONObject;
+
+/** Checks that registry snapshots read back what was written, and that records changing while a snapshot is copied
+ * are rebuilt from the write-ahead log instead */
+public class RegistrySnapshotTest extends TestCase {
+
+    private static final String CONTEXT = "Context: RegistrySnapshotTest";
+
+    private File walFile;
+    private String snapshotPath;
+    private String rotatedPath;
+
+    @Override
+    protected void setUp() throws IOException {
+        walFile = File.createTempFile("wal", ".log");
+        snapshotPath = walFile.getPath() + RegistrySnapshot.SNAPSHOT_SUFFIX;
+        rotatedPath = walFile.getPath() + RegistrySnapshot.ROTATED_SUFFIX;
+    }
+
+    @Override
+    protected void tearDown() {
+        walFile.delete();
+        new File(snapshotPath).delete();
+        new File(snapshotPath + ".tmp").delete();
+        new File(rotatedPath).delete();
+    }
+
+    /** Creates a message to bob
+     * @param token The message's token
+     * @return The message */
+    private static Message messageToBob(int token) {
+        JSONObject activity = new JSONObject();
+        activity.put("n", token);
+        JSONObject msg = new JSONObject();
+        msg.put("command", "ACTIVITY_MESSAGE");
+        msg.put("activity", activity);
+        return new Message(token, msg, new ArrayList<String>(Arrays.asList("bob")));
+    }
+
+    /** Copies every record of a registry into the snapshot being taken
+     * @param registry The registry */
+    private static void copyAll(ClientRegistry registry) {
+        while (registry.copySnapshotShard(1)) {
+            // keep copying
+        }
+    }
+
+    public void testRecordsRoundTrip() throws IOException {
+        ClientRecord alice = new ClientRecord("alice", "a");
+        alice.addMessage(messageToBob(1));
+        ClientRecord carol = new ClientRecord("carol", "c");
+        carol.updateLoggedIn(2, CONTEXT);
+
+        RegistrySnapshot.Cut cut = new RegistrySnapshot.Cut(7, null);
+        cut.add(alice);
+        cut.add(carol);
+        RegistrySnapshot.write(snapshotPath, cut);
+
+        RegistrySnapshot snapshot = RegistrySnapshot.open(snapshotPath);
+        assertEquals(7, snapshot.getGeneration());
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "carol")), snapshot.getUsernames());
+
+        ClientRecord readAlice = snapshot.load("alice");
+        assertEquals("a", readAlice.getSecret());
+        assertFalse(readAlice.loggedIn());
+        assertEquals(Integer.valueOf(1), readAlice.getNextMessage("bob").getToken());
+        assertTrue(snapshot.load("carol").loggedIn());
+
+        // A decoded record is no longer held by the snapshot
+        assertNull(snapshot.load("alice"));
+        assertEquals(0, snapshot.size());
+    }
+
+    public void testMissingSnapshotOpensAsNull() throws IOException {
+        assertNull(RegistrySnapshot.open(snapshotPath));
+    }
+
+    public void testUndecodedRecordsAreCarriedOver() throws IOException {
+        RegistrySnapshot.Cut first = new RegistrySnapshot.Cut(1, null);
+        first.add(new ClientRecord("alice", "a"));
+        RegistrySnapshot.write(snapshotPath, first);
+
+        ClientRegistry registry = new ClientRegistry();
+        registry.loadSnapshot(RegistrySnapshot.open(snapshotPath));
+        registry.addFreshClient("bob", "b");
+        RegistrySnapshot.Cut second = registry.openCut(2);
+        copyAll(registry);
+        registry.closeCut();
+        RegistrySnapshot.write(snapshotPath, second);
+
+        RegistrySnapshot snapshot = RegistrySnapshot.open(snapshotPath);
+        assertEquals(2, snapshot.getGeneration());
+        assertEquals(new HashSet<String>(Arrays.asList("alice", "bob")), snapshot.getUsernames());
+        assertEquals("a", snapshot.load("alice").getSecret());
+    }
+
+    public void testRecordChangedDuringCutIsLoggedInstead() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(walFile.getPath(), WriteAheadLog.SyncPolicy.ALWAYS, 1);
+        try {
+            ClientRegistry registry = new ClientRegistry();
+            registry.setWriteAheadLog(wal);
+            registry.addFreshClient("alice", "a");
+            registry.addFreshClient("bob", "b");
+
+            RegistrySnapshot.Cut cut = registry.openCut(wal.rotate(rotatedPath));
+            // alice changes before she is copied, bob only after
+            registry.loginUser("alice", "a", CONTEXT, Integer.MIN_VALUE);
+            copyAll(registry);
+            registry.loginUser("bob", "b", CONTEXT, Integer.MIN_VALUE);
+            registry.closeCut();
+            RegistrySnapshot.write(snapshotPath, cut);
+        }
+        finally {
+            wal.setTerm(true);
+        }
+
+        RegistrySnapshot snapshot = RegistrySnapshot.open(snapshotPath);
+        assertEquals(2, snapshot.getGeneration());
+        assertEquals(new HashSet<String>(Arrays.asList("bob")), snapshot.getUsernames());
+
+        ArrayList<JSONObject> entries = WriteAheadLog.read(walFile.getPath());
+        ArrayList<String> logged = new ArrayList<String>();
+        for (JSONObject entry : entries) {
+            logged.add(entry.get("op") + " " + entry.get("username"));
+        }
+        assertEquals(Arrays.asList("LOGIN alice", "LOGIN bob", "RECORD alice"), logged);
+
+        // Recovery: the snapshot, then the log written since it
+        ClientRegistry recovered = new ClientRegistry();
+        recovered.loadSnapshot(snapshot);
+        recovered.replay(entries);
+        assertTrue(recovered.getClientRecord("alice").loggedIn());
+        assertTrue(recovered.getClientRecord("bob").loggedIn());
+    }
+}
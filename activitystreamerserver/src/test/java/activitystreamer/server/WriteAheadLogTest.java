@@ -0,0 +1,155 @@
+package activitystreamer.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import org.json.simple.JSONObject;
+
+/** Checks that the write-ahead log reads back what was appended, survives a torn tail and rotates cleanly */
+public class WriteAheadLogTest extends TestCase {
+
+    private File live;
+    private File archive;
+
+    @Override
+    protected void setUp() throws IOException {
+        live = File.createTempFile("wal", ".log");
+        archive = new File(live.getPath() + ".old");
+    }
+
+    @Override
+    protected void tearDown() {
+        live.delete();
+        archive.delete();
+    }
+
+    /** Creates a log entry
+     * @param n A number to tell the entry apart by
+     * @return The entry */
+    private static JSONObject entry(int n) {
+        JSONObject entry = new JSONObject();
+        entry.put("op", "PUT");
+        entry.put("n", n);
+        return entry;
+    }
+
+    /** Lists the numbers of a log's entries
+     * @param entries The entries read back
+     * @return The numbers, in order */
+    private static ArrayList<Integer> numbers(ArrayList<JSONObject> entries) {
+        ArrayList<Integer> numbers = new ArrayList<Integer>();
+        for (JSONObject entry : entries) {
+            numbers.add(((Number) entry.get("n")).intValue());
+        }
+        return numbers;
+    }
+
+    /** Opens a log on the live file, appends entries to it and stops it again
+     * @param generation The generation the log starts with
+     * @param from The number of the first entry
+     * @param to The number of the last entry
+     * @throws IOException If the log cannot be opened */
+    private void appendEntries(long generation, int from, int to) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(live.getPath(), WriteAheadLog.SyncPolicy.ALWAYS, generation);
+        try {
+            for (int n = from; n <= to; n++) {
+                wal.append(entry(n));
+            }
+        }
+        finally {
+            wal.setTerm(true);
+        }
+    }
+
+    /** Adds raw bytes to the end of the live file, as a crash part way through a write would leave them
+     * @param text The bytes to add
+     * @throws IOException If the file cannot be written */
+    private void appendRaw(String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(live, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public void testEntriesAreReadBackInOrderWithoutBegin() throws IOException {
+        appendEntries(3, 1, 3);
+        assertEquals(3, WriteAheadLog.readGeneration(live.getPath()));
+        assertEquals(Arrays.asList(1, 2, 3), numbers(WriteAheadLog.read(live.getPath())));
+    }
+
+    public void testTornLastLineIsCutOff() throws IOException {
+        appendEntries(1, 1, 2);
+        long good = live.length();
+        appendRaw("{\"op\":\"PUT\",\"n\":3");
+
+        assertEquals(Arrays.asList(1, 2), numbers(WriteAheadLog.read(live.getPath())));
+        assertEquals(good, live.length());
+
+        // New entries follow the last good one
+        appendEntries(1, 4, 4);
+        assertEquals(Arrays.asList(1, 2, 4), numbers(WriteAheadLog.read(live.getPath())));
+    }
+
+    public void testEverythingAfterUnreadableLineIsCutOff() throws IOException {
+        appendEntries(1, 1, 1);
+        long good = live.length();
+        appendRaw("not json\n{\"op\":\"PUT\",\"n\":2}\n");
+
+        assertEquals(Arrays.asList(1), numbers(WriteAheadLog.read(live.getPath())));
+        assertEquals(good, live.length());
+    }
+
+    public void testMissingLogReadsAsEmpty() throws IOException {
+        live.delete();
+        assertEquals(-1, WriteAheadLog.readGeneration(live.getPath()));
+        assertTrue(WriteAheadLog.read(live.getPath()).isEmpty());
+    }
+
+    public void testRotateMovesEntriesToArchiveAndStartsNextGeneration() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(live.getPath(), WriteAheadLog.SyncPolicy.ALWAYS, 5);
+        try {
+            wal.append(entry(1));
+            wal.append(entry(2));
+            assertTrue(wal.hasEntriesSinceRotation());
+
+            assertEquals(6, wal.rotate(archive.getPath()));
+            assertFalse(wal.hasEntriesSinceRotation());
+            wal.append(entry(3));
+            assertTrue(wal.hasEntriesSinceRotation());
+        }
+        finally {
+            wal.setTerm(true);
+        }
+
+        // Replay: the archive holds what the snapshot covers, the live log what was logged since
+        assertEquals(5, WriteAheadLog.readGeneration(archive.getPath()));
+        assertEquals(Arrays.asList(1, 2), numbers(WriteAheadLog.read(archive.getPath())));
+        assertEquals(6, WriteAheadLog.readGeneration(live.getPath()));
+        assertEquals(Arrays.asList(3), numbers(WriteAheadLog.read(live.getPath())));
+    }
+
+    public void testRotateAppendsToArchiveLeftByFailedSnapshot() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(live.getPath(), WriteAheadLog.SyncPolicy.ALWAYS, 1);
+        try {
+            wal.append(entry(1));
+            assertEquals(2, wal.rotate(archive.getPath()));
+            wal.append(entry(2));
+            // The snapshot for generation 2 failed, so the archive is still there
+            assertEquals(3, wal.rotate(archive.getPath()));
+        }
+        finally {
+            wal.setTerm(true);
+        }
+
+        assertEquals(1, WriteAheadLog.readGeneration(archive.getPath()));
+        assertEquals(Arrays.asList(1, 2), numbers(WriteAheadLog.read(archive.getPath())));
+        assertEquals(3, WriteAheadLog.readGeneration(live.getPath()));
+        assertTrue(WriteAheadLog.read(live.getPath()).isEmpty());
+        assertEquals(1, Files.readAllLines(live.toPath()).size());
+    }
+}